@@ -0,0 +1,101 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.AuditLog;
+import server.ShareMarketServerImpl;
+
+// What the audit log costs a request thread: purchaseShare with the log on and off (the
+// WAL is off, so the log is the only I/O on the path), and record() on its own, which
+// is the enqueue onto the ring. With BLOCK a writer that falls behind shows up as
+// lower throughput; with DROP as AuditLog.getDropped(), printed at the end of a trial.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class AuditLogBenchmark {
+
+    private static final int CATALOGUE_SIZE = 1000;
+
+    // dsms.audit.enabled
+    @Param({"false", "true"})
+    public boolean audit;
+
+    // dsms.audit.backpressure
+    @Param({"BLOCK", "DROP"})
+    public String backpressure;
+
+    ShareMarketServerImpl market;
+    private Path dataDirectory;
+    private final AtomicInteger buyers = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Buyer {
+        String buyerID;
+        SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void register(AuditLogBenchmark benchmark) {
+            int number = benchmark.buyers.incrementAndGet();
+            buyerID = String.format("NYKB%04d", number);
+            random = new SplittableRandom(number);
+        }
+    }
+
+    static String shareID(int index) {
+        return "NYKM" + (100000 + index);
+    }
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        dataDirectory = Files.createTempDirectory("dsms-bench");
+        System.setProperty("dsms.store.enabled", "false");
+        System.setProperty("dsms.audit.enabled", Boolean.toString(audit));
+        System.setProperty("dsms.audit.backpressure", backpressure);
+        System.setProperty("dsms.audit.dir", dataDirectory.toString());
+        market = new ShareMarketServerImpl("NewYork", 0);
+        for (int i = 0; i < CATALOGUE_SIZE; i++) {
+            market.addShare(shareID(i), "Equity", Integer.MAX_VALUE / 2);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        AuditLog log = market.getAuditLog();
+        log.close();
+        System.out.println("audit records written: " + log.getWritten() + ", dropped: " + log.getDropped());
+        UnicastRemoteObject.unexportObject(market, true);
+        MarketStoreBenchmark.delete(dataDirectory);
+    }
+
+    @Benchmark
+    public String purchaseShare(Buyer buyer) {
+        return market.purchaseShare(buyer.buyerID, shareID(buyer.random.nextInt(CATALOGUE_SIZE)), "Equity", 1);
+    }
+
+    @Benchmark
+    public void record(Buyer buyer) {
+        market.getAuditLog().record("Purchase Share", buyer.buyerID, true);
+    }
+}
@@ -0,0 +1,49 @@
+package benchmarks;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Runs the benchmarks once per thread count and writes each run's results as JMH JSON,
+// e.g. benchmark-results/ShareMarketBenchmark-t4.json, for regression tracking:
+//
+//   java -jar benchmarks/target/benchmarks.jar [benchmark regex]
+//
+//   -Ddsms.bench.threads=1,2,4,8           thread counts to run with
+//   -Ddsms.bench.results=benchmark-results  directory for the JSON files
+//
+// With any option (an argument starting with '-') the whole command line goes to JMH
+// itself instead, e.g. "-l", or "EndToEnd -t 4 -p catalogueSize=100 -rf json".
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        if (Arrays.stream(args).anyMatch(arg -> arg.startsWith("-"))) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        String include = args.length > 0 ? args[0] : "benchmarks\\..*";
+        String label = args.length > 0 ? args[0].replaceAll("[^A-Za-z0-9]+", "_") : "all";
+        Path results = Paths.get(System.getProperty("dsms.bench.results", "benchmark-results"));
+        Files.createDirectories(results);
+
+        for (String count : System.getProperty("dsms.bench.threads", "1,2,4,8").split(",")) {
+            int threads = Integer.parseInt(count.trim());
+            Path file = results.resolve(label + "-t" + threads + ".json");
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .resultFormat(ResultFormatType.JSON)
+                    .result(file.toString())
+                    .build();
+            new Runner(options).run();
+            System.out.println("Results for " + threads + " thread(s) written to " + file);
+        }
+    }
+}
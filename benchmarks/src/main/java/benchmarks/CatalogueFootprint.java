@@ -0,0 +1,69 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.Reference;
+import java.nio.file.Files;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+
+import server.Share;
+import server.ShareMarketServerImpl;
+
+// Heap taken by a market's share catalogue. Not a JMH benchmark: it fills one market with
+// dsms.bench.shares shares (5000000) spread over the three types and reports the retained
+// heap per share, next to what the Share records alone (with their IDs) take, i.e. the
+// most that moving the records anywhere else could save while the maps stay on the heap.
+//
+//   java -Xmx4g -cp benchmarks/target/benchmarks.jar benchmarks.CatalogueFootprint
+public class CatalogueFootprint {
+
+    private static final String[] TYPES = {"Equity", "Bonus", "Dividend"};
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int count = Integer.getInteger("dsms.bench.shares", 5_000_000);
+        System.setProperty("dsms.store.dir", Files.createTempDirectory("dsms-footprint").toString());
+        System.setProperty("dsms.store.enabled", "false");
+        System.setProperty("dsms.audit.enabled", "false");
+        System.setProperty("dsms.metrics.dir", "");
+
+        ShareMarketServerImpl market = new ShareMarketServerImpl("NewYork", 0);
+        long empty = usedHeap();
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            market.addShare(shareID(i), TYPES[i % TYPES.length], 1000);
+        }
+        long loadMillis = (System.nanoTime() - start) / 1_000_000;
+        long catalogue = usedHeap() - empty;
+        UnicastRemoteObject.unexportObject(market, true);
+        market.getAuditLog().close();
+        market = null;
+
+        long none = usedHeap();
+        List<Share> records = new ArrayList<>(count);
+        long listOnly = usedHeap() - none;
+        for (int i = 0; i < count; i++) {
+            records.add(new Share(shareID(i), TYPES[i % TYPES.length], 1000));
+        }
+        long shares = usedHeap() - none - listOnly;
+
+        System.out.printf("%d shares loaded in %d ms%n", count, loadMillis);
+        System.out.printf("market catalogue: %,d bytes (%.1f per share)%n", catalogue, (double) catalogue / count);
+        System.out.printf("Share records:    %,d bytes (%.1f per share, %.0f%% of the catalogue)%n",
+                shares, (double) shares / count, 100.0 * shares / catalogue);
+        Reference.reachabilityFence(records);
+    }
+
+    static String shareID(int index) {
+        return "NYKM" + (10_000_000 + index);
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,170 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.ShareMarketServer;
+import server.Topology;
+
+// Client-side latency of whole requests over RMI (and UDP between the servers) against
+// the three markets of ShareMarketServerImpl.main. If New York is not answering at its
+// topology endpoint, the trial starts the servers in a child JVM, working in a temporary
+// directory, and stops it afterwards; otherwise the running servers are used as they are.
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EndToEndBenchmark {
+
+    private static final int HELD = 16;
+    private static final int HELD_QUANTITY = 50_000_000;
+
+    // Shares per market
+    @Param({"100", "1000"})
+    public int catalogueSize;
+
+    ShareMarketServer newYork;
+    private Process servers;
+    private final AtomicInteger buyers = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Buyer {
+        String buyerID;
+        SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void register(EndToEndBenchmark benchmark) throws Exception {
+            int number = benchmark.buyers.incrementAndGet();
+            buyerID = String.format("NYKB%04d", 9000 + number);
+            random = new SplittableRandom(number);
+            for (int i = 0; i < HELD; i++) {
+                benchmark.newYork.purchaseShare(buyerID, shareID("NYK", i), "Equity", HELD_QUANTITY);
+            }
+        }
+    }
+
+    static String shareID(String code, int index) {
+        return code + "M" + (100000 + index);
+    }
+
+    @Setup(Level.Trial)
+    public void connect() throws Exception {
+        newYork = lookup("NewYork");
+        if (newYork == null) {
+            servers = startServers();
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while ((newYork = lookup("NewYork")) == null || lookup("London") == null || lookup("Tokyo") == null) {
+                if (System.nanoTime() > deadline || !servers.isAlive()) {
+                    throw new IllegalStateException("Market servers did not come up");
+                }
+                Thread.sleep(200);
+            }
+        }
+
+        ShareMarketServer london = lookup("London");
+        ExecutorService loaders = Executors.newFixedThreadPool(32);
+        for (int i = 0; i < catalogueSize; i++) {
+            int index = i;
+            loaders.execute(() -> {
+                try {
+                    newYork.addShare(shareID("NYK", index), "Equity", Integer.MAX_VALUE / 2);
+                    london.addShare(shareID("LON", index), "Equity", Integer.MAX_VALUE / 2);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        loaders.shutdown();
+        loaders.awaitTermination(10, TimeUnit.MINUTES);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws InterruptedException {
+        if (servers != null) {
+            servers.destroy();
+            servers.waitFor(10, TimeUnit.SECONDS);
+        }
+    }
+
+    private static ShareMarketServer lookup(String name) {
+        Topology.Market market = Topology.current().market(name);
+        try {
+            return (ShareMarketServer) LocateRegistry.getRegistry(market.getHost(), market.getRmiPort()).lookup(name);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // ShareMarketServerImpl.main in its own JVM, with this JVM's class path and topology
+    private static Process startServers() throws IOException {
+        Path workDirectory = Files.createTempDirectory("dsms-e2e");
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        Path topology = Paths.get(System.getProperty("dsms.topology", "topology.properties")).toAbsolutePath();
+        if (Files.exists(topology)) {
+            command.add("-Ddsms.topology=" + topology);
+        }
+        command.add("server.ShareMarketServerImpl");
+        return new ProcessBuilder(command)
+                .directory(workDirectory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(new File(workDirectory.toFile(), "servers.out"))
+                .start();
+    }
+
+    @Benchmark
+    public String purchaseShare(Buyer buyer) throws Exception {
+        return newYork.purchaseShare(buyer.buyerID, shareID("NYK", buyer.random.nextInt(catalogueSize)), "Equity", 1);
+    }
+
+    @Benchmark
+    public String sellShare(Buyer buyer) throws Exception {
+        return newYork.sellShare(buyer.buyerID, shareID("NYK", buyer.random.nextInt(HELD)), 1);
+    }
+
+    // Forwarded by New York to London over RMI
+    @Benchmark
+    public String crossMarketPurchase(Buyer buyer) throws Exception {
+        return newYork.purchaseShare(buyer.buyerID, shareID("LON", buyer.random.nextInt(catalogueSize)), "Equity", 1);
+    }
+
+    // Gathers the buyer's holdings from all three markets
+    @Benchmark
+    public String getShares(Buyer buyer) throws Exception {
+        return newYork.getShares(buyer.buyerID);
+    }
+
+    // Local shares plus London's and Tokyo's over UDP
+    @Benchmark
+    public String listShareAvailability() throws Exception {
+        return newYork.listShareAvailability("Equity");
+    }
+}
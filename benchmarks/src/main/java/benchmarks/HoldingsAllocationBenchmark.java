@@ -0,0 +1,128 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.HoldingKey;
+import server.HoldingSlots;
+import server.Portfolio;
+import server.ShareMarketServerImpl;
+
+// Allocation on the purchase/sell path under a sustained workload: every call credits a
+// random one of the buyer's positions and debits it again.
+//
+//   portfolio  the holdings update alone, on the buyer's Portfolio: slots from the
+//              interned HoldingKey, quantities in a primitive map
+//   boxed      the same update as buyerHoldings did it before, a Map<String, Integer>
+//              keyed by shareType + "-" + shareID, read with getOrDefault and put back
+//   market     purchaseShare and sellShare as a whole, WAL and audit log off, reply
+//              strings included
+//
+// Allocation per call is the point, so run with JMH's GC profiler and read
+// gc.alloc.rate.norm (bytes/op) next to gc.alloc.rate:
+//
+//   java -jar benchmarks/target/benchmarks.jar HoldingsAllocation -prof gc
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HoldingsAllocationBenchmark {
+
+    private static final int POSITIONS = 1000;
+    // Above the Integer cache, as real holdings are
+    private static final int HELD_QUANTITY = 1_000_000;
+
+    @Param({"portfolio", "boxed", "market"})
+    public String path;
+
+    ShareMarketServerImpl market;
+    private Path dataDirectory;
+    private final HoldingSlots slots = new HoldingSlots();
+    private final HoldingKey[] keys = new HoldingKey[POSITIONS];
+    private final AtomicInteger buyers = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Buyer {
+        String buyerID;
+        SplittableRandom random;
+        Portfolio portfolio;
+        final Map<String, Integer> boxed = new HashMap<>();
+
+        @Setup(Level.Trial)
+        public void register(HoldingsAllocationBenchmark benchmark) {
+            int number = benchmark.buyers.incrementAndGet();
+            buyerID = String.format("NYKB%04d", number);
+            random = new SplittableRandom(number);
+            portfolio = new Portfolio(benchmark.slots);
+            for (int i = 0; i < POSITIONS; i++) {
+                HoldingKey key = benchmark.keys[i];
+                portfolio.credit(benchmark.slots.slotOf(key), HELD_QUANTITY);
+                boxed.put(key.getShareType() + "-" + key.getShareID(), HELD_QUANTITY);
+                benchmark.market.purchaseShare(buyerID, key.getShareID(), key.getShareType(), HELD_QUANTITY);
+            }
+        }
+    }
+
+    static String shareID(int index) {
+        return "NYKM" + (100000 + index);
+    }
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        dataDirectory = Files.createTempDirectory("dsms-bench");
+        System.setProperty("dsms.store.enabled", "false");
+        System.setProperty("dsms.audit.enabled", "false");
+        System.setProperty("dsms.audit.dir", dataDirectory.toString());
+        market = new ShareMarketServerImpl("NewYork", 0);
+        for (int i = 0; i < POSITIONS; i++) {
+            keys[i] = new HoldingKey("Equity", shareID(i));
+            market.addShare(shareID(i), "Equity", Integer.MAX_VALUE / 2);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        UnicastRemoteObject.unexportObject(market, true);
+        MarketStoreBenchmark.delete(dataDirectory);
+    }
+
+    @Benchmark
+    public Object purchaseAndSell(Buyer buyer) {
+        HoldingKey key = keys[buyer.random.nextInt(POSITIONS)];
+        switch (path) {
+            case "portfolio":
+                buyer.portfolio.credit(slots.slotOf(key), 1);
+                return buyer.portfolio.debit(buyer.portfolio.find(key.getShareID()), 1);
+            case "boxed":
+                String uniqueKey = key.getShareType() + "-" + key.getShareID();
+                buyer.boxed.put(uniqueKey, buyer.boxed.getOrDefault(uniqueKey, 0) + 1);
+                uniqueKey = key.getShareType() + "-" + key.getShareID();
+                return buyer.boxed.put(uniqueKey, buyer.boxed.get(uniqueKey) - 1);
+            default:
+                market.purchaseShare(buyer.buyerID, key.getShareID(), key.getShareType(), 1);
+                return market.sellShare(buyer.buyerID, key.getShareID(), 1);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import server.Holdings;
+
+// One remote market's part of a getShares, as it crosses RMI and is merged by the caller,
+// without the network: typed is the Holdings that getLocalHoldings returns, serialized and
+// merged with putAll; text is what peers exchanged before it, the market's getShares text
+// serialized as a String and split back into its "[Share: ..." lines by the caller. The
+// bytes each puts on the wire are printed at setup; allocations per call come from JMH's
+// GC profiler:
+//
+//   java -jar benchmarks/target/benchmarks.jar HoldingsWire -prof gc
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class HoldingsWireBenchmark {
+
+    @Param({"3", "100", "1000"})
+    public int positions;
+
+    private Holdings remote;
+
+    @Setup
+    public void fill() throws IOException, ClassNotFoundException {
+        Map<String, Integer> shares = new LinkedHashMap<>();
+        for (int i = 0; i < positions; i++) {
+            shares.put("Equity-LONM" + (100000 + i), 1 + i % 500);
+        }
+        remote = new Holdings();
+        remote.put("London", shares);
+        System.out.println("bytes on the wire for " + positions + " positions: typed " + serialize(remote).length
+                + ", text " + serialize(remote.format(List.of())).length);
+    }
+
+    static byte[] serialize(Object answer) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+            out.writeObject(answer);
+        }
+        return bytes.toByteArray();
+    }
+
+    static Object deserialize(byte[] bytes) throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return in.readObject();
+        }
+    }
+
+    @Benchmark
+    public Holdings typed() throws IOException, ClassNotFoundException {
+        Holdings merged = new Holdings();
+        merged.putAll((Holdings) deserialize(serialize(remote)));
+        return merged;
+    }
+
+    @Benchmark
+    public String text() throws IOException, ClassNotFoundException {
+        String answer = (String) deserialize(serialize(remote.format(List.of())));
+        StringBuilder merged = new StringBuilder("London Market Shares:\n");
+        String[] lines = answer.split("\n");
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].trim().startsWith("[Share:")) {
+                merged.append(lines[i]).append("\n");
+            }
+        }
+        return merged.toString();
+    }
+}
@@ -0,0 +1,77 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.ShareMarketServerImpl;
+
+// Wall time of New York's listShareAvailability with catalogueSize Equity shares in each
+// of the three markets, London's and Tokyo's arriving as framed UDP listings that New York
+// reassembles. Before the framing, anything past the first 4096 bytes of a market's reply
+// was lost, so there is no old path to compare with; instead setup checks that a listing
+// holds every share of every market and prints how long that first, uncached one took.
+// The measured calls find the markets' encoded snapshots cached, as repeated listings of
+// an unchanged catalogue do.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class LargeListingBenchmark {
+
+    @Param({"100000"})
+    public int catalogueSize;
+
+    LocalMarkets markets;
+    ShareMarketServerImpl newYork;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        markets = new LocalMarkets(42099, 46099);
+        List<ShareMarketServerImpl> started = new ArrayList<>();
+        for (String name : LocalMarkets.NAMES) {
+            ShareMarketServerImpl market = markets.start(name);
+            String code = LocalMarkets.CODES.get(name);
+            for (int i = 0; i < catalogueSize; i++) {
+                market.addShare(code + "M" + (100000 + i), "Equity", 1 + i % 1000);
+            }
+            started.add(market);
+        }
+        newYork = started.get(0);
+
+        long begin = System.nanoTime();
+        String listing = newYork.listShareAvailability("Equity");
+        long elapsed = System.nanoTime() - begin;
+        long lines = listing.lines().count();
+        if (lines != 3L * catalogueSize || listing.contains("not responding")) {
+            throw new IllegalStateException("Listing holds " + lines + " of " + 3L * catalogueSize + " shares");
+        }
+        System.out.println("first listing: " + lines + " shares in " + TimeUnit.NANOSECONDS.toMillis(elapsed) + " ms");
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        markets.stop();
+    }
+
+    @Benchmark
+    public String listShareAvailability() {
+        return newYork.listShareAvailability("Equity");
+    }
+}
@@ -0,0 +1,96 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import server.ShareMarketServerImpl;
+import server.Topology;
+import server.UDPServerThread;
+
+// New York, London and Tokyo run in the benchmark's own JVM, as ShareMarketServerImpl.main
+// would start them but on ports of the benchmark's choosing: RMI (client and peer side) on
+// rmiBase, rmiBase + 1, rmiBase + 2 and UDP on udpBase, udpBase + 1, udpBase + 2. The
+// topology is written to the data directory and made the process topology, so it has to
+// be created before anything else in the JVM reads Topology.current(); JMH's one fork per
+// trial gives each trial a fresh JVM.
+final class LocalMarkets {
+
+    static final Map<String, String> CODES = Map.of("NewYork", "NYK", "London", "LON", "Tokyo", "TOK");
+    static final List<String> NAMES = List.of("NewYork", "London", "Tokyo");
+
+    final Path dataDirectory;
+    final Topology topology;
+    private final List<ShareMarketServerImpl> markets = new ArrayList<>();
+    private final List<UDPServerThread> udpServers = new ArrayList<>();
+
+    LocalMarkets(int rmiBase, int udpBase) throws IOException {
+        dataDirectory = Files.createTempDirectory("dsms-bench");
+        Path file = dataDirectory.resolve("topology.properties");
+        try (Writer out = Files.newBufferedWriter(file)) {
+            out.write("markets=" + String.join(",", NAMES) + "\n");
+            for (int i = 0; i < NAMES.size(); i++) {
+                String prefix = "market." + NAMES.get(i) + ".";
+                out.write(prefix + "code=" + CODES.get(NAMES.get(i)) + "\n");
+                out.write(prefix + "host=localhost\n");
+                out.write(prefix + "rmiPort=" + (rmiBase + i) + "\n");
+                out.write(prefix + "udpPort=" + (udpBase + i) + "\n");
+            }
+        }
+        System.setProperty("dsms.topology", file.toString());
+        System.setProperty("dsms.store.dir", dataDirectory.toString());
+        System.setProperty("dsms.store.fsync", "false");
+        System.setProperty("dsms.audit.dir", dataDirectory.toString());
+        topology = Topology.current();
+    }
+
+    // Starts the market and binds it under its name and its peer binding
+    ShareMarketServerImpl start(String name) throws RemoteException {
+        Topology.Market endpoint = topology.market(name);
+        ShareMarketServerImpl market = new ShareMarketServerImpl(name, endpoint.getUdpPort());
+        Registry registry = registry(endpoint.getRmiPort());
+        registry.rebind(name, market);
+        registry.rebind(Topology.peerBinding(name), market);
+        market.applyTopology(topology);
+        UDPServerThread udpServer = new UDPServerThread(endpoint.getUdpPort(), market, market.getShareDatabase());
+        udpServer.setDaemon(true);
+        udpServer.start();
+        markets.add(market);
+        udpServers.add(udpServer);
+        return market;
+    }
+
+    static Registry registry(int port) throws RemoteException {
+        try {
+            return LocateRegistry.createRegistry(port);
+        } catch (RemoteException e) {
+            return LocateRegistry.getRegistry(port);
+        }
+    }
+
+    void stop() throws IOException {
+        for (UDPServerThread udpServer : udpServers) {
+            udpServer.interrupt();
+        }
+        for (ShareMarketServerImpl market : markets) {
+            market.getReservations().shutdown();
+            market.getStore().close();
+            market.getAuditLog().close();
+            try {
+                UnicastRemoteObject.unexportObject(market, true);
+            } catch (NoSuchObjectException e) {
+                // Already gone
+            }
+        }
+        MarketStoreBenchmark.delete(dataDirectory);
+    }
+}
@@ -0,0 +1,166 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.MarketStore;
+
+// The durable store on its own, without a market in front of it: logPurchase is WAL
+// throughput, each call waiting for its group commit like a market call does, and
+// recover is the time a restarting market spends in MarketStore.open on a log of
+// walRecords purchases, from a snapshot taken halfway through it.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MarketStoreBenchmark {
+
+    // dsms.store.fsync: whether each WAL group commit is forced to disk
+    @Param({"true", "false"})
+    public boolean fsync;
+
+    @Param({"100000", "1000000"})
+    public int walRecords;
+
+    private Path dataDirectory;
+    private MarketStore store;
+    private final AtomicInteger buyers = new AtomicInteger();
+
+    // Takes recovered state and writes none, so only the log itself is measured
+    static final class Discard implements MarketStore.Target {
+        @Override
+        public void applyAddShare(String shareType, String shareID, int totalCapacity, int availableCapacity) {
+        }
+
+        @Override
+        public void applyRemoveShare(String shareType, String shareID) {
+        }
+
+        @Override
+        public void applyCapacity(String shareType, String shareID, int delta) {
+        }
+
+        @Override
+        public void applyHolding(String buyerID, String shareType, String shareID, int delta) {
+        }
+
+        @Override
+        public void writeState(MarketStore.StateWriter writer) {
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Buyer {
+        String buyerID;
+
+        @Setup(Level.Trial)
+        public void register(MarketStoreBenchmark benchmark) {
+            buyerID = String.format("NYKB%04d", benchmark.buyers.incrementAndGet());
+        }
+    }
+
+    // A copy of a recorded log for each recovery, as open() starts a new segment in it
+    @State(Scope.Benchmark)
+    public static class Recorded {
+        Path recorded;
+        Path copy;
+        MarketStore recovered;
+
+        @Setup(Level.Trial)
+        public void record(MarketStoreBenchmark benchmark) throws IOException {
+            recorded = Files.createTempDirectory("dsms-bench-recorded");
+            MarketStore writing = new MarketStore(recorded, true, false, false, Long.MAX_VALUE, new Discard());
+            writing.open();
+            for (int i = 0; i < benchmark.walRecords; i++) {
+                writing.logPurchase(String.format("NYKB%04d", i % 1000), "Equity", shareID(i), 1);
+                if (i == benchmark.walRecords / 2) {
+                    writing.snapshot();
+                }
+            }
+            // The last record durable means every record is, as they are written in order.
+            // The store is left open: close() would snapshot the whole log away
+            writing.awaitDurable(writing.logPurchase("NYKB0000", "Equity", shareID(0), 1));
+        }
+
+        @Setup(Level.Invocation)
+        public void copy() throws IOException {
+            copy = Files.createTempDirectory("dsms-bench-recover");
+            try (Stream<Path> files = Files.list(recorded)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    Files.copy(file, copy.resolve(file.getFileName()));
+                }
+            }
+        }
+
+        @TearDown(Level.Invocation)
+        public void close() throws IOException {
+            recovered.close();
+            delete(copy);
+        }
+
+        @TearDown(Level.Trial)
+        public void drop() throws IOException {
+            delete(recorded);
+        }
+    }
+
+    static String shareID(int index) {
+        return "NYKM" + (100000 + index % 10000);
+    }
+
+    static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        dataDirectory = Files.createTempDirectory("dsms-bench");
+        // One snapshot every walRecords, so they also show in the throughput
+        store = new MarketStore(dataDirectory, true, fsync, true, walRecords, new Discard());
+        store.open();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        store.close();
+        delete(dataDirectory);
+    }
+
+    @Benchmark
+    public void logPurchase(Buyer buyer) {
+        store.awaitDurable(store.logPurchase(buyer.buyerID, "Equity", "NYKM100000", 1));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 2)
+    @Measurement(iterations = 5)
+    public MarketStore recover(Recorded recorded) throws IOException {
+        recorded.recovered = new MarketStore(recorded.copy, true, fsync, true, Long.MAX_VALUE, new Discard());
+        recorded.recovered.open();
+        return recorded.recovered;
+    }
+}
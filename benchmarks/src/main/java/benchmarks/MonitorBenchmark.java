@@ -0,0 +1,99 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.ShareMarketServerImpl;
+
+// Purchases and sells on one market with its per-share concurrency, and the same calls
+// serialised on one monitor the way every method of the market used to be synchronized
+// on the server. The WAL and the audit log are off, so only the concurrency control
+// differs; run with several threads (BenchmarkMain, or JMH's -t) to see it.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MonitorBenchmark {
+
+    private static final int CATALOGUE_SIZE = 10_000;
+
+    // striped: the market as it is; monitor: every call holds one server-wide lock
+    @Param({"striped", "monitor"})
+    public String locking;
+
+    ShareMarketServerImpl market;
+    private Path dataDirectory;
+    private final Object monitor = new Object();
+    private final AtomicInteger buyers = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Buyer {
+        String buyerID;
+        SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void register(MonitorBenchmark benchmark) {
+            int number = benchmark.buyers.incrementAndGet();
+            buyerID = String.format("NYKB%04d", number);
+            random = new SplittableRandom(number);
+        }
+    }
+
+    static String shareID(int index) {
+        return "NYKM" + (100000 + index);
+    }
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        dataDirectory = Files.createTempDirectory("dsms-bench");
+        System.setProperty("dsms.store.enabled", "false");
+        System.setProperty("dsms.audit.enabled", "false");
+        System.setProperty("dsms.audit.dir", dataDirectory.toString());
+        market = new ShareMarketServerImpl("NewYork", 0);
+        for (int i = 0; i < CATALOGUE_SIZE; i++) {
+            market.addShare(shareID(i), "Equity", Integer.MAX_VALUE / 2);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        UnicastRemoteObject.unexportObject(market, true);
+        MarketStoreBenchmark.delete(dataDirectory);
+    }
+
+    // A purchase of a random share and the sell of it, so holdings stay small
+    @Benchmark
+    public String purchaseAndSell(Buyer buyer) {
+        String shareID = shareID(buyer.random.nextInt(CATALOGUE_SIZE));
+        if (locking.equals("monitor")) {
+            synchronized (monitor) {
+                market.purchaseShare(buyer.buyerID, shareID, "Equity", 1);
+            }
+            synchronized (monitor) {
+                return market.sellShare(buyer.buyerID, shareID, 1);
+            }
+        }
+        market.purchaseShare(buyer.buyerID, shareID, "Equity", 1);
+        return market.sellShare(buyer.buyerID, shareID, 1);
+    }
+}
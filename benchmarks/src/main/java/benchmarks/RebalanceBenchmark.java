@@ -0,0 +1,118 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.OrderItem;
+import server.ShareMarketServer;
+import server.ShareMarketServerImpl;
+
+// A buyer rebalancing a POSITIONS-share portfolio through New York over RMI, one share of
+// each position bought in one call and sold in the next, with the WAL (unforced) and the
+// audit log on. perShare is the loop of purchaseShare/sellShare calls a client needed
+// before placeOrders; batch is one placeOrders call with every item. With markets 3 the
+// positions are spread over New York, London and Tokyo, so New York forwards part of the
+// work: one call per share in the loop, one batch per market with placeOrders.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RebalanceBenchmark {
+
+    private static final int POSITIONS = 200;
+
+    @Param({"perShare", "batch"})
+    public String calls;
+
+    @Param({"1", "3"})
+    public int markets;
+
+    LocalMarkets localMarkets;
+    ShareMarketServer newYork;
+    private final List<String> shareIDs = new ArrayList<>();
+    private final AtomicInteger buyers = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Buyer {
+        String buyerID;
+        boolean buying = true;
+
+        // One round trip each way, checked, so the measured calls are known to trade
+        @Setup(Level.Trial)
+        public void register(RebalanceBenchmark benchmark) throws Exception {
+            buyerID = String.format("NYKB%04d", benchmark.buyers.incrementAndGet());
+            for (int round = 0; round < 2; round++) {
+                for (String result : benchmark.rebalance(this)) {
+                    if (!result.contains("successful")) {
+                        throw new IllegalStateException("Rebalancing failed: " + result);
+                    }
+                }
+            }
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        localMarkets = new LocalMarkets(49199, 49299);
+        List<String> names = LocalMarkets.NAMES.subList(0, markets);
+        for (String name : names) {
+            ShareMarketServerImpl market = localMarkets.start(name);
+            String code = LocalMarkets.CODES.get(name);
+            for (int i = 0; i < POSITIONS / markets + 1; i++) {
+                market.addShare(code + "M" + (100000 + i), "Equity", Integer.MAX_VALUE / 2);
+            }
+        }
+        for (int i = 0; i < POSITIONS; i++) {
+            shareIDs.add(LocalMarkets.CODES.get(names.get(i % markets)) + "M" + (100000 + i / markets));
+        }
+        newYork = (ShareMarketServer) LocalMarkets.registry(localMarkets.topology.market("NewYork").getRmiPort())
+                .lookup("NewYork");
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        localMarkets.stop();
+    }
+
+    List<String> rebalance(Buyer buyer) throws Exception {
+        OrderItem.Side side = buyer.buying ? OrderItem.Side.BUY : OrderItem.Side.SELL;
+        buyer.buying = !buyer.buying;
+        if (calls.equals("batch")) {
+            List<OrderItem> items = new ArrayList<>(POSITIONS);
+            for (String shareID : shareIDs) {
+                items.add(new OrderItem(shareID, "Equity", 1, side));
+            }
+            return newYork.placeOrders(buyer.buyerID, items, false);
+        }
+        List<String> results = new ArrayList<>(POSITIONS);
+        for (String shareID : shareIDs) {
+            results.add(side == OrderItem.Side.BUY
+                    ? newYork.purchaseShare(buyer.buyerID, shareID, "Equity", 1)
+                    : newYork.sellShare(buyer.buyerID, shareID, 1));
+        }
+        return results;
+    }
+
+    @Benchmark
+    public List<String> rebalance200(Buyer buyer) throws Exception {
+        return rebalance(buyer);
+    }
+}
@@ -0,0 +1,142 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.rmi.Remote;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.Holdings;
+import server.MarketPeer;
+import server.ShareMarketServerImpl;
+import server.Topology;
+
+// Latency of New York's getShares with London and Tokyo answering late: the first
+// delayedPeers of them sleep DELAY_MS in getLocalHoldings. parallel is getShares as it is,
+// asking both at once; sequential asks them one after the other over the same peer stubs,
+// as getShares did before its scatter-gather, so its latency is the sum of the delays
+// rather than the largest. JMH's sample mode reports the percentiles (p0.99 included).
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScatterGatherBenchmark {
+
+    private static final long DELAY_MS = 20;
+    private static final int HELD = 16;
+
+    @Param({"parallel", "sequential"})
+    public String fanOut;
+
+    @Param({"0", "1", "2"})
+    public int delayedPeers;
+
+    LocalMarkets markets;
+    ShareMarketServerImpl newYork;
+    private final Map<String, ShareMarketServerImpl> byName = new LinkedHashMap<>();
+    // Their peer sides as New York calls them, over RMI
+    private final List<MarketPeer> remotePeers = new ArrayList<>();
+    private final List<Remote> delayed = new ArrayList<>();
+    private final AtomicInteger buyers = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Buyer {
+        String buyerID;
+
+        // Positions in every market, bought as each market's own
+        @Setup(Level.Trial)
+        public void register(ScatterGatherBenchmark benchmark) {
+            buyerID = String.format("NYKB%04d", benchmark.buyers.incrementAndGet());
+            benchmark.byName.forEach((name, market) -> {
+                String code = LocalMarkets.CODES.get(name);
+                for (int s = 0; s < HELD; s++) {
+                    market.purchaseLocalShare(buyerID, shareID(code, s), "Equity", 1, null);
+                }
+            });
+        }
+    }
+
+    static String shareID(String code, int index) {
+        return code + "M" + (100000 + index);
+    }
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        markets = new LocalMarkets(44099, 48099);
+        for (String name : LocalMarkets.NAMES) {
+            ShareMarketServerImpl market = markets.start(name);
+            byName.put(name, market);
+            for (int s = 0; s < HELD; s++) {
+                market.addShare(shareID(LocalMarkets.CODES.get(name), s), "Equity", Integer.MAX_VALUE / 2);
+            }
+            if (name.equals("NewYork")) {
+                newYork = market;
+                continue;
+            }
+            Registry registry = LocalMarkets.registry(markets.topology.market(name).getRmiPort());
+            if (remotePeers.size() < delayedPeers) {
+                registry.rebind(Topology.peerBinding(name), delay(market));
+            }
+            remotePeers.add((MarketPeer) registry.lookup(Topology.peerBinding(name)));
+        }
+    }
+
+    // The market's peer side, exported on its own, sleeping before every getLocalHoldings
+    private MarketPeer delay(ShareMarketServerImpl market) throws IOException {
+        MarketPeer slow = (MarketPeer) Proxy.newProxyInstance(MarketPeer.class.getClassLoader(),
+                new Class<?>[] {MarketPeer.class}, (proxy, method, args) -> {
+                    if (method.getName().equals("getLocalHoldings")) {
+                        Thread.sleep(DELAY_MS);
+                    }
+                    try {
+                        return method.invoke(market, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        delayed.add(slow);
+        return (MarketPeer) UnicastRemoteObject.exportObject(slow, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        for (Remote slow : delayed) {
+            UnicastRemoteObject.unexportObject(slow, true);
+        }
+        markets.stop();
+    }
+
+    @Benchmark
+    public String getShares(Buyer buyer) throws Exception {
+        if (fanOut.equals("parallel")) {
+            return newYork.getShares(buyer.buyerID);
+        }
+        Holdings holdings = newYork.getLocalHoldings(buyer.buyerID, null);
+        for (MarketPeer peer : remotePeers) {
+            holdings.putAll(peer.getLocalHoldings(buyer.buyerID, null));
+        }
+        return holdings.format(List.of());
+    }
+}
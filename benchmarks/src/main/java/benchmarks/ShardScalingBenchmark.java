@@ -0,0 +1,185 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.OrderItem;
+import server.ShareMarketServer;
+
+// Throughput of one market as its catalogue is spread over more shards. Each trial writes
+// a topology in which New York alone is sharded shards ways, starts every shard and the
+// ShardRouter as MarketLauncher processes of their own (as a deployment would, each with
+// its own heap and GC), and calls the router over RMI. The gain from more shards is
+// bounded by the cores the machine has for them.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardScalingBenchmark {
+
+    private static final int CATALOGUE_SIZE = 1000;
+    private static final int BATCH_SIZE = 8;
+    // Clear of the default topology and of the tests' ports
+    private static final int ROUTER_RMI_PORT = 43099;
+    private static final int ROUTER_UDP_PORT = 47099;
+
+    @Param({"1", "2", "4"})
+    public int shards;
+
+    ShareMarketServer router;
+    private Path workDirectory;
+    private final List<Process> processes = new ArrayList<>();
+    private final AtomicInteger buyers = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Buyer {
+        String buyerID;
+        SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void register(ShardScalingBenchmark benchmark) {
+            int number = benchmark.buyers.incrementAndGet();
+            buyerID = String.format("NYKB%04d", 9000 + number);
+            random = new SplittableRandom(number);
+        }
+    }
+
+    static String shareID(int index) {
+        return "NYKM" + (100000 + index);
+    }
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        workDirectory = Files.createTempDirectory("dsms-shards");
+        Path topology = workDirectory.resolve("topology.properties");
+        try (Writer out = Files.newBufferedWriter(topology)) {
+            out.write("markets=NewYork\n");
+            out.write("market.NewYork.code=NYK\n");
+            out.write("market.NewYork.host=localhost\n");
+            out.write("market.NewYork.rmiPort=" + ROUTER_RMI_PORT + "\n");
+            out.write("market.NewYork.udpPort=" + ROUTER_UDP_PORT + "\n");
+            List<String> endpoints = new ArrayList<>();
+            for (int i = 0; i < shards; i++) {
+                endpoints.add("localhost:" + (ROUTER_RMI_PORT + 1 + i) + ":" + (ROUTER_UDP_PORT + 1 + i));
+            }
+            out.write("market.NewYork.shards=" + String.join(",", endpoints) + "\n");
+        }
+
+        for (int i = 0; i < shards; i++) {
+            processes.add(launch(topology, "shard-" + i, "NewYork", "shard", Integer.toString(i)));
+        }
+        processes.add(launch(topology, "router", "NewYork"));
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while ((router = lookup()) == null || !router.addShare(shareID(0), "Equity", Integer.MAX_VALUE / 2)
+                .startsWith("Share added")) {
+            for (Process process : processes) {
+                if (System.nanoTime() > deadline || !process.isAlive()) {
+                    throw new IllegalStateException("Shards did not come up; see " + workDirectory);
+                }
+            }
+            Thread.sleep(200);
+        }
+
+        ExecutorService loaders = Executors.newFixedThreadPool(32);
+        for (int i = 1; i < CATALOGUE_SIZE; i++) {
+            int index = i;
+            loaders.execute(() -> {
+                try {
+                    router.addShare(shareID(index), "Equity", Integer.MAX_VALUE / 2);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        }
+        loaders.shutdown();
+        loaders.awaitTermination(10, TimeUnit.MINUTES);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws InterruptedException, IOException {
+        for (Process process : processes) {
+            process.destroy();
+        }
+        for (Process process : processes) {
+            process.waitFor(10, TimeUnit.SECONDS);
+        }
+        processes.clear();
+        MarketStoreBenchmark.delete(workDirectory);
+    }
+
+    private static ShareMarketServer lookup() {
+        try {
+            return (ShareMarketServer) LocateRegistry.getRegistry("localhost", ROUTER_RMI_PORT).lookup("NewYork");
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // MarketLauncher in its own JVM and directory, with this JVM's class path
+    private Process launch(Path topology, String name, String... args) throws IOException {
+        File directory = workDirectory.resolve(name).toFile();
+        directory.mkdirs();
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-Xmx512m");
+        // Absolute, as the class path may be relative to this JVM's directory
+        List<String> classPath = new ArrayList<>();
+        for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+            classPath.add(Paths.get(entry).toAbsolutePath().toString());
+        }
+        command.add("-cp");
+        command.add(String.join(File.pathSeparator, classPath));
+        command.add("-Ddsms.topology=" + topology);
+        command.add("-Ddsms.store.fsync=false");
+        command.add("server.MarketLauncher");
+        command.addAll(List.of(args));
+        return new ProcessBuilder(command)
+                .directory(directory)
+                .redirectErrorStream(true)
+                .redirectOutput(new File(directory, "out.log"))
+                .start();
+    }
+
+    @Benchmark
+    public String purchaseShare(Buyer buyer) throws Exception {
+        return router.purchaseShare(buyer.buyerID, shareID(buyer.random.nextInt(CATALOGUE_SIZE)), "Equity", 1);
+    }
+
+    // A batch whose items land on whichever shards own them, one call to each
+    @Benchmark
+    public List<String> placeOrders(Buyer buyer) throws Exception {
+        List<OrderItem> items = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            items.add(new OrderItem(shareID(buyer.random.nextInt(CATALOGUE_SIZE)), "Equity", 1, OrderItem.Side.BUY));
+        }
+        return router.placeOrders(buyer.buyerID, items, false);
+    }
+}
@@ -0,0 +1,143 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.ShareMarketServerImpl;
+
+// In-process benchmarks of one market's request paths, called directly on
+// ShareMarketServerImpl (no RMI). The market has no peers, so getShares and
+// listShareAvailability cover only the local part of the work. Each trial starts from a
+// fresh market with catalogueSize Equity shares in a temporary data directory, which also
+// takes its audit log, and every buyer (one per benchmark thread) starts out holding
+// portfolioSize of them; the thread count is JMH's -t (BenchmarkMain runs several).
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShareMarketBenchmark {
+
+    private static final int HELD_QUANTITY = 50_000_000;
+
+    @Param({"1000", "10000", "100000"})
+    public int catalogueSize;
+
+    // Positions every buyer starts with, so there is always something to sell; sellShare
+    // picks among them. The catalogue is grown to this size where it is smaller, so each
+    // position is a share of its own.
+    @Param({"10", "1000", "100000"})
+    public int portfolioSize;
+
+    // dsms.store.fsync: whether each WAL group commit is forced to disk
+    @Param({"true", "false"})
+    public boolean fsync;
+
+    ShareMarketServerImpl market;
+    private Path dataDirectory;
+    private final AtomicLong addedShares = new AtomicLong();
+    private final AtomicInteger buyers = new AtomicInteger();
+
+    @State(Scope.Thread)
+    public static class Buyer {
+        String buyerID;
+        SplittableRandom random;
+
+        @Setup(Level.Trial)
+        public void register(ShareMarketBenchmark benchmark) throws InterruptedException {
+            int number = benchmark.buyers.incrementAndGet();
+            buyerID = String.format("NYKB%04d", number);
+            random = new SplittableRandom(number);
+            benchmark.inParallel(benchmark.portfolioSize,
+                    i -> benchmark.market.purchaseShare(buyerID, shareID(i), "Equity", HELD_QUANTITY));
+        }
+    }
+
+    static String shareID(int index) {
+        return "NYKM" + (100000 + index);
+    }
+
+    @Setup(Level.Trial)
+    public void start() throws IOException, InterruptedException {
+        dataDirectory = Files.createTempDirectory("dsms-bench");
+        System.setProperty("dsms.store.dir", dataDirectory.toString());
+        System.setProperty("dsms.store.fsync", Boolean.toString(fsync));
+        // The audit log goes with the data, not into the repository's logs/
+        System.setProperty("dsms.audit.dir", dataDirectory.toString());
+        market = new ShareMarketServerImpl("NewYork", 0);
+        inParallel(Math.max(catalogueSize, portfolioSize),
+                i -> market.addShare(shareID(i), "Equity", Integer.MAX_VALUE / 2));
+    }
+
+    // Runs the call for 0..count-1 from many threads, so the WAL group-commits them even
+    // with fsync on
+    void inParallel(int count, IntConsumer call) throws InterruptedException {
+        ExecutorService loaders = Executors.newFixedThreadPool(64);
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            loaders.execute(() -> call.accept(index));
+        }
+        loaders.shutdown();
+        loaders.awaitTermination(10, TimeUnit.MINUTES);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        market.getAuditLog().close();
+        UnicastRemoteObject.unexportObject(market, true);
+        try (Stream<Path> files = Files.walk(dataDirectory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+        }
+    }
+
+    // Every call adds a new share, so the catalogue grows over the run
+    @Benchmark
+    public String addShare() {
+        return market.addShare("NYKX" + addedShares.incrementAndGet(), "Equity", 100);
+    }
+
+    @Benchmark
+    public String purchaseShare(Buyer buyer) {
+        return market.purchaseShare(buyer.buyerID, shareID(buyer.random.nextInt(catalogueSize)), "Equity", 1);
+    }
+
+    @Benchmark
+    public String sellShare(Buyer buyer) {
+        return market.sellShare(buyer.buyerID, shareID(buyer.random.nextInt(portfolioSize)), 1);
+    }
+
+    @Benchmark
+    public String getShares(Buyer buyer) {
+        return market.getShares(buyer.buyerID);
+    }
+
+    @Benchmark
+    public String listShareAvailability() {
+        return market.listShareAvailability("Equity");
+    }
+}
@@ -0,0 +1,101 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.AvailabilityCache;
+import server.AvailabilityCodec;
+import server.Share;
+import server.ShareMarketServerImpl;
+
+// The work behind one UDP availability request for a type, on a market holding 1M shares
+// spread evenly over TYPES, without the network:
+//
+//   cached   the type's encoded snapshot, unchanged since the last request
+//   rebuilt  the type was mutated, so its bucket is walked and encoded again
+//   scan     what getLocalShareAvailability did before the type index: every share of
+//            every type compared with equalsIgnoreCase, the matches encoded
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TypeIndexBenchmark {
+
+    private static final int CATALOGUE_SIZE = 1_000_000;
+    private static final List<String> TYPES = List.of("Equity", "Bond", "Commodity", "Option", "Future",
+            "Fund", "Warrant", "Currency", "Index", "Swap");
+
+    @Param({"cached", "rebuilt", "scan"})
+    public String lookup;
+
+    ShareMarketServerImpl market;
+    private Path dataDirectory;
+    private Map<String, Map<String, Share>> shareDatabase;
+    private AvailabilityCache availabilityCache;
+    private long requestID;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        dataDirectory = Files.createTempDirectory("dsms-bench");
+        System.setProperty("dsms.store.enabled", "false");
+        System.setProperty("dsms.audit.enabled", "false");
+        System.setProperty("dsms.audit.dir", dataDirectory.toString());
+        market = new ShareMarketServerImpl("NewYork", 0);
+        for (int i = 0; i < CATALOGUE_SIZE; i++) {
+            market.addShare("NYKM" + (1000000 + i), TYPES.get(i % TYPES.size()), 1 + i % 1000);
+        }
+        shareDatabase = market.getShareDatabase();
+        availabilityCache = market.getAvailabilityCache();
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws IOException {
+        UnicastRemoteObject.unexportObject(market, true);
+        MarketStoreBenchmark.delete(dataDirectory);
+    }
+
+    @Benchmark
+    public List<byte[]> listAvailability() {
+        String shareType = "Equity";
+        String typeKey = shareType.toLowerCase(Locale.ROOT);
+        switch (lookup) {
+            case "scan":
+                List<Share> matches = new ArrayList<>();
+                for (Map<String, Share> shares : shareDatabase.values()) {
+                    for (Share share : shares.values()) {
+                        if (share.getShareType().equalsIgnoreCase(shareType)) {
+                            matches.add(share);
+                        }
+                    }
+                }
+                return AvailabilityCodec.encode(++requestID, matches);
+            case "rebuilt":
+                availabilityCache.invalidate(typeKey);
+                // Falls through to the lookup, which now finds the snapshot stale
+            default:
+                return availabilityCache.frames(typeKey, ++requestID, () -> shareDatabase.get(typeKey).values());
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import server.AvailabilityCache;
+import server.AvailabilityCodec;
+import server.PeerMarkets;
+import server.Share;
+import server.UDPPeerClient;
+import server.UDPServerThread;
+
+// LIST_AVAILABILITY under load: JMH's threads (-t) are concurrent callers sharing one
+// UDPPeerClient, as a market's listShareAvailability requests share it, against one
+// UDPServerThread on loopback with workers worker threads (1 being the old one request at
+// a time). Throughput is requests per second; sample mode gives the latency percentiles.
+// With the availability snapshot cached the workers only stamp request IDs onto frames, so
+// the difference shows with more callers than a single thread can answer:
+//
+//   java -jar benchmarks/target/benchmarks.jar UdpAvailability -t 8
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class UdpAvailabilityBenchmark {
+
+    // Clear of the default topology, the tests' and the other benchmarks' ports
+    private static final int UDP_PORT = 49099;
+
+    @Param({"1", "8"})
+    public int workers;
+
+    @Param({"100", "10000"})
+    public int catalogueSize;
+
+    private UDPServerThread server;
+    private UDPPeerClient client;
+    private Map<String, InetSocketAddress> market;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        // Read when UDPServerThread is loaded, which is here: each trial has a JVM of its own
+        System.setProperty("dsms.udp.workers", Integer.toString(workers));
+        List<Share> shares = new ArrayList<>(catalogueSize);
+        for (int i = 0; i < catalogueSize; i++) {
+            shares.add(new Share("NYKM" + (100000 + i), "Equity", 1 + i % 1000));
+        }
+        server = new UDPServerThread(UDP_PORT, new AvailabilityCache(), shareType -> shares);
+        server.setDaemon(true);
+        server.start();
+        client = new UDPPeerClient();
+        market = Map.of("NewYork", new InetSocketAddress("localhost", UDP_PORT));
+        if (listAvailability().getResults().isEmpty()) {
+            throw new IllegalStateException("UDP server on " + UDP_PORT + " did not answer");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws InterruptedException {
+        System.out.println("dropped " + server.getDropped() + ", retries " + client.getRetriesSent()
+                + ", timeouts " + client.getTimeouts());
+        client.close();
+        server.interrupt();
+        server.join(5000);
+    }
+
+    @Benchmark
+    public PeerMarkets.Gathered<List<AvailabilityCodec.Entry>> listAvailability() {
+        return client.listAvailability(market, "Equity");
+    }
+}
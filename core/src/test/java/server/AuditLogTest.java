@@ -0,0 +1,87 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+// The audit queue's bound under both kinds of backpressure. The writer is held back until
+// the test starts it, so the queue fills up.
+class AuditLogTest {
+
+    private static AuditLog stalled(Path file, int capacity, AuditLog.Backpressure backpressure) {
+        return new AuditLog(file, true, capacity, backpressure, AuditLog.FsyncPolicy.NONE, 1000, false);
+    }
+
+    private static List<String> lines(Path file) throws IOException {
+        return Files.readAllLines(file);
+    }
+
+    @Test
+    void dropDiscardsWhatDoesNotFit() throws IOException {
+        Path file = Files.createTempDirectory("dsms-audit").resolve("Test_Server.log");
+        AuditLog log = stalled(file, 4, AuditLog.Backpressure.DROP);
+
+        for (int i = 0; i < 10; i++) {
+            log.record("Purchase Share", "n=" + i, true);
+        }
+        assertEquals(4, log.getQueueDepth());
+        assertEquals(6, log.getDropped());
+
+        log.startWriter();
+        log.close();
+        assertEquals(4, log.getWritten());
+        List<String> lines = lines(file);
+        assertEquals(4, lines.size());
+        assertTrue(lines.get(3).contains("Params: n=3 | Status: Successfully Completed"), lines.get(3));
+    }
+
+    @Test
+    void dropNeverOvershootsUnderContention() throws IOException, InterruptedException {
+        Path file = Files.createTempDirectory("dsms-audit").resolve("Test_Server.log");
+        AuditLog log = stalled(file, 16, AuditLog.Backpressure.DROP);
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            threads.execute(() -> {
+                for (int i = 0; i < 1000; i++) {
+                    log.record("Sell Share", "x", false);
+                }
+            });
+        }
+        threads.shutdown();
+        assertTrue(threads.awaitTermination(1, TimeUnit.MINUTES));
+
+        assertEquals(16, log.getQueueDepth());
+        assertEquals(8000 - 16, log.getDropped());
+        log.startWriter();
+        log.close();
+    }
+
+    @Test
+    void blockWaitsForSpace() throws IOException, InterruptedException {
+        Path file = Files.createTempDirectory("dsms-audit").resolve("Test_Server.log");
+        AuditLog log = stalled(file, 2, AuditLog.Backpressure.BLOCK);
+        log.record("Add Share", "first", true);
+        log.record("Add Share", "second", true);
+
+        Thread third = new Thread(() -> log.record("Add Share", "third", true));
+        third.start();
+        third.join(300);
+        assertTrue(third.isAlive(), "record() returned with the queue full");
+        assertEquals(2, log.getQueueDepth());
+
+        log.startWriter();
+        third.join(TimeUnit.SECONDS.toMillis(10));
+        log.close();
+        assertEquals(0, log.getDropped());
+        assertEquals(3, lines(file).size());
+    }
+}
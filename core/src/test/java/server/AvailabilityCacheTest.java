@@ -0,0 +1,106 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.rmi.NoSuchObjectException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class AvailabilityCacheTest {
+
+    private ShareMarketServerImpl market;
+
+    @BeforeEach
+    void startMarket() throws IOException {
+        market = TestMarkets.start("NewYork", "NewYork");
+    }
+
+    @AfterEach
+    void stopMarket() throws NoSuchObjectException {
+        TestMarkets.stop(market);
+    }
+
+    private static List<AvailabilityCodec.Entry> decode(List<byte[]> frames, long requestID) {
+        List<AvailabilityCodec.Entry> entries = new ArrayList<>();
+        for (byte[] datagram : frames) {
+            AvailabilityCodec.Frame frame = AvailabilityCodec.decodeHeader(ByteBuffer.wrap(datagram));
+            assertEquals(requestID, frame.requestID);
+            AvailabilityCodec.decodeRecords(frame, entries);
+        }
+        return entries;
+    }
+
+    // What a UDP request for the type would be answered with right now
+    private List<AvailabilityCodec.Entry> listing(String shareType, long requestID) {
+        Map<String, Share> shares = market.getShareDatabase().getOrDefault(ShareMarketServerImpl.typeKey(shareType),
+                Map.of());
+        return decode(market.getAvailabilityCache().frames(ShareMarketServerImpl.typeKey(shareType), requestID,
+                shares::values), requestID);
+    }
+
+    @Test
+    void reusedUntilTheTypeChanges() {
+        AvailabilityCache cache = new AvailabilityCache();
+        AtomicInteger encodings = new AtomicInteger();
+        List<Share> shares = List.of(new Share("NYKM1001", "Equity", 10));
+
+        cache.frames("equity", 1, () -> {
+            encodings.incrementAndGet();
+            return shares;
+        });
+        List<byte[]> second = cache.frames("equity", 2, () -> {
+            encodings.incrementAndGet();
+            return shares;
+        });
+        assertEquals(1, encodings.get());
+        assertEquals(1, cache.getHits());
+        // Each request gets the cached frames under its own ID
+        assertEquals("NYKM1001", decode(second, 2).get(0).getShareID());
+
+        cache.invalidate("bond");
+        cache.frames("equity", 3, () -> {
+            encodings.incrementAndGet();
+            return shares;
+        });
+        assertEquals(1, encodings.get());
+
+        cache.invalidate("equity");
+        cache.frames("equity", 4, () -> {
+            encodings.incrementAndGet();
+            return shares;
+        });
+        assertEquals(2, encodings.get());
+        assertEquals(2, cache.getRebuilds());
+    }
+
+    @Test
+    void everyMutationOfTheTypeIsVisible() {
+        market.addShare("NYKM1001", "Equity", 100);
+        assertEquals(100, listing("Equity", 1).get(0).getAvailable());
+
+        market.purchaseShare("NYKB1001", "NYKM1001", "Equity", 30);
+        assertEquals(70, listing("Equity", 2).get(0).getAvailable());
+
+        market.sellShare("NYKB1001", "NYKM1001", 10);
+        assertEquals(80, listing("equity", 3).get(0).getAvailable());
+
+        market.placeOrders("NYKB1001", List.of(new OrderItem("NYKM1001", "Equity", 5, OrderItem.Side.BUY)), false);
+        assertEquals(75, listing("EQUITY", 4).get(0).getAvailable());
+
+        market.addShare("NYKM1002", "Equity", 50);
+        assertEquals(2, listing("Equity", 5).size());
+
+        market.removeShare("NYKM1001", "Equity");
+        List<AvailabilityCodec.Entry> entries = listing("Equity", 6);
+        assertEquals(1, entries.size());
+        assertEquals("NYKM1002", entries.get(0).getShareID());
+    }
+}
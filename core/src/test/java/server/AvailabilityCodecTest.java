@@ -0,0 +1,74 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class AvailabilityCodecTest {
+
+    private static List<AvailabilityCodec.Entry> decode(List<byte[]> frames, long requestID) {
+        List<AvailabilityCodec.Entry> entries = new ArrayList<>();
+        for (int seq = 0; seq < frames.size(); seq++) {
+            ByteBuffer datagram = ByteBuffer.wrap(frames.get(seq));
+            assertTrue(AvailabilityCodec.isFrame(datagram));
+            AvailabilityCodec.Frame frame = AvailabilityCodec.decodeHeader(datagram);
+            assertEquals(requestID, frame.requestID);
+            assertEquals(seq, frame.seq);
+            assertEquals(frames.size(), frame.totalFrames);
+            AvailabilityCodec.decodeRecords(frame, entries);
+        }
+        return entries;
+    }
+
+    @Test
+    void largeListingRoundTripsOverSeveralFrames() {
+        List<Share> shares = new ArrayList<>();
+        Random random = new Random(7);
+        for (int i = 0; i < 20_000; i++) {
+            // Non-ASCII types, so lengths are counted in bytes, not characters
+            shares.add(new Share("NYKM" + (100000 + i), i % 3 == 0 ? "Équité" : "Equity", random.nextInt(1_000_000)));
+        }
+
+        List<byte[]> frames = AvailabilityCodec.encode(42, shares);
+
+        assertTrue(frames.size() > 1, "expected the listing to need several frames");
+        for (byte[] frame : frames) {
+            assertTrue(frame.length <= AvailabilityCodec.MAX_FRAME);
+        }
+        AvailabilityCodec.Frame first = AvailabilityCodec.decodeHeader(ByteBuffer.wrap(frames.get(0)));
+        assertEquals(shares.size(), first.totalRecords);
+
+        List<AvailabilityCodec.Entry> entries = decode(frames, 42);
+        assertEquals(shares.size(), entries.size());
+        for (int i = 0; i < shares.size(); i++) {
+            assertEquals(shares.get(i).getShareID(), entries.get(i).getShareID());
+            assertEquals(shares.get(i).getShareType(), entries.get(i).getShareType());
+            assertEquals(shares.get(i).getAvailableCapacity(), entries.get(i).getAvailable());
+        }
+    }
+
+    @Test
+    void emptyListingIsOneEmptyFrame() {
+        List<byte[]> frames = AvailabilityCodec.encode(7, Collections.emptyList());
+
+        assertEquals(1, frames.size());
+        AvailabilityCodec.Frame frame = AvailabilityCodec.decodeHeader(ByteBuffer.wrap(frames.get(0)));
+        assertEquals(1, frame.totalFrames);
+        assertEquals(0, frame.totalRecords);
+        assertEquals(0, frame.recordCount);
+    }
+
+    @Test
+    void otherDatagramsAreNotFrames() {
+        assertFalse(AvailabilityCodec.isFrame(ByteBuffer.wrap("LIST Equity".getBytes())));
+        assertFalse(AvailabilityCodec.isFrame(ByteBuffer.wrap(new byte[] {AvailabilityCodec.MAGIC})));
+    }
+}
@@ -0,0 +1,107 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static server.TestMarkets.available;
+import static server.TestMarkets.held;
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// placeOrders without allOrNothing: every item stands on its own, items of other markets
+// are forwarded in one call per market, and the replies come back in request order
+class BatchOrderTest {
+
+    private static final String BUYER = "NYKB1001";
+
+    private Registry londonRegistry;
+    private ShareMarketServerImpl newYork;
+    private ShareMarketServerImpl london;
+
+    @BeforeEach
+    void startMarkets() throws IOException {
+        london = TestMarkets.start("London", "London");
+        london.addShare("LONM1001", "Equity", 100);
+        londonRegistry = TestMarkets.registry(Topology.current().market("London").getPeerPort());
+        londonRegistry.rebind(Topology.peerBinding("London"), london);
+
+        newYork = TestMarkets.start("NewYork", "NewYork");
+        newYork.applyTopology(Topology.current());
+        newYork.addShare("NYKM1001", "Equity", 100);
+    }
+
+    @AfterEach
+    void stopMarkets() throws NoSuchObjectException {
+        TestMarkets.stop(newYork);
+        TestMarkets.stop(london);
+    }
+
+    private static OrderItem buy(String shareID, int quantity) {
+        return new OrderItem(shareID, "Equity", quantity, OrderItem.Side.BUY);
+    }
+
+    private static OrderItem sell(String shareID, int quantity) {
+        return new OrderItem(shareID, "Equity", quantity, OrderItem.Side.SELL);
+    }
+
+    @Test
+    void eachItemStandsOnItsOwn() {
+        List<String> results = newYork.placeOrders(BUYER, List.of(
+                buy("NYKM1001", 10), buy("NYKM1001", 1000), sell("NYKM1002", 1), buy("NYKM1001", 0),
+                sell("NYKM1001", 4)), false);
+
+        assertEquals(List.of(
+                "Purchase successful. You bought 10 of Equity-NYKM1001",
+                "Purchase failed. Not enough shares available.",
+                "Sell failed. You do not own this share.",
+                "Order failed. Quantity must be positive.",
+                "Sell operation successful. Sold 4 of Equity-NYKM1001"), results);
+        assertEquals(6, held(newYork, BUYER));
+        assertEquals(94, available(newYork, "NYKM1001"));
+    }
+
+    @Test
+    void localAllOrNothingUndoesTheItemsBeforeTheFailure() {
+        List<String> results = newYork.placeLocalOrders(BUYER, List.of(
+                buy("NYKM1001", 10), buy("NYKM1001", 1000), buy("NYKM1001", 5)), true, null);
+
+        assertEquals(List.of(
+                "Not executed. Batch aborted because item 2 failed.",
+                "Purchase failed. Not enough shares available.",
+                "Not executed. Batch aborted because item 2 failed."), results);
+        assertEquals(0, held(newYork, BUYER));
+        assertEquals(100, available(newYork, "NYKM1001"));
+    }
+
+    @Test
+    void itemsOfOtherMarketsAreSettledThere() {
+        List<String> results = newYork.placeOrders(BUYER, List.of(
+                buy("LONM1001", 7), buy("NYKM1001", 3), buy("LONM1001", 500)), false);
+
+        assertEquals(List.of(
+                "Purchase successful. You bought 7 of Equity-LONM1001",
+                "Purchase successful. You bought 3 of Equity-NYKM1001",
+                "Purchase failed. Not enough shares available."), results);
+        assertEquals(7, held(london, BUYER));
+        assertEquals(3, held(newYork, BUYER));
+    }
+
+    @Test
+    void itemsOfAMarketThatDoesNotAnswerAreUnknown() throws RemoteException, NotBoundException {
+        londonRegistry.unbind(Topology.peerBinding("London"));
+
+        List<String> results = newYork.placeOrders(BUYER, List.of(buy("LONM1001", 7), buy("NYKM1001", 3)), false);
+
+        assertEquals(List.of(
+                "Order failed. Market London is unavailable; outcome unknown.",
+                "Purchase successful. You bought 3 of Equity-NYKM1001"), results);
+        assertEquals(3, held(newYork, BUYER));
+    }
+}
@@ -0,0 +1,113 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static server.TestMarkets.available;
+import static server.TestMarkets.held;
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Purchases and sells racing on one share, without the server-wide monitor: capacity is
+// reserved by CAS and a buyer's sells are checked under their portfolio
+class ConcurrentTradeTest {
+
+    private static final String SHARE = "NYKM1001";
+    private static final int CAPACITY = 1000;
+    private static final int THREADS = 16;
+
+    private ShareMarketServerImpl market;
+
+    @BeforeEach
+    void startMarket() throws IOException {
+        market = TestMarkets.start("NewYork", "NewYork");
+        market.addShare(SHARE, "Equity", CAPACITY);
+    }
+
+    @AfterEach
+    void stopMarket() throws NoSuchObjectException {
+        TestMarkets.stop(market);
+    }
+
+    private static void race(Runnable task) throws InterruptedException {
+        ExecutorService threads = Executors.newFixedThreadPool(THREADS);
+        CountDownLatch start = new CountDownLatch(1);
+        for (int t = 0; t < THREADS; t++) {
+            threads.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                task.run();
+            });
+        }
+        start.countDown();
+        threads.shutdown();
+        assertTrue(threads.awaitTermination(5, TimeUnit.MINUTES));
+    }
+
+    @Test
+    void racingBuyersNeverOversell() throws InterruptedException {
+        AtomicInteger bought = new AtomicInteger();
+        AtomicInteger buyers = new AtomicInteger();
+        race(() -> {
+            String buyer = String.format("NYKB%04d", buyers.incrementAndGet());
+            // Each thread asks for more than its share, so together they ask for twice the capacity
+            for (int i = 0; i < 2 * CAPACITY / THREADS; i++) {
+                if (ShareMarketServerImpl.succeeded(market.purchaseShare(buyer, SHARE, "Equity", 1))) {
+                    bought.incrementAndGet();
+                }
+            }
+        });
+
+        assertEquals(CAPACITY, bought.get());
+        assertEquals(0, available(market, SHARE));
+        int held = 0;
+        for (int b = 1; b <= THREADS; b++) {
+            held += held(market, String.format("NYKB%04d", b));
+        }
+        assertEquals(CAPACITY, held);
+    }
+
+    @Test
+    void racingSellsNeverSellMoreThanHeld() throws InterruptedException {
+        assertTrue(ShareMarketServerImpl.succeeded(market.purchaseShare("NYKB1001", SHARE, "Equity", 100)));
+        AtomicInteger sold = new AtomicInteger();
+        race(() -> {
+            for (int i = 0; i < 50; i++) {
+                if (ShareMarketServerImpl.succeeded(market.sellShare("NYKB1001", SHARE, 1))) {
+                    sold.incrementAndGet();
+                }
+            }
+        });
+
+        assertEquals(100, sold.get());
+        assertEquals(0, held(market, "NYKB1001"));
+        assertEquals(CAPACITY, available(market, SHARE));
+    }
+
+    @Test
+    void nonPositiveQuantitiesAreRejected() {
+        assertTrue(ShareMarketServerImpl.succeeded(market.purchaseShare("NYKB1001", SHARE, "Equity", 10)));
+
+        assertEquals("Purchase failed. Quantity must be positive.", market.purchaseShare("NYKB1001", SHARE, "Equity", 0));
+        assertEquals("Purchase failed. Quantity must be positive.", market.purchaseShare("NYKB1001", SHARE, "Equity", -5));
+        assertEquals("Purchase failed. Quantity must be positive.",
+                market.purchaseLocalShare("NYKB1001", SHARE, "Equity", -5, null));
+        assertEquals("Sell failed. Quantity must be positive.", market.sellShare("NYKB1001", SHARE, -5));
+        assertEquals("Sell failed. Quantity must be positive.", market.sellLocalShare("NYKB1001", SHARE, 0, null));
+
+        assertEquals(10, held(market, "NYKB1001"));
+        assertEquals(CAPACITY - 10, available(market, SHARE));
+    }
+}
@@ -0,0 +1,86 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+import java.util.function.BooleanSupplier;
+
+// A market's peer side as the tests' coordinators see it: passes every call through, and
+// can fail commits before or after the market has run them, and lose the answers to
+// purchases and sells the market has run, or hold reserves back until a condition holds
+class FaultyPeer extends UnicastRemoteObject implements MarketPeer {
+    private static final long serialVersionUID = 1L;
+
+    enum Commit { OK, FAIL_BEFORE, FAIL_AFTER }
+
+    private final transient MarketPeer market;
+    volatile Commit commit = Commit.OK;
+    volatile boolean loseAnswers;
+    // Reserves wait up to a second for this, and fail if it never holds
+    volatile BooleanSupplier reserveOnceTrue = () -> true;
+
+    FaultyPeer(MarketPeer market) throws RemoteException {
+        super();
+        this.market = market;
+    }
+
+    @Override
+    public Holdings getLocalHoldings(String buyerID, TraceContext trace) throws RemoteException {
+        return market.getLocalHoldings(buyerID, trace);
+    }
+
+    @Override
+    public String purchaseLocalShare(String buyerID, String shareID, String shareType, int shareCount,
+                                     TraceContext trace) throws RemoteException {
+        return answer(market.purchaseLocalShare(buyerID, shareID, shareType, shareCount, trace));
+    }
+
+    @Override
+    public String sellLocalShare(String buyerID, String shareID, int shareCount, TraceContext trace)
+            throws RemoteException {
+        return answer(market.sellLocalShare(buyerID, shareID, shareCount, trace));
+    }
+
+    private String answer(String result) throws RemoteException {
+        if (loseAnswers) {
+            throw new RemoteException("The market went away before answering");
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> placeLocalOrders(String buyerID, List<OrderItem> items, boolean allOrNothing,
+                                         TraceContext trace) throws RemoteException {
+        return market.placeLocalOrders(buyerID, items, allOrNothing, trace);
+    }
+
+    @Override
+    public List<String> reserveOrders(String buyerID, List<OrderItem> items, long ttlMillis, TraceContext trace)
+            throws RemoteException {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (!reserveOnceTrue.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                throw new RemoteException("Gave up waiting to reserve");
+            }
+            Thread.onSpinWait();
+        }
+        return market.reserveOrders(buyerID, items, ttlMillis, trace);
+    }
+
+    @Override
+    public boolean commitReservations(List<String> reservationIDs, TraceContext trace) throws RemoteException {
+        if (commit == Commit.FAIL_BEFORE) {
+            throw new RemoteException("The market went away before the commit");
+        }
+        boolean committed = market.commitReservations(reservationIDs, trace);
+        if (commit == Commit.FAIL_AFTER) {
+            throw new RemoteException("The market went away before answering the commit");
+        }
+        return committed;
+    }
+
+    @Override
+    public boolean abortReservations(List<String> reservationIDs, TraceContext trace) throws RemoteException {
+        return market.abortReservations(reservationIDs, trace);
+    }
+}
@@ -0,0 +1,79 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// getShares asks every other market at once and merges what answers; Tokyo is in the
+// topology but never started, so it is always the one that does not
+class GetSharesTest {
+
+    private static final String BUYER = "NYKB1001";
+
+    private Registry londonRegistry;
+    private ShareMarketServerImpl newYork;
+    private ShareMarketServerImpl london;
+
+    @BeforeEach
+    void startMarkets() throws IOException {
+        london = TestMarkets.start("London", "London");
+        london.addShare("LONM1001", "Equity", 100);
+        londonRegistry = TestMarkets.registry(Topology.current().market("London").getPeerPort());
+        londonRegistry.rebind(Topology.peerBinding("London"), london);
+
+        newYork = TestMarkets.start("NewYork", "NewYork");
+        newYork.applyTopology(Topology.current());
+        newYork.addShare("NYKM1001", "Equity", 100);
+    }
+
+    @AfterEach
+    void stopMarkets() throws NoSuchObjectException {
+        TestMarkets.stop(newYork);
+        TestMarkets.stop(london);
+    }
+
+    @Test
+    void mergesEveryMarketThatAnswers() {
+        newYork.purchaseShare(BUYER, "NYKM1001", "Equity", 3);
+        london.purchaseShare(BUYER, "LONM1001", "Equity", 7);
+
+        String shares = newYork.getShares(BUYER);
+
+        assertEquals("Your Shares:\n"
+                + "NewYork Market Shares:\n[Share: Equity-NYKM1001, Owned: 3]\n\n"
+                + "London Market Shares:\n[Share: Equity-LONM1001, Owned: 7]\n\n"
+                + "(Markets not responding: Tokyo)", shares);
+    }
+
+    @Test
+    void marketsThatDoNotAnswerAreNamed() throws RemoteException, NotBoundException {
+        newYork.purchaseShare(BUYER, "NYKM1001", "Equity", 3);
+        london.purchaseShare(BUYER, "LONM1001", "Equity", 7);
+        londonRegistry.unbind(Topology.peerBinding("London"));
+
+        String shares = newYork.getShares(BUYER);
+
+        assertTrue(shares.startsWith("Your Shares:\nNewYork Market Shares:\n[Share: Equity-NYKM1001, Owned: 3]\n\n("),
+                shares);
+        assertTrue(shares.contains("London") && shares.contains("Tokyo"), shares);
+    }
+
+    @Test
+    void localHoldingsAreNeverForwarded() {
+        london.purchaseShare(BUYER, "LONM1001", "Equity", 7);
+
+        assertEquals(Map.of(), newYork.getLocalHoldings(BUYER, null).getMarkets());
+        assertEquals(Map.of("London", Map.of("Equity-LONM1001", 7)),
+                Map.copyOf(london.getLocalHoldings(BUYER, null).getMarkets()));
+    }
+}
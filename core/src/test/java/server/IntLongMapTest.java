@@ -0,0 +1,68 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+class IntLongMapTest {
+
+    // Random puts, adds and removes against a HashMap, over few enough keys that probe
+    // chains collide, grow and get shifted back by removals
+    @Test
+    void behavesLikeAHashMap() {
+        IntLongMap map = new IntLongMap(2);
+        Map<Integer, Long> expected = new HashMap<>();
+        Random random = new Random(11);
+
+        for (int op = 0; op < 200_000; op++) {
+            int key = random.nextInt(4096);
+            switch (random.nextInt(4)) {
+                case 0:
+                    long value = random.nextLong();
+                    map.put(key, value);
+                    expected.put(key, value);
+                    break;
+                case 1:
+                    long delta = random.nextInt(100);
+                    assertEquals(expected.merge(key, delta, Long::sum).longValue(), map.addTo(key, delta));
+                    break;
+                default:
+                    map.remove(key);
+                    expected.remove(key);
+                    break;
+            }
+            if (op % 1000 == 0) {
+                assertSame(expected, map);
+            }
+        }
+        assertSame(expected, map);
+    }
+
+    private static void assertSame(Map<Integer, Long> expected, IntLongMap map) {
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Integer, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().longValue(), map.get(entry.getKey()));
+        }
+        Map<Integer, Long> visited = new HashMap<>();
+        map.forEach(visited::put);
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    void absentKeysReadAsZero() {
+        IntLongMap map = new IntLongMap(4);
+        map.put(3, 0);
+
+        assertEquals(0, map.get(7));
+        assertFalse(map.containsKey(7));
+        assertTrue(map.containsKey(3));
+        map.remove(7);
+        assertEquals(1, map.size());
+    }
+}
@@ -0,0 +1,76 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class MpscRingTest {
+
+    // A capacity that is not a power of two, wrapped around many times
+    @Test
+    void keepsOrderAndBoundAcrossLaps() {
+        MpscRing<Integer> ring = new MpscRing<>(3);
+        int next = 0;
+        int expected = 0;
+        for (int lap = 0; lap < 100; lap++) {
+            while (ring.offer(next)) {
+                next++;
+            }
+            assertEquals(3, ring.size());
+            assertFalse(ring.offer(-1));
+            assertEquals(expected++, ring.poll().intValue());
+            assertEquals(expected++, ring.poll().intValue());
+        }
+        List<Integer> rest = new ArrayList<>();
+        assertEquals(1, ring.drainTo(rest, 10));
+        assertEquals(List.of(expected), rest);
+        assertNull(ring.poll());
+        assertTrue(ring.isEmpty());
+    }
+
+    // Producers racing each other and the consumer: every element arrives exactly once,
+    // and each producer's elements arrive in the order it offered them
+    @Test
+    void producersLoseAndRepeatNothing() throws InterruptedException {
+        int producers = 4;
+        int each = 50_000;
+        MpscRing<long[]> ring = new MpscRing<>(64);
+        ExecutorService threads = Executors.newFixedThreadPool(producers);
+        for (int p = 0; p < producers; p++) {
+            long producer = p;
+            threads.execute(() -> {
+                for (long i = 0; i < each; i++) {
+                    while (!ring.offer(new long[] {producer, i})) {
+                        Thread.yield();
+                    }
+                }
+            });
+        }
+        threads.shutdown();
+
+        long[] nextOf = new long[producers];
+        int received = 0;
+        long deadline = System.nanoTime() + TimeUnit.MINUTES.toNanos(1);
+        while (received < producers * each) {
+            assertTrue(System.nanoTime() < deadline, "only " + received + " received");
+            long[] element = ring.poll();
+            if (element == null) {
+                Thread.yield();
+                continue;
+            }
+            assertEquals(nextOf[(int) element[0]]++, element[1]);
+            received++;
+        }
+        assertTrue(threads.awaitTermination(1, TimeUnit.MINUTES));
+        assertNull(ring.poll());
+    }
+}
@@ -0,0 +1,69 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+class PortfolioTest {
+
+    @Test
+    void slotsAreInternedPerTypeAndID() {
+        HoldingSlots slots = new HoldingSlots();
+        int equity = slots.slotOf(new HoldingKey("Equity", "NYKM1001"));
+        int bonus = slots.slotOf(new HoldingKey("Bonus", "NYKM1001"));
+
+        assertEquals(equity, slots.slotOf(new HoldingKey("Equity", "NYKM1001")));
+        assertNotEquals(equity, bonus);
+        assertEquals(new HoldingKey("Bonus", "NYKM1001"), slots.keyOf(bonus));
+        assertEquals(2, slots.slotsOf("NYKM1001").length);
+        assertEquals(0, slots.slotsOf("NYKM9999").length);
+    }
+
+    @Test
+    void slotsGrowPastTheInitialTable() {
+        HoldingSlots slots = new HoldingSlots();
+        for (int i = 0; i < 5000; i++) {
+            assertEquals(i, slots.slotOf(new HoldingKey("Equity", "NYKM" + i)));
+        }
+        assertEquals(new HoldingKey("Equity", "NYKM4321"), slots.keyOf(4321));
+    }
+
+    @Test
+    void creditsAndDebits() {
+        HoldingSlots slots = new HoldingSlots();
+        Portfolio portfolio = new Portfolio(slots);
+        int slot = slots.slotOf(new HoldingKey("Equity", "NYKM1001"));
+        assertEquals(-1, portfolio.find("NYKM1001"));
+        assertFalse(portfolio.debit(slot, 1));
+
+        portfolio.credit(slot, 10);
+        portfolio.credit(slot, 5);
+        assertEquals(slot, portfolio.find("NYKM1001"));
+        assertFalse(portfolio.debit(slot, 16));
+        assertTrue(portfolio.debit(slot, 6));
+        assertEquals(Map.of("Equity-NYKM1001", 9), portfolio.snapshot());
+
+        // A position sold down to nothing is gone, not left at zero
+        assertTrue(portfolio.debit(slot, 9));
+        assertEquals(0, portfolio.size());
+        assertEquals(-1, portfolio.find("NYKM1001"));
+    }
+
+    @Test
+    void findsThePositionUnderWhicheverTypeItIsHeld() {
+        HoldingSlots slots = new HoldingSlots();
+        Portfolio portfolio = new Portfolio(slots);
+        slots.slotOf(new HoldingKey("Equity", "NYKM1001"));
+        int bonus = slots.slotOf(new HoldingKey("Bonus", "NYKM1001"));
+
+        portfolio.credit(bonus, 3);
+
+        assertEquals(bonus, portfolio.find("NYKM1001"));
+        assertEquals(Map.of(new HoldingKey("Bonus", "NYKM1001"), 3), portfolio.positions());
+    }
+}
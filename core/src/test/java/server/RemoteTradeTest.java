@@ -0,0 +1,103 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static server.TestMarkets.available;
+import static server.TestMarkets.held;
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// Purchases and sells NewYork forwards to London, whose peer side goes through a FaultyPeer:
+// a call London may have run is never reported as a plain failure
+class RemoteTradeTest {
+
+    private static final String BUYER = "NYKB1001";
+    private static final String LONDON_SHARE = "LONM1001";
+
+    private static Registry londonRegistry;
+
+    private ShareMarketServerImpl newYork;
+    private ShareMarketServerImpl london;
+    private FaultyPeer londonPeer;
+
+    @BeforeAll
+    static void createRegistry() throws RemoteException {
+        londonRegistry = TestMarkets.registry(Topology.current().market("London").getPeerPort());
+    }
+
+    @BeforeEach
+    void startMarkets() throws IOException {
+        london = TestMarkets.start("London", "London");
+        london.addShare(LONDON_SHARE, "Equity", 100);
+        londonPeer = new FaultyPeer(london);
+        londonRegistry.rebind(Topology.peerBinding("London"), londonPeer);
+
+        newYork = TestMarkets.start("NewYork", "NewYork");
+        newYork.applyTopology(Topology.current());
+    }
+
+    @AfterEach
+    void stopMarkets() throws NoSuchObjectException {
+        TestMarkets.stop(newYork);
+        TestMarkets.stop(london);
+        UnicastRemoteObject.unexportObject(londonPeer, true);
+    }
+
+    @Test
+    void purchaseWhoseAnswerIsLostIsReportedUnknown() {
+        londonPeer.loseAnswers = true;
+
+        String result = newYork.purchaseShare(BUYER, LONDON_SHARE, "Equity", 10);
+
+        assertTrue(ShareMarketServerImpl.outcomeUnknown(result), result);
+        // It did execute, which is why the buyer must not be told it failed
+        assertEquals(10, held(london, BUYER));
+        assertEquals(90, available(london, LONDON_SHARE));
+    }
+
+    @Test
+    void sellWhoseAnswerIsLostIsReportedUnknown() {
+        assertTrue(ShareMarketServerImpl.succeeded(london.purchaseShare(BUYER, LONDON_SHARE, "Equity", 10)));
+        londonPeer.loseAnswers = true;
+
+        String result = newYork.sellShare(BUYER, LONDON_SHARE, 10);
+
+        assertTrue(ShareMarketServerImpl.outcomeUnknown(result), result);
+        assertEquals(0, held(london, BUYER));
+    }
+
+    @Test
+    void marketNeverReachedIsAFailure() throws RemoteException, NotBoundException {
+        londonRegistry.unbind(Topology.peerBinding("London"));
+
+        String result = newYork.purchaseShare(BUYER, LONDON_SHARE, "Equity", 10);
+
+        assertEquals("Cross-server purchase failed. Market London is unavailable.", result);
+        assertFalse(ShareMarketServerImpl.outcomeUnknown(result));
+        assertEquals(100, available(london, LONDON_SHARE));
+    }
+
+    @Test
+    void forwardedCallsGetAShorterDeadlineThanTheirCaller() {
+        PeerMarkets<MarketPeer> peers = new PeerMarkets<>("NewYork", 3000, market -> null);
+        TraceContext client = TraceContext.newTrace(false);
+        TraceContext forwarded = client.nextHop().sibling();
+
+        assertEquals(3000, peers.deadlineMillis(null));
+        assertEquals(3000, peers.deadlineMillis(client));
+        assertEquals(1500, peers.deadlineMillis(forwarded));
+        assertEquals(750, peers.deadlineMillis(forwarded.nextHop()));
+        peers.shutdown();
+    }
+}
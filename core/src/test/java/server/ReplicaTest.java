@@ -0,0 +1,139 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// A ReplicaServer of an in-process NewYork, fed either by the primary's ReplicationStream
+// or by calling install and replicate directly
+class ReplicaTest {
+
+    // Where the stream finds the replica; nothing else in the tests listens here
+    private static final int REPLICA_PORT = 41300;
+    private static final int SHARES = 20;
+    private static final String[] BUYERS = {"NYKB3001", "NYKB3002", "NYKB3003", "NYKB3004"};
+
+    private static Registry replicaRegistry;
+
+    private ShareMarketServerImpl primary;
+    private ReplicaServer replica;
+    private ReplicationStream stream;
+
+    @BeforeAll
+    static void createRegistry() throws RemoteException {
+        replicaRegistry = TestMarkets.registry(REPLICA_PORT);
+    }
+
+    @BeforeEach
+    void startMarkets() throws IOException {
+        primary = TestMarkets.start("NewYork", "NewYork");
+        for (int i = 0; i < SHARES; i++) {
+            primary.addShare(shareID(i), "Equity", 1000);
+        }
+        replica = new ReplicaServer("NewYork", "NewYork-replica");
+        replicaRegistry.rebind("NewYork", replica);
+    }
+
+    @AfterEach
+    void stopMarkets() throws NoSuchObjectException {
+        if (stream != null) {
+            stream.close();
+        }
+        replica.close();
+        UnicastRemoteObject.unexportObject(replica, true);
+        TestMarkets.stop(primary);
+    }
+
+    private static String shareID(int index) {
+        return "NYKM" + (3000 + index);
+    }
+
+    private static List<String> lines(String response) {
+        List<String> lines = new ArrayList<>(Arrays.asList(response.split("\n")));
+        lines.sort(null);
+        return lines;
+    }
+
+    private boolean sameAsPrimary() throws RemoteException {
+        if (replica.stalenessMillis() == Long.MAX_VALUE
+                || !lines(replica.listShareAvailability("Equity")).equals(lines(primary.listShareAvailability("Equity")))) {
+            return false;
+        }
+        for (String buyer : BUYERS) {
+            if (!lines(replica.getShares(buyer)).equals(lines(primary.getShares(buyer)))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void trade(int rounds, int seed) {
+        for (int i = 0; i < rounds; i++) {
+            String buyer = BUYERS[(seed + i) % BUYERS.length];
+            String share = shareID((seed * 7 + i) % SHARES);
+            primary.purchaseShare(buyer, share, "Equity", 3);
+            if (i % 3 == 0) {
+                primary.sellShare(buyer, share, 1);
+            }
+        }
+    }
+
+    @Test
+    void catchesUpWithTradesRunningWhileItInstalls() throws Exception {
+        trade(200, 0);
+
+        // Commits made around the copy are both in it and shipped after it; the replica
+        // applies only those with an LSN past the copy's
+        stream = new ReplicationStream("NewYork", primary.getStore(),
+                List.of(new Topology.Endpoint("localhost", REPLICA_PORT)));
+        stream.start();
+        List<Thread> traders = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int seed = t + 1;
+            Thread trader = new Thread(() -> trade(300, seed));
+            traders.add(trader);
+            trader.start();
+        }
+        for (Thread trader : traders) {
+            trader.join();
+        }
+
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!sameAsPrimary()) {
+            assertTrue(System.currentTimeMillis() < deadline, "replica did not catch up: " + replica.stats());
+            Thread.sleep(20);
+        }
+    }
+
+    @Test
+    void reportsWhereItIsWhenCommitsAreMissing() throws IOException {
+        primary.purchaseShare(BUYERS[0], shareID(0), "Equity", 5);
+        byte[] state = primary.getStore().encodeState(() -> { });
+
+        // Nothing installed yet
+        assertEquals(-1, replica.replicate(1, 1, new byte[0], 1));
+
+        assertEquals(3, replica.install(state, 3));
+        // A gap, and a commit already applied, both answer with the last commit applied
+        assertEquals(3, replica.replicate(5, 5, new byte[0], 5));
+        assertEquals(3, replica.replicate(3, 3, new byte[0], 3));
+        // A heartbeat at the head makes it current, and reads are then answered here
+        assertEquals(3, replica.replicate(4, 3, new byte[0], 3));
+        assertTrue(replica.stalenessMillis() < 1000);
+        assertEquals(lines(primary.getShares(BUYERS[0])), lines(replica.getShares(BUYERS[0])));
+        assertTrue(replica.stats().contains("passed to primary: 0"), replica.stats());
+    }
+}
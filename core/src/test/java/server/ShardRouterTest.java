@@ -0,0 +1,140 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static server.TestMarkets.available;
+import static server.TestMarkets.held;
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// All-or-nothing batches a ShardRouter spreads over the two shards of Tokyo (see the test
+// topology), with the second shard's peer side failing around the commit
+class ShardRouterTest {
+
+    private static final String BUYER = "NYKB1001";
+
+    private static final List<Registry> registries = new ArrayList<>();
+    // One share on each shard
+    private static String first;
+    private static String second;
+
+    private final List<ShareMarketServerImpl> shards = new ArrayList<>();
+    private final List<FaultyPeer> shardPeers = new ArrayList<>();
+    private ShardRouter router;
+
+    @BeforeAll
+    static void createRegistries() throws RemoteException {
+        for (Topology.Shard shard : Topology.current().market("Tokyo").getShards()) {
+            registries.add(TestMarkets.registry(shard.getPeerPort()));
+        }
+        for (int n = 1000; first == null || second == null; n++) {
+            String shareID = "TOKM" + n;
+            if (ShardRouter.shardOf(shareID, 2) == 0) {
+                first = first != null ? first : shareID;
+            } else {
+                second = second != null ? second : shareID;
+            }
+        }
+    }
+
+    @BeforeEach
+    void startShards() throws IOException {
+        List<Topology.Shard> topology = Topology.current().market("Tokyo").getShards();
+        for (int i = 0; i < topology.size(); i++) {
+            String name = topology.get(i).getName();
+            ShareMarketServerImpl shard = TestMarkets.start("Tokyo", name);
+            FaultyPeer peer = new FaultyPeer(shard);
+            registries.get(i).rebind(Topology.peerBinding(name), peer);
+            shards.add(shard);
+            shardPeers.add(peer);
+        }
+        shards.get(0).addShare(first, "Equity", 100);
+        shards.get(1).addShare(second, "Equity", 100);
+        router = new ShardRouter(Topology.current().market("Tokyo"));
+    }
+
+    @AfterEach
+    void stopShards() throws NoSuchObjectException {
+        UnicastRemoteObject.unexportObject(router, true);
+        for (ShareMarketServerImpl shard : shards) {
+            TestMarkets.stop(shard);
+        }
+        for (FaultyPeer peer : shardPeers) {
+            UnicastRemoteObject.unexportObject(peer, true);
+        }
+    }
+
+    private static List<OrderItem> buyBoth() {
+        return List.of(new OrderItem(first, "Equity", 10, OrderItem.Side.BUY),
+                new OrderItem(second, "Equity", 10, OrderItem.Side.BUY));
+    }
+
+    private void assertNothingApplied() {
+        assertEquals(100, available(shards.get(0), first));
+        assertEquals(100, available(shards.get(1), second));
+        for (ShareMarketServerImpl shard : shards) {
+            assertEquals(0, held(shard, BUYER));
+            assertEquals(0, shard.getReservations().getPending());
+        }
+    }
+
+    @Test
+    void commitsOnEveryShard() {
+        List<String> results = router.placeLocalOrders(BUYER, buyBoth(), true, null);
+
+        for (String result : results) {
+            assertTrue(ShareMarketServerImpl.succeeded(result), result);
+        }
+        assertEquals(90, available(shards.get(0), first));
+        assertEquals(90, available(shards.get(1), second));
+    }
+
+    @Test
+    void shardLostBeforeCommitRollsBackTheOthers() {
+        shardPeers.get(1).commit = FaultyPeer.Commit.FAIL_BEFORE;
+
+        List<String> results = router.placeLocalOrders(BUYER, buyBoth(), true, null);
+
+        for (String result : results) {
+            assertTrue(result.startsWith("Not executed."), result);
+        }
+        assertNothingApplied();
+    }
+
+    @Test
+    void shardThatCommittedWithoutAnsweringIsRolledBack() {
+        shardPeers.get(1).commit = FaultyPeer.Commit.FAIL_AFTER;
+
+        List<String> results = router.placeLocalOrders(BUYER, buyBoth(), true, null);
+
+        for (String result : results) {
+            assertTrue(result.startsWith("Not executed."), result);
+        }
+        assertNothingApplied();
+    }
+
+    // As a market's peer side: false from commit means nothing was applied, and abort
+    // then says the batch was not committed even though one shard had committed its part
+    @Test
+    void failedCommitIsAllOrNothingForTheCoordinator() {
+        shardPeers.get(1).commit = FaultyPeer.Commit.FAIL_AFTER;
+        List<String> ids = router.reserveOrders(BUYER, buyBoth(), 60_000, null);
+        assertFalse(ids.contains(null));
+
+        assertFalse(router.commitReservations(ids, null));
+        assertFalse(router.abortReservations(ids, null));
+        assertNothingApplied();
+    }
+}
@@ -0,0 +1,78 @@
+package server;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.HashMap;
+import java.util.Map;
+
+// Markets started in-process for a test, each with a fresh data directory, and what the
+// tests read back from them
+final class TestMarkets {
+
+    // A port has one registry per JVM, so test classes share them
+    private static final Map<Integer, Registry> registries = new HashMap<>();
+
+    private TestMarkets() {
+    }
+
+    static synchronized Registry registry(int port) throws RemoteException {
+        Registry registry = registries.get(port);
+        if (registry == null) {
+            registry = LocateRegistry.createRegistry(port);
+            registries.put(port, registry);
+        }
+        return registry;
+    }
+
+    static ShareMarketServerImpl start(String city, String instance) throws IOException {
+        return start(city, instance, Files.createTempDirectory("dsms-test"));
+    }
+
+    // On an existing data directory, e.g. to recover what an earlier market left there
+    static ShareMarketServerImpl start(String city, String instance, Path data) throws RemoteException {
+        System.setProperty("dsms.store.dir", data.toString());
+        System.setProperty("dsms.store.fsync", "false");
+        System.setProperty("dsms.reservation.reapMs", "50");
+        return new ShareMarketServerImpl(city, instance, 0);
+    }
+
+    // As if the process died: nothing is snapshotted or flushed beyond what is durable
+    static void crash(ShareMarketServerImpl market) throws NoSuchObjectException {
+        market.getReservations().shutdown();
+        UnicastRemoteObject.unexportObject(market, true);
+    }
+
+    static void stop(ShareMarketServerImpl market) throws NoSuchObjectException {
+        market.getReservations().shutdown();
+        market.getStore().close();
+        market.getAuditLog().close();
+        UnicastRemoteObject.unexportObject(market, true);
+    }
+
+    static int available(ShareMarketServerImpl market, String shareID) {
+        for (Map<String, Share> shares : market.getShareDatabase().values()) {
+            Share share = shares.get(shareID);
+            if (share != null) {
+                return share.getAvailableCapacity();
+            }
+        }
+        throw new AssertionError(shareID + " not found");
+    }
+
+    // Units of every share the buyer holds in this market
+    static int held(ShareMarketServerImpl market, String buyerID) {
+        int units = 0;
+        for (Map<String, Integer> shares : market.getLocalHoldings(buyerID, null).getMarkets().values()) {
+            for (int quantity : shares.values()) {
+                units += quantity;
+            }
+        }
+        return units;
+    }
+}
@@ -0,0 +1,150 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static server.TestMarkets.available;
+import static server.TestMarkets.held;
+
+import java.io.IOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.RemoteException;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// All-or-nothing orders (placeOrders with allOrNothing) between an in-process NewYork, the
+// coordinator, and London, whose peer side goes through a FaultyPeer so London can be
+// made to fail around the commit
+class TwoPhaseOrderTest {
+
+    private static final String BUYER = "NYKB1001";
+    private static final String LONDON_SHARE = "LONM1001";
+    private static final String NEW_YORK_SHARE = "NYKM1001";
+
+    private static Registry londonRegistry;
+
+    private ShareMarketServerImpl newYork;
+    private ShareMarketServerImpl london;
+    private FaultyPeer londonPeer;
+
+    @BeforeAll
+    static void createRegistry() throws RemoteException {
+        londonRegistry = TestMarkets.registry(Topology.current().market("London").getPeerPort());
+    }
+
+    @BeforeEach
+    void startMarkets() throws IOException {
+        london = TestMarkets.start("London", "London");
+        london.addShare(LONDON_SHARE, "Equity", 100);
+        londonPeer = new FaultyPeer(london);
+        londonRegistry.rebind(Topology.peerBinding("London"), londonPeer);
+
+        newYork = TestMarkets.start("NewYork", "NewYork");
+        newYork.applyTopology(Topology.current());
+        newYork.addShare(NEW_YORK_SHARE, "Equity", 100);
+    }
+
+    @AfterEach
+    void stopMarkets() throws NoSuchObjectException {
+        TestMarkets.stop(newYork);
+        TestMarkets.stop(london);
+        UnicastRemoteObject.unexportObject(londonPeer, true);
+    }
+
+    private static List<OrderItem> buyBoth() {
+        return List.of(new OrderItem(NEW_YORK_SHARE, "Equity", 10, OrderItem.Side.BUY),
+                new OrderItem(LONDON_SHARE, "Equity", 10, OrderItem.Side.BUY));
+    }
+
+    private void assertNothingApplied() {
+        assertEquals(100, available(newYork, NEW_YORK_SHARE));
+        assertEquals(100, available(london, LONDON_SHARE));
+        assertEquals(0, held(newYork, BUYER));
+        assertEquals(0, held(london, BUYER));
+        assertEquals(0, london.getReservations().getPending());
+        assertEquals(0, newYork.getReservations().getPending());
+    }
+
+    @Test
+    void commitsOnEveryMarket() {
+        List<String> results = newYork.placeOrders(BUYER, buyBoth(), true);
+
+        for (String result : results) {
+            assertTrue(ShareMarketServerImpl.succeeded(result), result);
+        }
+        assertEquals(90, available(newYork, NEW_YORK_SHARE));
+        assertEquals(90, available(london, LONDON_SHARE));
+        assertEquals(10, held(newYork, BUYER));
+        assertEquals(10, held(london, BUYER));
+    }
+
+    // London only reserves once New York's own hold is in place, which it never would
+    // be if New York held its part after hearing back from London
+    @Test
+    void localPartIsHeldWhileThePeersHoldTheirs() {
+        londonPeer.reserveOnceTrue = () -> available(newYork, NEW_YORK_SHARE) == 90;
+
+        List<String> results = newYork.placeOrders(BUYER, buyBoth(), true);
+
+        for (String result : results) {
+            assertTrue(ShareMarketServerImpl.succeeded(result), result);
+        }
+        assertEquals(10, held(newYork, BUYER));
+        assertEquals(10, held(london, BUYER));
+    }
+
+    @Test
+    void marketLostBeforeCommitAppliesNothing() {
+        londonPeer.commit = FaultyPeer.Commit.FAIL_BEFORE;
+
+        List<String> results = newYork.placeOrders(BUYER, buyBoth(), true);
+
+        for (String result : results) {
+            assertFalse(ShareMarketServerImpl.succeeded(result), result);
+        }
+        assertNothingApplied();
+    }
+
+    @Test
+    void marketThatCommittedWithoutAnsweringIsRolledBack() {
+        londonPeer.commit = FaultyPeer.Commit.FAIL_AFTER;
+
+        List<String> results = newYork.placeOrders(BUYER, buyBoth(), true);
+
+        for (String result : results) {
+            assertFalse(ShareMarketServerImpl.succeeded(result), result);
+        }
+        assertTrue(results.get(1).startsWith("Rolled back."), results.get(1));
+        assertNothingApplied();
+    }
+
+    @Test
+    void expiredHoldFailsTheWholeBatch() throws InterruptedException {
+        OrderItem lasting = new OrderItem(LONDON_SHARE, "Equity", 10, OrderItem.Side.BUY);
+        OrderItem expiring = new OrderItem(LONDON_SHARE, "Equity", 5, OrderItem.Side.BUY);
+        List<String> ids = new ArrayList<>(london.reserveOrders(BUYER, List.of(lasting), 60_000, null));
+        ids.addAll(london.reserveOrders(BUYER, List.of(expiring), 1, null));
+        // Expired once its units are back
+        while (available(london, LONDON_SHARE) != 90) {
+            Thread.sleep(10);
+        }
+
+        assertFalse(london.commitReservations(ids, null));
+        assertEquals(0, held(london, BUYER));
+        assertEquals(90, available(london, LONDON_SHARE));
+
+        // The hold that had not expired is still there, and still settles on its own
+        assertEquals(1, london.getReservations().getPending());
+        assertFalse(london.abortReservations(ids.subList(0, 1), null));
+        assertEquals(100, available(london, LONDON_SHARE));
+        assertNull(london.getReservations().commit(ids.subList(0, 1)));
+    }
+}
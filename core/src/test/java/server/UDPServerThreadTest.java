@@ -0,0 +1,62 @@
+package server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+class UDPServerThreadTest {
+
+    private static final int PORT = 45300;
+
+    // One worker stuck on a listing and four requests queued behind it: the rest are
+    // dropped and counted rather than queued without bound, and the queued ones are still
+    // answered once the worker is free
+    @Test
+    void requestsPastTheQueueAreDroppedAndCounted() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger listings = new AtomicInteger();
+        UDPServerThread server = new UDPServerThread(PORT, null, shareType -> {
+            listings.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return List.of();
+        }, 1, 4);
+        server.setDaemon(true);
+        server.start();
+        try (DatagramSocket socket = new DatagramSocket()) {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            // Sent until some are dropped, as the first may arrive before the port is bound
+            for (int id = 1; server.getDropped() < 3; id++) {
+                assertTrue(System.nanoTime() < deadline, "nothing was dropped");
+                byte[] request = ("REQ " + id + " LIST_AVAILABILITY Equity").getBytes();
+                socket.send(new DatagramPacket(request, request.length, InetAddress.getLoopbackAddress(), PORT));
+                Thread.sleep(10);
+            }
+            assertEquals(1, listings.get());
+
+            release.countDown();
+            while (listings.get() < 5) {
+                assertTrue(System.nanoTime() < deadline, "queued requests were not answered");
+                Thread.sleep(10);
+            }
+            Thread.sleep(50);
+            assertEquals(5, listings.get());
+        } finally {
+            release.countDown();
+            server.interrupt();
+            server.join(5000);
+        }
+    }
+}
@@ -1,35 +1,66 @@
-package client;
-
-import java.util.HashMap;
-import java.util.Map;
-
-public class ClientMap {
-    // Mapping locations to RMI ports
-    private static final Map<String, Integer> SERVER_PORT_MAP = new HashMap<>();
-    private static final Map<String, String> SERVER_NAME_MAP = new HashMap<>();
-
-    static {
-        SERVER_PORT_MAP.put("NYK", 1099);
-        SERVER_PORT_MAP.put("LON", 1100);
-        SERVER_PORT_MAP.put("TOK", 1101);
-
-        SERVER_NAME_MAP.put("NYK", "NewYork");
-        SERVER_NAME_MAP.put("LON", "London");
-        SERVER_NAME_MAP.put("TOK", "Tokyo");
-    }
-
-    // Extract location from userID (adminID or buyerID)
-    public static String getLocation(String userID) {
-        if (userID.length() < 3) {
-            return null; // Invalid ID
-        }
-        String loc = userID.substring(0, 3); // Extract first 3 letters (NYK, LON, TOK)
-        return SERVER_NAME_MAP.getOrDefault(loc, null); // Convert to full name
-    }
-
-    // Get RMI port based on location
-    public static int getRMIPort(String userID) {
-        String loc = userID.substring(0, 3);
-        return SERVER_PORT_MAP.getOrDefault(loc, -1); // Return -1 if invalid
-    }
-}
+package client;
+
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.util.List;
+import server.ShareMarketServer;
+import server.Topology;
+
+public class ClientMap {
+    public interface Read<T> {
+        T from(ShareMarketServer market) throws RemoteException;
+    }
+
+    // Markets, their city codes and RMI endpoints come from the cluster topology
+    // (topology.properties, or the built-in NewYork/London/Tokyo layout)
+
+    // Extract location from userID (adminID or buyerID)
+    public static String getLocation(String userID) {
+        Topology.Market market = Topology.current().marketForID(userID);
+        return market != null ? market.getName() : null; // Convert to full name
+    }
+
+    // Get RMI port based on location
+    public static int getRMIPort(String userID) {
+        Topology.Market market = Topology.current().marketForID(userID);
+        return market != null ? market.getRmiPort() : -1; // Return -1 if invalid
+    }
+
+    // Get RMI host based on location
+    public static String getHost(String userID) {
+        Topology.Market market = Topology.current().marketForID(userID);
+        return market != null ? market.getHost() : null;
+    }
+
+    // Stub for read-only calls (getShares, listShareAvailability): one of the market's read
+    // replicas, always the same one for a user. Null if the market has none or it cannot
+    // be reached, in which case reads go to the market server like everything else.
+    public static ShareMarketServer getReadReplica(String userID) {
+        Topology.Market market = Topology.current().marketForID(userID);
+        if (market == null || market.getReplicas().isEmpty()) {
+            return null;
+        }
+        List<Topology.Endpoint> replicas = market.getReplicas();
+        Topology.Endpoint replica = replicas.get(Math.floorMod(userID.hashCode(), replicas.size()));
+        try {
+            return (ShareMarketServer) LocateRegistry.getRegistry(replica.getHost(), replica.getPort())
+                    .lookup(market.getName());
+        } catch (Exception e) {
+            System.out.println("Replica " + replica + " unavailable, reading from the " + market.getName() + " server.");
+            return null;
+        }
+    }
+
+    // Runs a read-only call on the replica and, if there is none or the call fails, on the
+    // market server instead; the server's own failure is passed on to the caller
+    public static <T> T read(ShareMarketServer replica, ShareMarketServer server, Read<T> read) throws RemoteException {
+        if (replica != null) {
+            try {
+                return read.from(replica);
+            } catch (RemoteException e) {
+                // The replica went away after the lookup; the market server has the same answer
+            }
+        }
+        return read.from(server);
+    }
+}
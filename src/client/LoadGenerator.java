@@ -0,0 +1,516 @@
+package client;
+
+import java.rmi.registry.LocateRegistry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import server.LatencyHistogram;
+import server.ShareMarketServer;
+import server.Topology;
+
+// Scripted stand-in for BuyerClient/AdminClient: simulates many buyers and admins of every
+// market at once against a running cluster and reports throughput and latency per
+// operation and per market. Users reach their own market's server exactly as the
+// interactive clients do (ClientMap, read replicas included), so requests take the same
+// paths as real ones:
+//
+//   purchase  buy 1 share of the buyer's own market             purchaseShare
+//   cross     buy 1 share of another market through one's own   purchaseRemoteShare
+//   sell      sell 1 share the buyer bought earlier in the run   sellShare
+//   view      the buyer's holdings in all markets               getShares
+//   list      an admin's availability listing of all markets    listShareAvailability
+//
+// A buyer with nothing bought yet purchases instead of selling. Shares are picked with
+// Zipf-distributed popularity. By default the load is closed-loop (a fixed number of
+// sessions, each waiting for its answer before the next request); with dsms.load.rate it
+// is open-loop (Poisson arrivals at a fixed rate, whether or not the servers keep up), and
+// latency then counts from when a request was due, so queueing in the generator shows.
+//
+// Settings (system properties):
+//   dsms.load.markets      markets to drive, comma-separated (every market of the topology)
+//   dsms.load.buyers       simulated buyers per market (1000)
+//   dsms.load.shares       Equity shares per market, added at start unless dsms.load.setup=false (1000)
+//   dsms.load.mix          operation weights (purchase=40,cross=10,sell=25,view=20,list=5)
+//   dsms.load.zipf         Zipf exponent of share popularity, 0 for uniform (0.99)
+//   dsms.load.concurrency  closed-loop sessions, or open-loop requests in flight at most (64)
+//   dsms.load.rate         open-loop arrivals per second; 0 for closed loop (0)
+//   dsms.load.thinkMs      closed-loop pause between a session's requests (0)
+//   dsms.load.warmupSec    run this long before measuring (5)
+//   dsms.load.durationSec  measure this long (30)
+//   dsms.load.reportSec    progress line period (5)
+//   dsms.load.seed         random seed (1)
+public class LoadGenerator {
+
+    private static final String SHARE_TYPE = "Equity";
+    // Shares a buyer remembers having bought, to sell later
+    private static final int HELD_LIMIT = 64;
+
+    enum Operation {
+        PURCHASE("purchase"), CROSS("cross"), SELL("sell"), VIEW("view"), LIST("list");
+
+        final String label;
+
+        Operation(String label) {
+            this.label = label;
+        }
+    }
+
+    private static final class Buyer {
+        final String buyerID;
+        final int market;
+        final ShareMarketServer server;
+        // Read replica, null if the market has none
+        final ShareMarketServer reads;
+        // Guarded by itself; one entry per share unit bought
+        final ArrayDeque<String> held = new ArrayDeque<>();
+
+        Buyer(String buyerID, int market, ShareMarketServer server, ShareMarketServer reads) {
+            this.buyerID = buyerID;
+            this.market = market;
+            this.server = server;
+            this.reads = reads;
+        }
+    }
+
+    // Share popularity: rank k (0-based) is drawn with probability proportional to 1/(k+1)^s
+    static final class Zipf {
+        private final double[] cumulative;
+
+        Zipf(int n, double exponent) {
+            cumulative = new double[n];
+            double sum = 0;
+            for (int k = 0; k < n; k++) {
+                sum += 1.0 / Math.pow(k + 1, exponent);
+                cumulative[k] = sum;
+            }
+            for (int k = 0; k < n; k++) {
+                cumulative[k] /= sum;
+            }
+        }
+
+        int next(SplittableRandom random) {
+            int index = Arrays.binarySearch(cumulative, random.nextDouble());
+            index = index >= 0 ? index : -index - 1;
+            return Math.min(index, cumulative.length - 1);
+        }
+    }
+
+    private final List<Topology.Market> markets = new ArrayList<>();
+    private final List<ShareMarketServer> servers = new ArrayList<>();
+    // Each market's read replica, null where it has none
+    private final List<ShareMarketServer> adminReads = new ArrayList<>();
+    private final List<Buyer> buyers = new ArrayList<>();
+
+    private final int buyersPerMarket = Integer.getInteger("dsms.load.buyers", 1000);
+    private final int sharesPerMarket = Integer.getInteger("dsms.load.shares", 1000);
+    private final int concurrency = Integer.getInteger("dsms.load.concurrency", 64);
+    private final double rate = Double.parseDouble(System.getProperty("dsms.load.rate", "0"));
+    private final long thinkMillis = Long.getLong("dsms.load.thinkMs", 0);
+    private final long warmupSeconds = Long.getLong("dsms.load.warmupSec", 5);
+    private final long durationSeconds = Long.getLong("dsms.load.durationSec", 30);
+    private final long reportSeconds = Long.getLong("dsms.load.reportSec", 5);
+    private final long seed = Long.getLong("dsms.load.seed", 1);
+
+    private final double[] mix;
+    private final Zipf popularity;
+
+    // Per operation and market; only requests issued after the warmup
+    private LatencyHistogram[][] latency;
+    private LongAdder[][] failed;
+    private LongAdder[][] errors;
+    private final LatencyHistogram interval = new LatencyHistogram();
+    private final Map<String, Boolean> reportedErrors = new ConcurrentHashMap<>();
+
+    private volatile long measureFrom = Long.MAX_VALUE;
+    private volatile long measureUntil = Long.MAX_VALUE;
+    private volatile ThreadPoolExecutor openLoopWorkers;
+
+    LoadGenerator() {
+        mix = parseMix(System.getProperty("dsms.load.mix", "purchase=40,cross=10,sell=25,view=20,list=5"));
+        popularity = new Zipf(sharesPerMarket, Double.parseDouble(System.getProperty("dsms.load.zipf", "0.99")));
+    }
+
+    // Weights by operation label; operations left out are not run
+    static double[] parseMix(String spec) {
+        double[] weights = new double[Operation.values().length];
+        for (String part : spec.split(",")) {
+            String[] entry = part.trim().split("=");
+            Operation operation = null;
+            for (Operation candidate : Operation.values()) {
+                if (candidate.label.equalsIgnoreCase(entry[0].trim())) {
+                    operation = candidate;
+                }
+            }
+            if (operation == null || entry.length != 2) {
+                throw new IllegalArgumentException("Bad dsms.load.mix entry '" + part + "'; use e.g. purchase=40,view=60");
+            }
+            weights[operation.ordinal()] = Double.parseDouble(entry[1].trim());
+        }
+        double sum = 0;
+        for (double weight : weights) {
+            sum += weight;
+        }
+        if (sum <= 0) {
+            throw new IllegalArgumentException("dsms.load.mix gives no operation any weight");
+        }
+        for (int i = 0; i < weights.length; i++) {
+            weights[i] /= sum;
+        }
+        return weights;
+    }
+
+    // Looks up every market the same way the clients do, through a made-up admin of each
+    void connect() throws Exception {
+        Topology topology = Topology.current();
+        String names = System.getProperty("dsms.load.markets");
+        if (names == null) {
+            markets.addAll(topology.markets());
+        } else {
+            for (String name : names.split(",")) {
+                Topology.Market market = topology.market(name.trim());
+                if (market == null) {
+                    throw new IllegalArgumentException("Unknown market " + name + "; the topology has " + topology.markets());
+                }
+                markets.add(market);
+            }
+        }
+
+        for (int m = 0; m < markets.size(); m++) {
+            String adminID = markets.get(m).getCode() + "A9999";
+            ShareMarketServer server = (ShareMarketServer) LocateRegistry
+                    .getRegistry(ClientMap.getHost(adminID), ClientMap.getRMIPort(adminID))
+                    .lookup(ClientMap.getLocation(adminID));
+            ShareMarketServer reads = ClientMap.getReadReplica(adminID);
+            servers.add(server);
+            adminReads.add(reads);
+
+            boolean replicated = !markets.get(m).getReplicas().isEmpty();
+            for (int i = 0; i < buyersPerMarket; i++) {
+                String buyerID = String.format("%sB%04d", markets.get(m).getCode(), i);
+                ShareMarketServer buyerReads = replicated ? ClientMap.getReadReplica(buyerID) : null;
+                buyers.add(new Buyer(buyerID, m, server, buyerReads));
+            }
+        }
+
+        int operations = Operation.values().length;
+        latency = new LatencyHistogram[operations][markets.size()];
+        failed = new LongAdder[operations][markets.size()];
+        errors = new LongAdder[operations][markets.size()];
+        for (int o = 0; o < operations; o++) {
+            for (int m = 0; m < markets.size(); m++) {
+                latency[o][m] = new LatencyHistogram();
+                failed[o][m] = new LongAdder();
+                errors[o][m] = new LongAdder();
+            }
+        }
+    }
+
+    static String shareID(Topology.Market market, int index) {
+        return market.getCode() + "M" + (100000 + index);
+    }
+
+    // Adds the catalogue through each market's admin; shares left from an earlier run stay as they are
+    void loadCatalogue() throws InterruptedException {
+        if (!Boolean.parseBoolean(System.getProperty("dsms.load.setup", "true"))) {
+            return;
+        }
+        long start = System.nanoTime();
+        ExecutorService loaders = Executors.newFixedThreadPool(concurrency);
+        LongAdder added = new LongAdder();
+        for (int m = 0; m < markets.size(); m++) {
+            Topology.Market market = markets.get(m);
+            ShareMarketServer server = servers.get(m);
+            for (int i = 0; i < sharesPerMarket; i++) {
+                String shareID = shareID(market, i);
+                loaders.execute(() -> {
+                    try {
+                        if (server.addShare(shareID, SHARE_TYPE, Integer.MAX_VALUE / 2).startsWith("Share added")) {
+                            added.increment();
+                        }
+                    } catch (Exception e) {
+                        reportError("addShare", e);
+                    }
+                });
+            }
+        }
+        loaders.shutdown();
+        loaders.awaitTermination(1, TimeUnit.HOURS);
+        System.out.println("Catalogue of " + sharesPerMarket + " shares in each of " + markets.size() + " markets ready ("
+                + added.sum() + " added) in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+    }
+
+    private Operation pickOperation(SplittableRandom random) {
+        double draw = random.nextDouble();
+        Operation[] operations = Operation.values();
+        for (Operation operation : operations) {
+            draw -= mix[operation.ordinal()];
+            if (draw < 0) {
+                return operation;
+            }
+        }
+        return operations[operations.length - 1];
+    }
+
+    // One request of the mix: picks the user and share, sends it and records the outcome
+    void issue(SplittableRandom random, long dueAt) {
+        Operation operation = pickOperation(random);
+        Buyer buyer = buyers.get(random.nextInt(buyers.size()));
+        int market = buyer.market;
+
+        String sold = null;
+        if (operation == Operation.SELL) {
+            synchronized (buyer.held) {
+                sold = buyer.held.pollFirst();
+            }
+            if (sold == null) {
+                operation = Operation.PURCHASE;
+            }
+        }
+        if (operation == Operation.CROSS && markets.size() < 2) {
+            operation = Operation.PURCHASE;
+        }
+
+        String bought = null;
+        String response;
+        try {
+            switch (operation) {
+                case PURCHASE:
+                    bought = shareID(markets.get(market), popularity.next(random));
+                    response = buyer.server.purchaseShare(buyer.buyerID, bought, SHARE_TYPE, 1);
+                    break;
+                case CROSS:
+                    int target = (market + 1 + random.nextInt(markets.size() - 1)) % markets.size();
+                    bought = shareID(markets.get(target), popularity.next(random));
+                    response = buyer.server.purchaseRemoteShare(buyer.buyerID, bought, SHARE_TYPE, 1,
+                            markets.get(target).getName());
+                    break;
+                case SELL:
+                    response = buyer.server.sellShare(buyer.buyerID, sold, 1);
+                    break;
+                case VIEW:
+                    response = ClientMap.read(buyer.reads, buyer.server, reads -> reads.getShares(buyer.buyerID));
+                    break;
+                default:
+                    market = random.nextInt(markets.size());
+                    response = ClientMap.read(adminReads.get(market), servers.get(market),
+                            reads -> reads.listShareAvailability(SHARE_TYPE));
+                    break;
+            }
+        } catch (Exception e) {
+            record(operation, market, dueAt, errors);
+            reportError(operation.label, e);
+            return;
+        }
+
+        boolean succeeded = response != null && !response.contains("failed") && !response.startsWith("Read-only");
+        if (bought != null && succeeded) {
+            synchronized (buyer.held) {
+                if (buyer.held.size() < HELD_LIMIT) {
+                    buyer.held.addLast(bought);
+                }
+            }
+        }
+        record(operation, market, dueAt, succeeded ? null : failed);
+    }
+
+    private void record(Operation operation, int market, long dueAt, LongAdder[][] outcome) {
+        long elapsed = System.nanoTime() - dueAt;
+        interval.record(elapsed);
+        if (dueAt < measureFrom || dueAt >= measureUntil) {
+            return;
+        }
+        latency[operation.ordinal()][market].record(elapsed);
+        if (outcome != null) {
+            outcome[operation.ordinal()][market].increment();
+        }
+    }
+
+    private void reportError(String operation, Exception e) {
+        String kind = operation + ": " + e.getClass().getSimpleName();
+        if (reportedErrors.putIfAbsent(kind, Boolean.TRUE) == null) {
+            System.out.println("First " + kind + " (" + e.getMessage() + "); further ones are only counted");
+        }
+    }
+
+    void run() throws InterruptedException {
+        long start = System.nanoTime();
+        measureFrom = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+        measureUntil = measureFrom + TimeUnit.SECONDS.toNanos(durationSeconds);
+        System.out.println((rate > 0 ? "Open loop at " + rate + " requests/s" : "Closed loop with " + concurrency + " sessions")
+                + " from " + buyers.size() + " buyers of " + markets.size() + " markets, warmup " + warmupSeconds
+                + "s, measuring " + durationSeconds + "s");
+
+        Thread progress = new Thread(this::reportProgress, "load-progress");
+        progress.setDaemon(true);
+        progress.start();
+
+        SplittableRandom seeds = new SplittableRandom(seed);
+        if (rate > 0) {
+            runOpenLoop(seeds);
+        } else {
+            runClosedLoop(seeds);
+        }
+        progress.interrupt();
+    }
+
+    private void runClosedLoop(SplittableRandom seeds) throws InterruptedException {
+        List<Thread> sessions = new ArrayList<>();
+        for (int i = 0; i < concurrency; i++) {
+            SplittableRandom random = seeds.split();
+            Thread session = new Thread(() -> {
+                while (System.nanoTime() < measureUntil) {
+                    issue(random, System.nanoTime());
+                    if (thinkMillis > 0) {
+                        try {
+                            Thread.sleep(thinkMillis);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            }, "load-session-" + i);
+            sessions.add(session);
+            session.start();
+        }
+        for (Thread session : sessions) {
+            session.join();
+        }
+    }
+
+    // Requests are due at Poisson arrival times; each worker thread keeps its own random
+    // stream, so the mix does not depend on which worker picks a request up
+    private void runOpenLoop(SplittableRandom seeds) throws InterruptedException {
+        ThreadLocal<SplittableRandom> randoms = ThreadLocal.withInitial(() -> {
+            synchronized (seeds) {
+                return seeds.split();
+            }
+        });
+        openLoopWorkers = new ThreadPoolExecutor(concurrency, concurrency, 0, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>());
+        SplittableRandom arrivals = seeds.split();
+        long due = System.nanoTime();
+        while (due < measureUntil) {
+            due += (long) (-Math.log(1 - arrivals.nextDouble()) / rate * 1_000_000_000L);
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            long dueAt = due;
+            openLoopWorkers.execute(() -> issue(randoms.get(), dueAt));
+        }
+        openLoopWorkers.shutdown();
+        if (!openLoopWorkers.awaitTermination(60, TimeUnit.SECONDS)) {
+            System.out.println("Dropping " + openLoopWorkers.getQueue().size() + " requests still queued after the run");
+            openLoopWorkers.shutdownNow();
+        }
+    }
+
+    private void reportProgress() {
+        long start = System.nanoTime();
+        long last = start;
+        while (true) {
+            try {
+                Thread.sleep(TimeUnit.SECONDS.toMillis(reportSeconds));
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            long count = interval.getCount();
+            String line = String.format(Locale.ROOT, "[%3ds] %s%.0f requests/s, p50 %.3fms, p99 %.3fms, max %.3fms",
+                    TimeUnit.NANOSECONDS.toSeconds(now - start), now < measureFrom ? "warmup " : "",
+                    count * 1e9 / (now - last), interval.valueAtPercentile(50) / 1e6,
+                    interval.valueAtPercentile(99) / 1e6, interval.getMax() / 1e6);
+            if (openLoopWorkers != null) {
+                line += ", queued " + openLoopWorkers.getQueue().size();
+            }
+            System.out.println(line);
+            interval.reset();
+            last = now;
+        }
+    }
+
+    void report() {
+        double seconds = durationSeconds;
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%-10s %-10s %10s %10s %8s %8s %9s %9s %9s %9s %9s",
+                "operation", "market", "requests", "per sec", "failed", "errors",
+                "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms"));
+
+        LatencyHistogram all = new LatencyHistogram();
+        long allFailed = 0;
+        long allErrors = 0;
+        LatencyHistogram[] byMarket = new LatencyHistogram[markets.size()];
+        for (int m = 0; m < markets.size(); m++) {
+            byMarket[m] = new LatencyHistogram();
+        }
+        long[] marketFailed = new long[markets.size()];
+        long[] marketErrors = new long[markets.size()];
+        for (Operation operation : Operation.values()) {
+            int o = operation.ordinal();
+            LatencyHistogram total = new LatencyHistogram();
+            long totalFailed = 0;
+            long totalErrors = 0;
+            for (int m = 0; m < markets.size(); m++) {
+                total.add(latency[o][m]);
+                totalFailed += failed[o][m].sum();
+                totalErrors += errors[o][m].sum();
+                byMarket[m].add(latency[o][m]);
+                marketFailed[m] += failed[o][m].sum();
+                marketErrors[m] += errors[o][m].sum();
+            }
+            if (total.getCount() == 0) {
+                continue;
+            }
+            printRow(operation.label, "all", total, totalFailed, totalErrors, seconds);
+            for (int m = 0; m < markets.size(); m++) {
+                if (latency[o][m].getCount() > 0) {
+                    printRow("", markets.get(m).getName(), latency[o][m], failed[o][m].sum(), errors[o][m].sum(), seconds);
+                }
+            }
+            all.add(total);
+            allFailed += totalFailed;
+            allErrors += totalErrors;
+        }
+        System.out.println();
+        for (int m = 0; m < markets.size(); m++) {
+            printRow("all", markets.get(m).getName(), byMarket[m],
+                    marketFailed[m], marketErrors[m], seconds);
+        }
+        printRow("all", "all", all, allFailed, allErrors, seconds);
+    }
+
+    private static void printRow(String operation, String market, LatencyHistogram histogram, long failed, long errors,
+                                 double seconds) {
+        System.out.println(String.format(Locale.ROOT, "%-10s %-10s %10d %10.1f %8d %8d %9.3f %9.3f %9.3f %9.3f %9.3f",
+                operation, market, histogram.getCount(), histogram.getCount() / seconds, failed, errors,
+                histogram.valueAtPercentile(50) / 1e6, histogram.valueAtPercentile(90) / 1e6,
+                histogram.valueAtPercentile(99) / 1e6, histogram.valueAtPercentile(99.9) / 1e6,
+                histogram.getMax() / 1e6));
+    }
+
+    public static void main(String[] args) {
+        try {
+            LoadGenerator generator = new LoadGenerator();
+            generator.connect();
+            generator.loadCatalogue();
+            generator.run();
+            generator.report();
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
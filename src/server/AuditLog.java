@@ -0,0 +1,302 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Server audit log. Request threads only enqueue a record; a single background writer
+// formats queued records in batches and appends them to <dir>/<city>_Server.log through
+// one open FileChannel. The queue is a bounded lock-free ring (MpscRing), so request
+// threads never contend on a lock to log while there is room. DROP discards whatever does
+// not fit; BLOCK waits on a monitor the writer signals each time it has made space, which
+// is the only place a lock is taken.
+//
+// Tunables (system properties):
+//   dsms.audit.enabled          true | false
+//   dsms.audit.dir              directory of the log file (logs)
+//   dsms.audit.capacity         max queued records before backpressure kicks in (65536)
+//   dsms.audit.backpressure     BLOCK (wait for space) | DROP (discard and count)
+//   dsms.audit.fsync            NONE | PER_BATCH | INTERVAL
+//   dsms.audit.fsyncIntervalMs  fsync period for INTERVAL (1000)
+public class AuditLog {
+
+    public enum FsyncPolicy { NONE, PER_BATCH, INTERVAL }
+
+    public enum Backpressure { BLOCK, DROP }
+
+    private static final DateTimeFormatter TIMESTAMP_FORMAT =
+            DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
+    private static final int MAX_BATCH = 1024;
+    // How long the idle writer, and a blocked record() once the log is closing, wait at a time
+    private static final long POLL_MS = 50;
+
+    private static final class Record {
+        final long timestamp;
+        final String requestType;
+        final String requestParams;
+        final boolean success;
+
+        Record(long timestamp, String requestType, String requestParams, boolean success) {
+            this.timestamp = timestamp;
+            this.requestType = requestType;
+            this.requestParams = requestParams;
+            this.success = success;
+        }
+    }
+
+    private final boolean enabled;
+    private final Backpressure backpressure;
+    private final FsyncPolicy fsyncPolicy;
+    private final long fsyncIntervalNanos;
+
+    private final MpscRing<Record> queue;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    // record() calls waiting on spaceFreed for the writer to make room
+    private final AtomicInteger blocked = new AtomicInteger();
+    private final Object spaceFreed = new Object();
+
+    private final FileChannel channel;
+    private final Thread writer;
+    private volatile boolean writerIdle;
+    private volatile boolean closed;
+
+    // Timestamps have one-second resolution, so the writer formats each second only once
+    private long cachedSecond = -1;
+    private String cachedTimestamp;
+
+    public AuditLog(String city) {
+        this(Paths.get(System.getProperty("dsms.audit.dir", "logs"), city + "_Server.log"),
+                Boolean.parseBoolean(System.getProperty("dsms.audit.enabled", "true")),
+                Integer.getInteger("dsms.audit.capacity", 65536),
+                Backpressure.valueOf(System.getProperty("dsms.audit.backpressure", "BLOCK")),
+                FsyncPolicy.valueOf(System.getProperty("dsms.audit.fsync", "NONE")),
+                Long.getLong("dsms.audit.fsyncIntervalMs", 1000));
+    }
+
+    public AuditLog(Path file, boolean enabled, int capacity, Backpressure backpressure,
+                    FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) {
+        this(file, enabled, capacity, backpressure, fsyncPolicy, fsyncIntervalMillis, true);
+    }
+
+    // Without startWriter nothing is written until startWriter() is called, so tests can fill the queue
+    AuditLog(Path file, boolean enabled, int capacity, Backpressure backpressure,
+             FsyncPolicy fsyncPolicy, long fsyncIntervalMillis, boolean startWriter) {
+        this.enabled = enabled;
+        this.queue = new MpscRing<>(capacity);
+        this.backpressure = backpressure;
+        this.fsyncPolicy = fsyncPolicy;
+        this.fsyncIntervalNanos = TimeUnit.MILLISECONDS.toNanos(fsyncIntervalMillis);
+
+        FileChannel opened = null;
+        if (enabled) {
+            try {
+                if (file.getParent() != null) {
+                    Files.createDirectories(file.getParent());
+                }
+                opened = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        this.channel = opened;
+
+        this.writer = new Thread(this::drainLoop, "audit-" + file.getFileName());
+        this.writer.setDaemon(true);
+        if (startWriter) {
+            startWriter();
+        }
+    }
+
+    synchronized void startWriter() {
+        if (channel != null && writer.getState() == Thread.State.NEW) {
+            writer.start();
+        }
+    }
+
+    public void record(String requestType, String requestParams, boolean success) {
+        if (channel == null || closed) {
+            return;
+        }
+        enqueue(new Record(System.currentTimeMillis(), requestType, requestParams, success));
+    }
+
+    // Enqueues one record per entry, all with the same timestamp
+    public void recordAll(String requestType, List<String> requestParams, boolean[] success) {
+        if (channel == null || closed) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < requestParams.size(); i++) {
+            enqueue(new Record(now, requestType, requestParams.get(i), success[i]));
+        }
+    }
+
+    private void enqueue(Record record) {
+        if (!queue.offer(record) && (backpressure == Backpressure.DROP || !awaitSpace(record))) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (writerIdle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    // BLOCK with the queue full: waits for space, but gives up once the log is closed (the
+    // writer may be gone) or the caller is interrupted. Counting itself in blocked before
+    // trying again means a writer that drains after that try sees it and signals.
+    private boolean awaitSpace(Record record) {
+        blocked.incrementAndGet();
+        try {
+            synchronized (spaceFreed) {
+                while (!queue.offer(record)) {
+                    if (closed) {
+                        return false;
+                    }
+                    spaceFreed.wait(POLL_MS);
+                }
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            blocked.decrementAndGet();
+        }
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public long getWritten() {
+        return written.get();
+    }
+
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    private void drainLoop() {
+        StringBuilder batch = new StringBuilder(64 * 1024);
+        List<Record> records = new ArrayList<>(MAX_BATCH);
+        long lastSync = System.nanoTime();
+        boolean unsynced = false;
+
+        while (!closed || !queue.isEmpty()) {
+            // Waits for the first record, then takes whatever else is already queued
+            Record first = queue.poll();
+            if (first == null) {
+                writerIdle = true;
+                if (!queue.isEmpty()) {
+                    // A record is claimed but not yet published; let its producer finish
+                    Thread.yield();
+                } else if (!closed) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(POLL_MS));
+                }
+                writerIdle = false;
+                if (unsynced && fsyncPolicy == FsyncPolicy.INTERVAL
+                        && System.nanoTime() - lastSync >= fsyncIntervalNanos) {
+                    force();
+                    lastSync = System.nanoTime();
+                    unsynced = false;
+                }
+                continue;
+            }
+
+            records.add(first);
+            queue.drainTo(records, MAX_BATCH - 1);
+            if (blocked.get() > 0) {
+                synchronized (spaceFreed) {
+                    spaceFreed.notifyAll();
+                }
+            }
+            for (Record record : records) {
+                append(batch, record);
+            }
+            int count = records.size();
+            records.clear();
+            write(batch);
+            batch.setLength(0);
+            written.addAndGet(count);
+            unsynced = true;
+
+            if (fsyncPolicy == FsyncPolicy.PER_BATCH
+                    || (fsyncPolicy == FsyncPolicy.INTERVAL && System.nanoTime() - lastSync >= fsyncIntervalNanos)) {
+                force();
+                lastSync = System.nanoTime();
+                unsynced = false;
+            }
+        }
+    }
+
+    private void append(StringBuilder batch, Record record) {
+        long second = record.timestamp / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            cachedTimestamp = TIMESTAMP_FORMAT.format(Instant.ofEpochSecond(second));
+        }
+        batch.append('[').append(cachedTimestamp).append("] ").append(record.requestType)
+             .append(" | Params: ").append(record.requestParams)
+             .append(" | Status: ").append(record.success ? "Successfully Completed" : "Failed")
+             .append('\n');
+    }
+
+    private void write(StringBuilder batch) {
+        ByteBuffer bytes = StandardCharsets.UTF_8.encode(batch.toString());
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void force() {
+        try {
+            channel.force(false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Flushes everything still queued and closes the file
+    public void close() {
+        if (channel == null || closed) {
+            return;
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+            if (fsyncPolicy != FsyncPolicy.NONE) {
+                force();
+            }
+            channel.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
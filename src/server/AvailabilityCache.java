@@ -0,0 +1,55 @@
+package server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+// Encoded availability listing per share type, reused across UDP requests until a
+// mutation of that type (add, remove, purchase, sell) bumps the type's version.
+public class AvailabilityCache {
+
+    private static final class Snapshot {
+        final long version;
+        final List<byte[]> frames;
+
+        Snapshot(long version, List<byte[]> frames) {
+            this.version = version;
+            this.frames = frames;
+        }
+    }
+
+    private final Map<String, AtomicLong> versions = new ConcurrentHashMap<>();
+    private final Map<String, Snapshot> snapshots = new ConcurrentHashMap<>();
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong rebuilds = new AtomicLong();
+
+    public void invalidate(String typeKey) {
+        versions.computeIfAbsent(typeKey, key -> new AtomicLong()).incrementAndGet();
+    }
+
+    // Frames for the type, stamped with requestID; re-encoded only if the type changed
+    public List<byte[]> frames(String typeKey, long requestID, Supplier<Iterable<Share>> shares) {
+        long version = versions.computeIfAbsent(typeKey, key -> new AtomicLong()).get();
+        Snapshot snapshot = snapshots.get(typeKey);
+        if (snapshot != null && snapshot.version == version) {
+            hits.incrementAndGet();
+        } else {
+            // Encoded against the version read above, so a mutation that races with the
+            // encoding leaves a snapshot that is already stale and gets rebuilt next time
+            rebuilds.incrementAndGet();
+            snapshot = new Snapshot(version, AvailabilityCodec.encode(0, shares.get()));
+            snapshots.put(typeKey, snapshot);
+        }
+        return AvailabilityCodec.withRequestID(snapshot.frames, requestID);
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getRebuilds() {
+        return rebuilds.get();
+    }
+}
@@ -0,0 +1,152 @@
+package server;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+// Binary, paginated encoding of UDP availability replies. A listing is split into as
+// many datagrams as it needs; every frame carries the request ID, its sequence number,
+// the total frame count and the total record count so the client can reassemble it.
+//
+// Frame: byte MAGIC | long requestID | int seq | int totalFrames | int totalRecords |
+//        int recordCount | recordCount x (short idLen, id, short typeLen, type, int available)
+public final class AvailabilityCodec {
+
+    public static final byte MAGIC = (byte) 0xA7;
+    public static final int MAX_FRAME = 60000;
+    private static final int HEADER_SIZE = 1 + 8 + 4 + 4 + 4 + 4;
+    private static final int TOTAL_FRAMES_OFFSET = 1 + 8 + 4;
+
+    public static final class Entry {
+        private final String shareID;
+        private final String shareType;
+        private final int available;
+
+        public Entry(String shareID, String shareType, int available) {
+            this.shareID = shareID;
+            this.shareType = shareType;
+            this.available = available;
+        }
+
+        public String getShareID() {
+            return shareID;
+        }
+
+        public String getShareType() {
+            return shareType;
+        }
+
+        public int getAvailable() {
+            return available;
+        }
+    }
+
+    // Decoded frame header plus the raw record section
+    public static final class Frame {
+        final long requestID;
+        final int seq;
+        final int totalFrames;
+        final int totalRecords;
+        final int recordCount;
+        final ByteBuffer records;
+
+        private Frame(long requestID, int seq, int totalFrames, int totalRecords, int recordCount, ByteBuffer records) {
+            this.requestID = requestID;
+            this.seq = seq;
+            this.totalFrames = totalFrames;
+            this.totalRecords = totalRecords;
+            this.recordCount = recordCount;
+            this.records = records;
+        }
+    }
+
+    private AvailabilityCodec() {
+    }
+
+    public static List<byte[]> encode(long requestID, Iterable<Share> shares) {
+        List<byte[]> frames = new ArrayList<>();
+        ByteBuffer frame = ByteBuffer.allocate(MAX_FRAME);
+        int recordsInFrame = 0;
+        int totalRecords = 0;
+        startFrame(frame, requestID, 0);
+
+        for (Share share : shares) {
+            byte[] id = share.getShareID().getBytes(StandardCharsets.UTF_8);
+            byte[] type = share.getShareType().getBytes(StandardCharsets.UTF_8);
+            int recordSize = 2 + id.length + 2 + type.length + 4;
+            if (frame.remaining() < recordSize) {
+                frames.add(finishFrame(frame, recordsInFrame));
+                startFrame(frame, requestID, frames.size());
+                recordsInFrame = 0;
+            }
+            frame.putShort((short) id.length).put(id)
+                 .putShort((short) type.length).put(type)
+                 .putInt(share.getAvailableCapacity());
+            recordsInFrame++;
+            totalRecords++;
+        }
+        frames.add(finishFrame(frame, recordsInFrame));
+
+        // Patch the totals now that the listing is complete
+        for (byte[] encoded : frames) {
+            ByteBuffer header = ByteBuffer.wrap(encoded);
+            header.putInt(TOTAL_FRAMES_OFFSET, frames.size());
+            header.putInt(TOTAL_FRAMES_OFFSET + 4, totalRecords);
+        }
+        return frames;
+    }
+
+    // Copies of the frames with a different request ID in their headers
+    public static List<byte[]> withRequestID(List<byte[]> frames, long requestID) {
+        List<byte[]> stamped = new ArrayList<>(frames.size());
+        for (byte[] frame : frames) {
+            byte[] copy = frame.clone();
+            ByteBuffer.wrap(copy).putLong(1, requestID);
+            stamped.add(copy);
+        }
+        return stamped;
+    }
+
+    private static void startFrame(ByteBuffer frame, long requestID, int seq) {
+        frame.clear();
+        frame.put(MAGIC).putLong(requestID).putInt(seq).putInt(0).putInt(0).putInt(0);
+    }
+
+    private static byte[] finishFrame(ByteBuffer frame, int recordCount) {
+        frame.putInt(HEADER_SIZE - 4, recordCount);
+        byte[] encoded = new byte[frame.position()];
+        frame.flip();
+        frame.get(encoded);
+        return encoded;
+    }
+
+    public static boolean isFrame(ByteBuffer datagram) {
+        return datagram.remaining() >= HEADER_SIZE && datagram.get(datagram.position()) == MAGIC;
+    }
+
+    public static Frame decodeHeader(ByteBuffer datagram) {
+        datagram.get(); // MAGIC
+        long requestID = datagram.getLong();
+        int seq = datagram.getInt();
+        int totalFrames = datagram.getInt();
+        int totalRecords = datagram.getInt();
+        int recordCount = datagram.getInt();
+        return new Frame(requestID, seq, totalFrames, totalRecords, recordCount, datagram.slice());
+    }
+
+    public static void decodeRecords(Frame frame, List<Entry> into) {
+        ByteBuffer records = frame.records.duplicate();
+        for (int i = 0; i < frame.recordCount; i++) {
+            String shareID = readString(records);
+            String shareType = readString(records);
+            into.add(new Entry(shareID, shareType, records.getInt()));
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xffff];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,50 @@
+package server;
+
+import java.io.Serializable;
+
+// Identifies a position by (share type, share ID). Each Share owns one instance, so the
+// purchase path reuses it instead of concatenating "type-ID" strings per call.
+public final class HoldingKey implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String shareType;
+    private final String shareID;
+    private final int hash;
+
+    public HoldingKey(String shareType, String shareID) {
+        this.shareType = shareType;
+        this.shareID = shareID;
+        this.hash = 31 * ShareMarketServerImpl.typeKey(shareType).hashCode() + shareID.hashCode();
+    }
+
+    public String getShareType() {
+        return shareType;
+    }
+
+    public String getShareID() {
+        return shareID;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof HoldingKey)) {
+            return false;
+        }
+        HoldingKey key = (HoldingKey) other;
+        return hash == key.hash && shareID.equals(key.shareID) && shareType.equalsIgnoreCase(key.shareType);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    // Display form used in holdings listings, e.g. "Equity-NYKM100125"
+    @Override
+    public String toString() {
+        return shareType + "-" + shareID;
+    }
+}
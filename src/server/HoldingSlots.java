@@ -0,0 +1,55 @@
+package server;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Interns each (share type, share ID) a buyer can hold as a dense int slot, so portfolios
+// can key their quantities by int. Slots are never reused within a run; lookups of
+// known keys are plain map reads and allocate nothing.
+public class HoldingSlots {
+
+    private static final int[] NONE = new int[0];
+
+    private final Map<HoldingKey, Integer> slots = new ConcurrentHashMap<>();
+    // A share ID normally has one slot; more only if it exists under several types
+    private final Map<String, int[]> slotsByShareID = new ConcurrentHashMap<>();
+    private volatile HoldingKey[] keys = new HoldingKey[1024];
+    private int next;
+
+    public int slotOf(HoldingKey key) {
+        Integer slot = slots.get(key);
+        return slot != null ? slot : intern(key);
+    }
+
+    private synchronized int intern(HoldingKey key) {
+        Integer existing = slots.get(key);
+        if (existing != null) {
+            return existing;
+        }
+
+        int slot = next++;
+        HoldingKey[] current = keys;
+        if (slot == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[slot] = key;
+        keys = current;
+
+        int[] sameID = slotsByShareID.getOrDefault(key.getShareID(), NONE);
+        int[] updated = Arrays.copyOf(sameID, sameID.length + 1);
+        updated[sameID.length] = slot;
+        slotsByShareID.put(key.getShareID(), updated);
+        // Published last, so a reader that finds the slot also finds its key
+        slots.put(key, slot);
+        return slot;
+    }
+
+    public HoldingKey keyOf(int slot) {
+        return keys[slot];
+    }
+
+    public int[] slotsOf(String shareID) {
+        return slotsByShareID.getOrDefault(shareID, NONE);
+    }
+}
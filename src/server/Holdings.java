@@ -0,0 +1,98 @@
+package server;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// A buyer's holdings grouped by market: market -> "shareType-shareID" -> quantity.
+// Used for server-to-server aggregation; getShares only formats it for display.
+public class Holdings implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private transient Map<String, Map<String, Integer>> markets = new LinkedHashMap<>();
+
+    // Adds to what is already recorded for the market, so the partitions of a sharded
+    // market can be put one after the other
+    public void put(String market, Map<String, Integer> shares) {
+        if (shares != null && !shares.isEmpty()) {
+            Map<String, Integer> existing = markets.computeIfAbsent(market, name -> new LinkedHashMap<>());
+            shares.forEach((share, quantity) -> existing.merge(share, quantity, Integer::sum));
+        }
+    }
+
+    public void putAll(Holdings other) {
+        for (Map.Entry<String, Map<String, Integer>> entry : other.markets.entrySet()) {
+            put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public Map<String, Map<String, Integer>> getMarkets() {
+        return markets;
+    }
+
+    public boolean isEmpty() {
+        return markets.isEmpty();
+    }
+
+    // Renders the holdings the way getShares has always shown them to buyers
+    public String format(List<String> unavailableMarkets) {
+        String unavailableNote = unavailableMarkets.isEmpty() ? ""
+                : "\n(Markets not responding: " + String.join(", ", unavailableMarkets) + ")";
+        if (markets.isEmpty()) {
+            return "You do not own any shares in any market." + unavailableNote;
+        }
+
+        StringBuilder result = new StringBuilder("Your Shares:\n");
+        boolean first = true;
+        for (Map.Entry<String, Map<String, Integer>> market : markets.entrySet()) {
+            if (!first) {
+                result.append("\n"); // Add spacing between markets
+            }
+            result.append(market.getKey()).append(" Market Shares:\n");
+            for (Map.Entry<String, Integer> entry : market.getValue().entrySet()) {
+                result.append("[Share: ").append(entry.getKey())
+                      .append(", Owned: ").append(entry.getValue()).append("]\n");
+            }
+            first = false;
+        }
+        return result.toString() + unavailableNote;
+    }
+
+    @Override
+    public String toString() {
+        return format(List.of());
+    }
+
+    // Written as plain counts, UTF strings and ints rather than serialized map objects
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeInt(markets.size());
+        for (Map.Entry<String, Map<String, Integer>> market : markets.entrySet()) {
+            out.writeUTF(market.getKey());
+            out.writeInt(market.getValue().size());
+            for (Map.Entry<String, Integer> entry : market.getValue().entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue());
+            }
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        markets = new LinkedHashMap<>();
+        int marketCount = in.readInt();
+        for (int i = 0; i < marketCount; i++) {
+            String market = in.readUTF();
+            int shareCount = in.readInt();
+            Map<String, Integer> shares = new LinkedHashMap<>();
+            for (int j = 0; j < shareCount; j++) {
+                shares.put(in.readUTF(), in.readInt());
+            }
+            markets.put(market, shares);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package server;
+
+import java.util.Arrays;
+
+// Open-addressing map from non-negative int keys to long values. Keys and values sit in
+// two parallel arrays, so lookups and updates never box and never allocate unless the
+// table has to grow. Not thread-safe; callers provide their own locking.
+public class IntLongMap {
+
+    public interface Visitor {
+        void visit(int key, long value);
+    }
+
+    private static final int FREE = -1;
+
+    private int[] keys;
+    private long[] values;
+    private int mask;
+    private int size;
+
+    public IntLongMap(int expected) {
+        int capacity = Integer.highestOneBit(Math.max(4, expected) * 2 - 1) << 1;
+        keys = new int[capacity];
+        values = new long[capacity];
+        Arrays.fill(keys, FREE);
+        mask = capacity - 1;
+    }
+
+    private int indexOf(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    // Value for key, or 0 if absent
+    public long get(int key) {
+        for (int i = indexOf(key); ; i = (i + 1) & mask) {
+            int k = keys[i];
+            if (k == key) {
+                return values[i];
+            }
+            if (k == FREE) {
+                return 0;
+            }
+        }
+    }
+
+    public boolean containsKey(int key) {
+        for (int i = indexOf(key); ; i = (i + 1) & mask) {
+            int k = keys[i];
+            if (k == key) {
+                return true;
+            }
+            if (k == FREE) {
+                return false;
+            }
+        }
+    }
+
+    public void put(int key, long value) {
+        for (int i = indexOf(key); ; i = (i + 1) & mask) {
+            int k = keys[i];
+            if (k == key) {
+                values[i] = value;
+                return;
+            }
+            if (k == FREE) {
+                keys[i] = key;
+                values[i] = value;
+                if (++size * 4 > keys.length * 3) {
+                    grow();
+                }
+                return;
+            }
+        }
+    }
+
+    // Adds delta to the key's value (starting from 0) and returns the new value
+    public long addTo(int key, long delta) {
+        for (int i = indexOf(key); ; i = (i + 1) & mask) {
+            int k = keys[i];
+            if (k == key) {
+                return values[i] += delta;
+            }
+            if (k == FREE) {
+                keys[i] = key;
+                values[i] = delta;
+                if (++size * 4 > keys.length * 3) {
+                    grow();
+                }
+                return delta;
+            }
+        }
+    }
+
+    public void remove(int key) {
+        int i = indexOf(key);
+        while (keys[i] != key) {
+            if (keys[i] == FREE) {
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+
+        // Backward-shift deletion keeps probe chains intact without tombstones
+        int gap = i;
+        for (int j = (gap + 1) & mask; keys[j] != FREE; j = (j + 1) & mask) {
+            int home = indexOf(keys[j]);
+            if (((j - home) & mask) >= ((j - gap) & mask)) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        keys[gap] = FREE;
+        values[gap] = 0;
+        size--;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void forEach(Visitor visitor) {
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != FREE) {
+                visitor.visit(keys[i], values[i]);
+            }
+        }
+    }
+
+    private void grow() {
+        int[] oldKeys = keys;
+        long[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new long[oldKeys.length * 2];
+        Arrays.fill(keys, FREE);
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != FREE) {
+                for (int j = indexOf(oldKeys[i]); ; j = (j + 1) & mask) {
+                    if (keys[j] == FREE) {
+                        keys[j] = oldKeys[i];
+                        values[j] = oldValues[i];
+                        break;
+                    }
+                }
+            }
+        }
+    }
+}
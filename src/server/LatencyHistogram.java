@@ -0,0 +1,123 @@
+package server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+// Lock-free latency histogram in nanoseconds, laid out like an HdrHistogram: every power of
+// two is split into 128 equal buckets, so any recorded value is reported to within 1% at
+// any magnitude, from nanoseconds to minutes, in a fixed 7296-bucket array. Recording is a
+// single atomic increment and may run on any number of threads; reads see a consistent
+// enough picture for reporting without stopping the writers.
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 7;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values below 2 * SUB_BUCKETS get a bucket each; above that one row of SUB_BUCKETS
+    // buckets per power of two, up to 2^63
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder total = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long nanos) {
+        long value = Math.max(nanos, 0);
+        counts.incrementAndGet(bucketOf(value));
+        count.increment();
+        total.add(value);
+        long previous;
+        while (value > (previous = max.get()) && !max.compareAndSet(previous, value)) {
+            // Lost a race with a larger or equal value; retry against it
+        }
+    }
+
+    static int bucketOf(long value) {
+        int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        return (shift << SUB_BUCKET_BITS) + (int) (value >>> shift);
+    }
+
+    // Midpoint of the range of values that land in the bucket
+    static long valueOf(int bucket) {
+        if (bucket < 2 * SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BUCKET_BITS) - 1;
+        long lowest = (long) (SUB_BUCKETS + (bucket & (SUB_BUCKETS - 1))) << shift;
+        return lowest + ((1L << shift) >>> 1);
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getMax() {
+        return max.get();
+    }
+
+    public double getMean() {
+        long n = count.sum();
+        return n == 0 ? 0 : (double) total.sum() / n;
+    }
+
+    // Smallest recorded value (to within 1%) that percentile percent of the values do not exceed
+    public long valueAtPercentile(double percentile) {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(percentile, 100.0) / 100.0 * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(valueOf(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    // Folds other's values into this histogram, e.g. to total per-market histograms
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long n = other.counts.get(i);
+            if (n != 0) {
+                counts.addAndGet(i, n);
+            }
+        }
+        count.add(other.count.sum());
+        total.add(other.total.sum());
+        long otherMax = other.getMax();
+        long previous;
+        while (otherMax > (previous = max.get()) && !max.compareAndSet(previous, otherMax)) {
+            // Retry against the larger value someone else recorded
+        }
+    }
+
+    // Values recorded while this runs may be partly kept; callers reset between intervals
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.reset();
+        total.reset();
+        max.set(0);
+    }
+
+    private static String millis(double nanos) {
+        return String.format("%.3f", nanos / 1_000_000.0);
+    }
+
+    // One line in milliseconds: count, mean, p50, p90, p99, p99.9 and max
+    public String summary() {
+        return "count: " + getCount() + ", mean: " + millis(getMean()) + "ms, p50: " + millis(valueAtPercentile(50))
+                + "ms, p90: " + millis(valueAtPercentile(90)) + "ms, p99: " + millis(valueAtPercentile(99))
+                + "ms, p99.9: " + millis(valueAtPercentile(99.9)) + "ms, max: " + millis(getMax()) + "ms";
+    }
+}
@@ -0,0 +1,133 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.util.List;
+
+// Runs one market per process, so each market (or each shard of one) gets its own heap,
+// GC and machine:
+//
+//   java server.MarketLauncher London              the London market
+//   java server.MarketLauncher NewYork             NewYork's ShardRouter, if NewYork is sharded
+//   java server.MarketLauncher NewYork shard 2     shard 2 of NewYork
+//   java server.MarketLauncher NewYork all         NewYork's router and all its shards here
+//   java server.MarketLauncher NewYork replica 0   NewYork's first read replica
+//
+// Markets and shards come from the topology file (dsms.topology).
+public class MarketLauncher {
+
+    public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println("Usage: MarketLauncher <market> [shard <index> | replica <index> | all]");
+            System.exit(1);
+        }
+
+        ShareMarketServerImpl.setTransportTimeouts();
+        Topology topology = Topology.current();
+        Topology.Market market = topology.market(args[0]);
+        if (market == null) {
+            System.out.println("Unknown market " + args[0] + "; the topology has " + topology.markets());
+            System.exit(1);
+        }
+        topology.watch(Long.getLong("dsms.topology.reloadMs", 2000));
+
+        try {
+            if (args.length >= 3 && args[1].equals("shard")) {
+                startShard(topology, market, Integer.parseInt(args[2]));
+            } else if (args.length >= 3 && args[1].equals("replica")) {
+                startReplica(topology, market, Integer.parseInt(args[2]));
+            } else if (args.length >= 2 && args[1].equals("all")) {
+                start(topology, market);
+            } else if (market.isSharded()) {
+                startRouter(topology, market);
+            } else {
+                ShareMarketServerImpl.startServer(topology, market);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    // The whole market in this process: the plain server, or every shard plus the router
+    static void start(Topology topology, Topology.Market market) throws RemoteException {
+        if (!market.isSharded()) {
+            ShareMarketServerImpl.startServer(topology, market);
+            return;
+        }
+        for (int index = 0; index < market.getShards().size(); index++) {
+            startShard(topology, market, index);
+        }
+        startRouter(topology, market);
+    }
+
+    static void startShard(Topology topology, Topology.Market market, int index) throws RemoteException {
+        List<Topology.Shard> shards = market.getShards();
+        if (index < 0 || index >= shards.size()) {
+            throw new IllegalArgumentException(market.getName() + " has " + shards.size() + " shards, no shard " + index);
+        }
+        Topology.Shard shard = shards.get(index);
+        ShareMarketServerImpl.startServer(topology, market.getName(), shard.getName(), shard.getRmiPort(),
+                shard.getUdpPort(), shard.getPeerPort());
+    }
+
+    static void startReplica(Topology topology, Topology.Market market, int index) throws RemoteException {
+        List<Topology.Endpoint> replicas = market.getReplicas();
+        if (index < 0 || index >= replicas.size()) {
+            throw new IllegalArgumentException(market.getName() + " has " + replicas.size() + " replicas, no replica " + index);
+        }
+        Topology.Endpoint endpoint = replicas.get(index);
+        ReplicaServer replica = new ReplicaServer(market.getName(), market.getName() + "-replica" + index);
+        ShareMarketServerImpl.registry(endpoint.getPort())
+                .rebind(market.getName(), new MeteredMarketServer.Replica(replica, replica.getMetrics(), replica.getTracer()));
+        replica.getMetrics().start();
+        replica.getTracer().start();
+        replica.applyTopology(topology);
+        topology.addListener(replica::applyTopology);
+
+        System.out.println(market.getName() + " replica " + index + " is ready at RMI port " + endpoint.getPort()
+                + ", waiting for the primary's replication stream");
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println(market.getName() + " " + replica.stats());
+            replica.close();
+            replica.getMetrics().close();
+            replica.getTracer().close();
+            System.out.println(market.getName() + " " + replica.getTracer().stats());
+        }));
+    }
+
+    static void startRouter(Topology topology, Topology.Market market) throws RemoteException {
+        ShardRouter router = new ShardRouter(market);
+        MarketMetrics metrics = new MarketMetrics(market.getName() + "-router");
+        router.getShardCalls().setMetrics(metrics);
+        router.getShardPeers().setMetrics(metrics);
+        router.getPeerMarkets().setMetrics(metrics);
+        Tracer tracer = new Tracer(market.getName() + "-router");
+        router.setTracer(tracer);
+        ShareMarketServerImpl.registry(market.getRmiPort())
+                .rebind(market.getName(), new MeteredMarketServer(router, metrics, tracer));
+        ShareMarketServerImpl.registry(market.getPeerPort()).rebind(Topology.peerBinding(market.getName()),
+                new MeteredMarketServer.Peer(router, metrics, tracer, market.getPeerPort()));
+        router.applyTopology(topology);
+        topology.addListener(router::applyTopology);
+
+        // Other markets ask the market's own UDP port for its availability
+        UDPServerThread udpServer = new UDPServerThread(market.getUdpPort(), null, router::sharesOfType);
+        udpServer.setMetrics(metrics);
+        udpServer.setTracer(tracer);
+        new Thread(udpServer).start();
+        metrics.start();
+        tracer.start();
+
+        System.out.println(market.getName() + " shard router is ready at UDP Port " + market.getUdpPort()
+                + " and RMI port " + market.getRmiPort() + " for " + market.getShards());
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println(market.getName() + " " + router.stats());
+            System.out.println(market.getName() + " " + router.getShardCalls().stubCacheStats());
+            metrics.close();
+            tracer.close();
+            System.out.println(market.getName() + " " + tracer.stats());
+        }));
+    }
+}
@@ -0,0 +1,346 @@
+package server;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.Hashtable;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Counters, gauges and latency histograms of one server process (a market, shard, shard
+// router or replica). Timers are recorded on the request threads with nothing but atomic
+// adds (LatencyHistogram, LongAdder), so they can stay on in production:
+//
+//   Method  every ShareMarketServer and MarketPeer call answered here (see MeteredMarketServer)
+//   Peer    calls this process makes to another market or shard, by target
+//   Timer   lockWait (the store's mutation lock), commitWait (WAL group commit) and
+//           udpRequest (availability requests, from receipt until the reply is queued)
+//   Gauge   sampled values, e.g. the UDP worker queue depth
+//
+// Each is a JMX MBean named dsms:type=<kind>,instance=<instance>,name=<name>, and every
+// dsms.metrics.intervalMs (10000) the lot is appended to dsms.metrics.dir/<instance>_metrics.log
+// (logs/); an empty dsms.metrics.dir turns the file off. Rates are per second over the
+// last interval; counts and percentiles run from startup or the last reset().
+public class MarketMetrics {
+
+    private static final long INTERVAL_MS = Long.getLong("dsms.metrics.intervalMs", 10_000);
+
+    public interface TimerMBean {
+        long getCount();
+        long getErrors();
+        double getRatePerSecond();
+        double getMeanMillis();
+        double getP50Millis();
+        double getP90Millis();
+        double getP99Millis();
+        double getP999Millis();
+        double getMaxMillis();
+        void reset();
+    }
+
+    public static class Timer implements TimerMBean {
+        private final String name;
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+        // Updated by the metrics thread once per interval
+        private volatile double ratePerSecond;
+        private long lastCount;
+        private long lastTick = System.nanoTime();
+
+        Timer(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public void record(long nanos) {
+            latency.record(nanos);
+        }
+
+        // A call that ended in an exception; its time is recorded as well
+        public void recordError(long nanos) {
+            latency.record(nanos);
+            errors.increment();
+        }
+
+        synchronized void tick(long now) {
+            long count = latency.getCount();
+            ratePerSecond = now > lastTick ? (count - lastCount) * 1e9 / (now - lastTick) : 0;
+            lastCount = count;
+            lastTick = now;
+        }
+
+        @Override
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        @Override
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        @Override
+        public double getRatePerSecond() {
+            return ratePerSecond;
+        }
+
+        @Override
+        public double getMeanMillis() {
+            return latency.getMean() / 1e6;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return latency.valueAtPercentile(50) / 1e6;
+        }
+
+        @Override
+        public double getP90Millis() {
+            return latency.valueAtPercentile(90) / 1e6;
+        }
+
+        @Override
+        public double getP99Millis() {
+            return latency.valueAtPercentile(99) / 1e6;
+        }
+
+        @Override
+        public double getP999Millis() {
+            return latency.valueAtPercentile(99.9) / 1e6;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return latency.getMax() / 1e6;
+        }
+
+        @Override
+        public synchronized void reset() {
+            latency.reset();
+            errors.reset();
+            lastCount = 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%.1f/s, errors: %d, %s", ratePerSecond, errors.sum(), latency.summary());
+        }
+    }
+
+    public interface GaugeMBean {
+        long getValue();
+    }
+
+    public static class Gauge implements GaugeMBean {
+        private final LongSupplier value;
+
+        Gauge(LongSupplier value) {
+            this.value = value;
+        }
+
+        @Override
+        public long getValue() {
+            return value.getAsLong();
+        }
+
+        @Override
+        public String toString() {
+            return Long.toString(getValue());
+        }
+    }
+
+    private final String instance;
+    // Sorted by name so the file lists them in the same order every time
+    private final Map<String, Timer> methods = new ConcurrentSkipListMap<>();
+    private final Map<String, Timer> peers = new ConcurrentSkipListMap<>();
+    private final Map<String, Timer> timers = new ConcurrentSkipListMap<>();
+    private final Map<String, Gauge> gauges = new ConcurrentSkipListMap<>();
+    private final Map<ObjectName, Object> registered = new ConcurrentHashMap<>();
+
+    private final Timer lockWait;
+    private final Timer commitWait;
+    private final Timer udpRequest;
+
+    private volatile boolean started;
+    private ScheduledExecutorService ticker;
+    private Path file;
+
+    public MarketMetrics(String instance) {
+        this.instance = instance;
+        this.lockWait = timer("lockWait");
+        this.commitWait = timer("commitWait");
+        this.udpRequest = timer("udpRequest");
+    }
+
+    public String getInstance() {
+        return instance;
+    }
+
+    public Timer method(String name) {
+        return timer(methods, "Method", name);
+    }
+
+    public Timer peer(String market) {
+        return timer(peers, "Peer", market);
+    }
+
+    public Timer timer(String name) {
+        return timer(timers, "Timer", name);
+    }
+
+    // Created and registered once, whichever thread first asks for it
+    private Timer timer(Map<String, Timer> group, String type, String name) {
+        Timer timer = group.get(name);
+        if (timer == null) {
+            Timer created = new Timer(name);
+            timer = group.putIfAbsent(name, created);
+            if (timer == null) {
+                timer = created;
+                register(type, name, created);
+            }
+        }
+        return timer;
+    }
+
+    public void gauge(String name, LongSupplier value) {
+        Gauge gauge = new Gauge(value);
+        gauges.put(name, gauge);
+        register("Gauge", name, gauge);
+    }
+
+    public Timer getLockWait() {
+        return lockWait;
+    }
+
+    public Timer getCommitWait() {
+        return commitWait;
+    }
+
+    public Timer getUdpRequest() {
+        return udpRequest;
+    }
+
+    // Held back until start() for metrics created before the process is ready to publish
+    private void register(String type, String name, Object bean) {
+        try {
+            ObjectName objectName = new ObjectName("dsms", new Hashtable<>(Map.of(
+                    "type", type, "instance", ObjectName.quote(instance), "name", ObjectName.quote(name))));
+            registered.put(objectName, bean);
+            if (started) {
+                publish(objectName, bean);
+            }
+        } catch (Exception e) {
+            System.out.println(instance + ": could not name metric " + type + " " + name + " (" + e.getMessage() + ")");
+        }
+    }
+
+    private void publish(ObjectName name, Object bean) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(bean, name);
+        } catch (Exception e) {
+            System.out.println(instance + ": could not register " + name + " (" + e.getMessage() + ")");
+        }
+    }
+
+    // Publishes the MBeans and starts the periodic rate update and file dump
+    public synchronized void start() {
+        if (started) {
+            return;
+        }
+        started = true;
+        registered.forEach(this::publish);
+
+        String dir = System.getProperty("dsms.metrics.dir", "logs");
+        file = dir.isEmpty() ? null : Paths.get(dir, instance + "_metrics.log");
+        ticker = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, instance + "-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, INTERVAL_MS, INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        for (Map<String, Timer> group : List.of(methods, peers, timers)) {
+            for (Timer timer : group.values()) {
+                timer.tick(now);
+            }
+        }
+        dump();
+    }
+
+    private void dump() {
+        if (file == null) {
+            return;
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            try (Writer writer = new FileWriter(file.toFile(), true)) {
+                writer.write(report());
+            }
+        } catch (IOException e) {
+            System.out.println(instance + ": could not write " + file + " (" + e.getMessage() + ")");
+        }
+    }
+
+    // Everything that has been used so far, one metric per line
+    public String report() {
+        StringBuilder report = new StringBuilder();
+        report.append("== ").append(instance).append(" metrics at ").append(Instant.now()).append('\n');
+        append(report, "method", methods);
+        append(report, "peer", peers);
+        append(report, "timer", timers);
+        gauges.forEach((name, gauge) -> report.append("gauge  ").append(name).append(": ").append(gauge).append('\n'));
+        return report.toString();
+    }
+
+    private static void append(StringBuilder report, String kind, Map<String, Timer> group) {
+        group.forEach((name, timer) -> {
+            if (timer.getCount() > 0) {
+                report.append(String.format("%-6s %s: %s%n", kind, name, timer));
+            }
+        });
+    }
+
+    // Final dump, then the MBeans go away
+    public synchronized void close() {
+        if (!started) {
+            return;
+        }
+        ticker.shutdownNow();
+        tick();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        for (ObjectName name : registered.keySet()) {
+            try {
+                if (server.isRegistered(name)) {
+                    server.unregisterMBean(name);
+                }
+            } catch (Exception e) {
+                // Going away anyway
+            }
+        }
+        started = false;
+    }
+}
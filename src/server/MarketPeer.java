@@ -0,0 +1,37 @@
+package server;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+// What markets call on each other, apart from what clients call (ShareMarketServer).
+// Every operation acts on the called market (or shard) alone and never forwards, so a
+// request handed to another market travels exactly one hop. A market binds its peer side
+// under Topology.peerBinding on its own peerPort, so peer traffic does not queue
+// behind client connections. Every call carries the caller's span (see TraceContext);
+// null starts a new trace.
+public interface MarketPeer extends Remote {
+
+    // This market's holdings for the buyer
+    Holdings getLocalHoldings(String buyerID, TraceContext trace) throws RemoteException;
+
+    // A purchase or sell forwarded here by another market; settled in this market only
+    String purchaseLocalShare(String buyerID, String shareID, String shareType, int shareCount, TraceContext trace)
+            throws RemoteException;
+    String sellLocalShare(String buyerID, String shareID, int shareCount, TraceContext trace) throws RemoteException;
+
+    // Runs a batch against this market only
+    List<String> placeLocalOrders(String buyerID, List<OrderItem> items, boolean allOrNothing, TraceContext trace)
+            throws RemoteException;
+
+    // Two-phase order. reserveOrders holds each item in this market for up to ttlMillis and
+    // returns one reservation ID per item (null where nothing could be held); the
+    // coordinator then commits or aborts those IDs. commitReservations applies the whole
+    // batch or, returning false because one of them had already expired, none of it.
+    // abortReservations releases what is still held and returns whether the batch had
+    // been committed, which tells a coordinator whose commit call timed out what happened.
+    List<String> reserveOrders(String buyerID, List<OrderItem> items, long ttlMillis, TraceContext trace)
+            throws RemoteException;
+    boolean commitReservations(List<String> reservationIDs, TraceContext trace) throws RemoteException;
+    boolean abortReservations(List<String> reservationIDs, TraceContext trace) throws RemoteException;
+}
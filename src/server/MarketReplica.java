@@ -0,0 +1,16 @@
+package server;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+// Receiving end of a market's replication stream (see ReplicationStream). Group commits
+// are numbered 1, 2, ... by the primary and shipped in WAL encoding.
+public interface MarketReplica extends Remote {
+    // Replaces the replica's state with a full copy covering every group commit up to seq
+    long install(byte[] state, long seq) throws RemoteException;
+
+    // Group commits firstSeq..lastSeq (none for a heartbeat); headSeq is the primary's
+    // latest commit at sending time. Returns the last seq the replica has applied, or -1
+    // if it has no state yet, so the primary can resend from there or install.
+    long replicate(long firstSeq, long lastSeq, byte[] records, long headSeq) throws RemoteException;
+}
@@ -0,0 +1,624 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+// Durable storage for one market: a binary write-ahead log of every mutation plus
+// periodic snapshots of the whole market, kept under data/<city>/.
+//
+// Mutations run under the read side of mutationLock() and append their WAL record before
+// releasing it; a snapshot takes the write side, so it always sees a state that matches a
+// single WAL position (its LSN). Records reach the log in LSN order, and a mutation of a
+// buyer's holdings appends its record while it still holds the buyer's Portfolio, so the
+// log has each buyer's purchases and sells in the order the market applied them; replay
+// relies on that, as a sell can only be applied after the purchase it sells from.
+// Appends are group-committed by one writer thread: every
+// record queued while the previous batch was being written goes out in one write + fsync.
+// Recovery loads the latest snapshot and replays the WAL records with a higher LSN.
+// Each group commit is also handed to an optional BatchListener once it is durable, which
+// is how ReplicationStream ships the log to read replicas in the same encoding.
+//
+// Tunables (system properties):
+//   dsms.store.enabled        true | false
+//   dsms.store.dir            root directory (data)
+//   dsms.store.fsync          fsync each group commit (true)
+//   dsms.store.sync           callers wait for their record to be durable (true)
+//   dsms.store.snapshotEvery  WAL records between snapshots (500000)
+public class MarketStore {
+
+    // Applies recovered state to the market and exposes it for snapshots
+    public interface Target {
+        void applyAddShare(String shareType, String shareID, int totalCapacity, int availableCapacity);
+        void applyRemoveShare(String shareType, String shareID);
+        void applyCapacity(String shareType, String shareID, int delta);
+        void applyHolding(String buyerID, String shareType, String shareID, int delta);
+        void writeState(StateWriter writer) throws IOException;
+    }
+
+    public interface StateWriter {
+        void share(String shareType, String shareID, int totalCapacity, int availableCapacity) throws IOException;
+        void holding(String buyerID, String shareType, String shareID, int quantity) throws IOException;
+    }
+
+    // Sees every group commit after it is durable, on the WAL writer thread
+    public interface BatchListener {
+        void written(byte[] records);
+    }
+
+    private static final byte OP_ADD_SHARE = 1;
+    private static final byte OP_REMOVE_SHARE = 2;
+    private static final byte OP_PURCHASE = 3;
+    private static final byte OP_SELL = 4;
+
+    private static final byte SNAP_SHARE = 1;
+    private static final byte SNAP_HOLDING = 2;
+    private static final byte SNAP_END = 0;
+    private static final int SNAPSHOT_MAGIC = 0x44534D53;
+
+    // Bounds of a record body (see encode): the smallest has empty strings and no buyer,
+    // the largest three strings of writeUTF's maximum length
+    private static final int MIN_BODY = 8 + 1 + 2 + 2 + 4;
+    private static final int MAX_BODY = 8 + 1 + 3 * (2 + 65535) + 4;
+
+    private static final CompletableFuture<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private static final class Pending {
+        final byte[] record;
+        final CompletableFuture<Void> durable;
+        final long rollToLsn;
+
+        Pending(byte[] record, CompletableFuture<Void> durable, long rollToLsn) {
+            this.record = record;
+            this.durable = durable;
+            this.rollToLsn = rollToLsn;
+        }
+    }
+
+    private final Path directory;
+    private final boolean enabled;
+    private final boolean fsync;
+    private final boolean sync;
+    private final long snapshotEvery;
+    private final Target target;
+
+    private final ReadWriteLock stateLock = new ReentrantReadWriteLock();
+    private final AtomicLong lastLsn = new AtomicLong();
+    private final ConcurrentLinkedQueue<Pending> queue = new ConcurrentLinkedQueue<>();
+    // Held while an LSN is taken and its record queued, so the log is in LSN order
+    private final Object appendOrder = new Object();
+    private final AtomicBoolean snapshotRunning = new AtomicBoolean();
+    private final AtomicLong recordsWritten = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+    private final AtomicLong batchesWritten = new AtomicLong();
+
+    private volatile BatchListener batchListener;
+
+    private FileChannel segment;
+    private long recordsSinceSnapshot;
+    private Thread writer;
+    private volatile boolean writerIdle;
+    private volatile boolean closed;
+
+    public MarketStore(String city, Target target) {
+        this(Paths.get(System.getProperty("dsms.store.dir", "data"), city),
+                Boolean.parseBoolean(System.getProperty("dsms.store.enabled", "true")),
+                Boolean.parseBoolean(System.getProperty("dsms.store.fsync", "true")),
+                Boolean.parseBoolean(System.getProperty("dsms.store.sync", "true")),
+                Long.getLong("dsms.store.snapshotEvery", 500000),
+                target);
+    }
+
+    public MarketStore(Path directory, boolean enabled, boolean fsync, boolean sync, long snapshotEvery, Target target) {
+        this.directory = directory;
+        this.enabled = enabled;
+        this.fsync = fsync;
+        this.sync = sync;
+        this.snapshotEvery = snapshotEvery;
+        this.target = target;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Held (read side) by every mutation for as long as it changes state and appends its record
+    public ReadWriteLock mutationLock() {
+        return stateLock;
+    }
+
+    public void setBatchListener(BatchListener batchListener) {
+        this.batchListener = batchListener;
+    }
+
+    // Loads the latest snapshot, replays the WAL tail and starts the writer
+    public void open() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        Files.createDirectories(directory);
+
+        long started = System.nanoTime();
+        long snapshotLsn = loadSnapshot();
+        long replayed = replayWal(snapshotLsn);
+        if (snapshotLsn > 0 || replayed > 0) {
+            System.out.println(directory + ": recovered snapshot at LSN " + snapshotLsn + " and replayed "
+                    + replayed + " WAL records in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) + "ms");
+        }
+
+        segment = openSegment(lastLsn.get() + 1);
+        writer = new Thread(this::drainLoop, "wal-" + directory.getFileName());
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    public CompletableFuture<Void> logAddShare(String shareType, String shareID, int capacity) {
+        return append(OP_ADD_SHARE, null, shareType, shareID, capacity);
+    }
+
+    public CompletableFuture<Void> logRemoveShare(String shareType, String shareID) {
+        return append(OP_REMOVE_SHARE, null, shareType, shareID, 0);
+    }
+
+    public CompletableFuture<Void> logPurchase(String buyerID, String shareType, String shareID, int quantity) {
+        return append(OP_PURCHASE, buyerID, shareType, shareID, quantity);
+    }
+
+    public CompletableFuture<Void> logSell(String buyerID, String shareType, String shareID, int quantity) {
+        return append(OP_SELL, buyerID, shareType, shareID, quantity);
+    }
+
+    // Blocks until the record is on disk, unless dsms.store.sync=false
+    public void awaitDurable(CompletableFuture<Void> durable) {
+        if (sync) {
+            durable.join();
+        }
+    }
+
+    private CompletableFuture<Void> append(byte op, String buyerID, String shareType, String shareID, int quantity) {
+        if (!enabled || closed) {
+            return DONE;
+        }
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        synchronized (appendOrder) {
+            long lsn = lastLsn.incrementAndGet();
+            queue.offer(new Pending(encode(lsn, op, buyerID, shareType, shareID, quantity), durable, 0));
+        }
+        if (writerIdle) {
+            LockSupport.unpark(writer);
+        }
+        return durable;
+    }
+
+    // Record: int bodyLength | int crc32(body) | body(long lsn, byte op, [UTF buyer], UTF type, UTF id, int qty)
+    private static byte[] encode(long lsn, byte op, String buyerID, String shareType, String shareID, int quantity) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            DataOutputStream body = new DataOutputStream(bytes);
+            body.writeLong(lsn);
+            body.writeByte(op);
+            if (op == OP_PURCHASE || op == OP_SELL) {
+                body.writeUTF(buyerID);
+            }
+            body.writeUTF(shareType);
+            body.writeUTF(shareID);
+            body.writeInt(quantity);
+            byte[] encodedBody = bytes.toByteArray();
+
+            CRC32 crc = new CRC32();
+            crc.update(encodedBody);
+            ByteBuffer record = ByteBuffer.allocate(8 + encodedBody.length);
+            record.putInt(encodedBody.length).putInt((int) crc.getValue()).put(encodedBody);
+            return record.array();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void drainLoop() {
+        ByteArrayOutputStream batch = new ByteArrayOutputStream(64 * 1024);
+        List<CompletableFuture<Void>> waiting = new ArrayList<>();
+
+        while (!closed || !queue.isEmpty()) {
+            Pending pending;
+            while ((pending = queue.poll()) != null) {
+                if (pending.record == null) {
+                    // Snapshot boundary: everything before it is covered by the snapshot
+                    flush(batch, waiting);
+                    rollSegment(pending.rollToLsn);
+                    pending.durable.complete(null);
+                    continue;
+                }
+                batch.write(pending.record, 0, pending.record.length);
+                waiting.add(pending.durable);
+            }
+
+            if (waiting.isEmpty()) {
+                writerIdle = true;
+                if (queue.isEmpty() && !closed) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+                }
+                writerIdle = false;
+                continue;
+            }
+
+            recordsSinceSnapshot += waiting.size();
+            flush(batch, waiting);
+            if (recordsSinceSnapshot >= snapshotEvery && snapshotRunning.compareAndSet(false, true)) {
+                recordsSinceSnapshot = 0;
+                Thread snapshotter = new Thread(this::snapshotInBackground, "snapshot-" + directory.getFileName());
+                snapshotter.setDaemon(true);
+                snapshotter.start();
+            }
+        }
+    }
+
+    private void flush(ByteArrayOutputStream batch, List<CompletableFuture<Void>> waiting) {
+        if (waiting.isEmpty()) {
+            return;
+        }
+        try {
+            byte[] records = batch.toByteArray();
+            ByteBuffer bytes = ByteBuffer.wrap(records);
+            while (bytes.hasRemaining()) {
+                segment.write(bytes);
+            }
+            if (fsync) {
+                segment.force(false);
+            }
+            recordsWritten.addAndGet(waiting.size());
+            bytesWritten.addAndGet(batch.size());
+            batchesWritten.incrementAndGet();
+            for (CompletableFuture<Void> durable : waiting) {
+                durable.complete(null);
+            }
+            BatchListener listener = batchListener;
+            if (listener != null) {
+                listener.written(records);
+            }
+        } catch (IOException e) {
+            for (CompletableFuture<Void> durable : waiting) {
+                durable.completeExceptionally(e);
+            }
+        }
+        batch.reset();
+        waiting.clear();
+    }
+
+    private FileChannel openSegment(long firstLsn) throws IOException {
+        return FileChannel.open(directory.resolve(String.format("wal-%020d.log", firstLsn)),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private void rollSegment(long firstLsn) {
+        try {
+            segment.close();
+            segment = openSegment(firstLsn);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void snapshotInBackground() {
+        try {
+            snapshot();
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            snapshotRunning.set(false);
+        }
+    }
+
+    // Writes a snapshot of the whole market and drops the WAL segments it makes redundant
+    public synchronized void snapshot() throws IOException {
+        if (!enabled || writer == null) {
+            return;
+        }
+        Path temp = directory.resolve("snapshot.tmp");
+        ByteArrayOutputStream state = new ByteArrayOutputStream(1 << 16);
+        long snapshotLsn;
+        CompletableFuture<Void> rolled = new CompletableFuture<>();
+
+        // No mutation can run while the state is copied, so the copy matches snapshotLsn
+        // exactly; mutations wait only for the in-memory copy, not for the disk
+        stateLock.writeLock().lock();
+        try {
+            snapshotLsn = lastLsn.get();
+            writeState(new DataOutputStream(state), snapshotLsn);
+            // Later records go to a new segment
+            queue.offer(new Pending(null, rolled, snapshotLsn + 1));
+            LockSupport.unpark(writer);
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            state.writeTo(Channels.newOutputStream(channel));
+            channel.force(true);
+        }
+        Files.move(temp, directory.resolve("snapshot.dat"), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+
+        rolled.join();
+        for (Path wal : walSegments().values()) {
+            if (firstLsnOf(wal) <= snapshotLsn) {
+                Files.deleteIfExists(wal);
+            }
+        }
+    }
+
+    // Snapshot body: int magic | long lsn | (SNAP_SHARE type id total available |
+    // SNAP_HOLDING buyer type id quantity)* | SNAP_END
+    private void writeState(DataOutputStream out, long snapshotLsn) throws IOException {
+        out.writeInt(SNAPSHOT_MAGIC);
+        out.writeLong(snapshotLsn);
+        target.writeState(new StateWriter() {
+            @Override
+            public void share(String shareType, String shareID, int totalCapacity, int availableCapacity) throws IOException {
+                out.writeByte(SNAP_SHARE);
+                out.writeUTF(shareType);
+                out.writeUTF(shareID);
+                out.writeInt(totalCapacity);
+                out.writeInt(availableCapacity);
+            }
+
+            @Override
+            public void holding(String buyerID, String shareType, String shareID, int quantity) throws IOException {
+                out.writeByte(SNAP_HOLDING);
+                out.writeUTF(buyerID);
+                out.writeUTF(shareType);
+                out.writeUTF(shareID);
+                out.writeInt(quantity);
+            }
+        });
+        out.writeByte(SNAP_END);
+    }
+
+    // Applies a snapshot body to the target and returns its LSN
+    private static long readState(DataInputStream in, Target target) throws IOException {
+        if (in.readInt() != SNAPSHOT_MAGIC) {
+            throw new IOException("Not a market snapshot");
+        }
+        long snapshotLsn = in.readLong();
+        byte tag;
+        while ((tag = in.readByte()) != SNAP_END) {
+            if (tag == SNAP_SHARE) {
+                String shareType = in.readUTF();
+                String shareID = in.readUTF();
+                int total = in.readInt();
+                target.applyAddShare(shareType, shareID, total, in.readInt());
+            } else {
+                String buyerID = in.readUTF();
+                String shareType = in.readUTF();
+                String shareID = in.readUTF();
+                target.applyHolding(buyerID, shareType, shareID, in.readInt());
+            }
+        }
+        return snapshotLsn;
+    }
+
+    // The whole market in snapshot encoding, taken under the write side of the mutation
+    // lock; whileLocked runs inside that critical section, so the caller can note which
+    // group commits the state already covers
+    public byte[] encodeState(Runnable whileLocked) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+        stateLock.writeLock().lock();
+        try {
+            writeState(new DataOutputStream(bytes), lastLsn.get());
+            whileLocked.run();
+        } finally {
+            stateLock.writeLock().unlock();
+        }
+        return bytes.toByteArray();
+    }
+
+    // Replica side of encodeState: loads the state into an empty target, returns its LSN
+    public static long applyState(byte[] state, Target target) throws IOException {
+        return readState(new DataInputStream(new ByteArrayInputStream(state)), target);
+    }
+
+    // Replica side of a shipped group commit: applies the records with an LSN above
+    // afterLsn (the rest are already part of the state the replica started from)
+    public static int applyRecords(byte[] records, long afterLsn, Target target) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(records));
+        int applied = 0;
+        while (in.available() > 0) {
+            int length = in.readInt();
+            int expectedCrc = in.readInt();
+            if (length < MIN_BODY || length > MAX_BODY) {
+                throw new IOException("Corrupt replicated record");
+            }
+            byte[] body = new byte[length];
+            in.readFully(body);
+            CRC32 crc = new CRC32();
+            crc.update(body);
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new IOException("Corrupt replicated record");
+            }
+            DataInputStream record = new DataInputStream(new ByteArrayInputStream(body));
+            if (record.readLong() > afterLsn) {
+                replay(record, target);
+                applied++;
+            }
+        }
+        return applied;
+    }
+
+    private long loadSnapshot() throws IOException {
+        Path snapshot = directory.resolve("snapshot.dat");
+        if (!Files.exists(snapshot)) {
+            return 0;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(snapshot), 1 << 16))) {
+            long snapshotLsn = readState(in, target);
+            lastLsn.set(snapshotLsn);
+            return snapshotLsn;
+        }
+    }
+
+    private long replayWal(long snapshotLsn) throws IOException {
+        long replayed = 0;
+        for (Path wal : walSegments().values()) {
+            // End of the last whole record; whatever follows it is cut off below
+            long validEnd = 0;
+            try (InputStream file = new BufferedInputStream(Files.newInputStream(wal), 1 << 16)) {
+                DataInputStream in = new DataInputStream(file);
+                while (true) {
+                    byte[] body;
+                    DataInputStream record;
+                    long lsn;
+                    try {
+                        int length = in.readInt();
+                        int expectedCrc = in.readInt();
+                        // A zero-filled or garbage tail: no record is that short or long
+                        if (length < MIN_BODY || length > MAX_BODY) {
+                            System.out.println(wal + ": stopping replay at record of impossible length " + length);
+                            break;
+                        }
+                        body = new byte[length];
+                        in.readFully(body);
+                        CRC32 crc = new CRC32();
+                        crc.update(body);
+                        if ((int) crc.getValue() != expectedCrc) {
+                            System.out.println(wal + ": stopping replay at corrupt record");
+                            break;
+                        }
+                        record = new DataInputStream(new ByteArrayInputStream(body));
+                        lsn = record.readLong();
+                    } catch (EOFException e) {
+                        break; // clean end, or a torn final record
+                    }
+
+                    if (lsn <= snapshotLsn) {
+                        validEnd += 8 + body.length;
+                        continue;
+                    }
+                    try {
+                        replay(record, target);
+                    } catch (EOFException e) {
+                        System.out.println(wal + ": stopping replay at malformed record " + lsn);
+                        break;
+                    }
+                    validEnd += 8 + body.length;
+                    replayed++;
+                    if (lsn > lastLsn.get()) {
+                        lastLsn.set(lsn);
+                    }
+                }
+            }
+            truncate(wal, validEnd);
+        }
+        return replayed;
+    }
+
+    // Drops a torn or corrupt tail, so records appended to the segment later (open reuses
+    // the segment named after the next LSN if it exists) are not stranded behind it
+    private static void truncate(Path wal, long validEnd) throws IOException {
+        if (Files.size(wal) <= validEnd) {
+            return;
+        }
+        System.out.println(wal + ": truncating " + (Files.size(wal) - validEnd) + " bytes after the last whole record");
+        try (FileChannel channel = FileChannel.open(wal, StandardOpenOption.WRITE)) {
+            channel.truncate(validEnd);
+            channel.force(true);
+        }
+    }
+
+    // Records are applied as deltas in log order. Capacity deltas commute; holding deltas
+    // do not (a sell of a position that does not exist yet is lost), which is why each
+    // buyer's records are logged in the order they were applied (see the class comment)
+    private static void replay(DataInputStream record, Target target) throws IOException {
+        byte op = record.readByte();
+        String buyerID = (op == OP_PURCHASE || op == OP_SELL) ? record.readUTF() : null;
+        String shareType = record.readUTF();
+        String shareID = record.readUTF();
+        int quantity = record.readInt();
+        switch (op) {
+            case OP_ADD_SHARE:
+                target.applyAddShare(shareType, shareID, quantity, quantity);
+                break;
+            case OP_REMOVE_SHARE:
+                target.applyRemoveShare(shareType, shareID);
+                break;
+            case OP_PURCHASE:
+                target.applyCapacity(shareType, shareID, -quantity);
+                target.applyHolding(buyerID, shareType, shareID, quantity);
+                break;
+            case OP_SELL:
+                target.applyCapacity(shareType, shareID, quantity);
+                target.applyHolding(buyerID, shareType, shareID, -quantity);
+                break;
+            default:
+                throw new IOException("Unknown WAL op " + op);
+        }
+    }
+
+    private TreeMap<Long, Path> walSegments() throws IOException {
+        TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "wal-*.log")) {
+            for (Path wal : files) {
+                segments.put(firstLsnOf(wal), wal);
+            }
+        }
+        return segments;
+    }
+
+    private static long firstLsnOf(Path wal) {
+        String name = wal.getFileName().toString();
+        return Long.parseLong(name.substring(4, name.length() - 4));
+    }
+
+    public String stats() {
+        return "WAL [records: " + recordsWritten.get() + ", bytes: " + bytesWritten.get()
+                + ", group commits: " + batchesWritten.get() + ", last LSN: " + lastLsn.get() + "]";
+    }
+
+    // Takes a final snapshot, then drains and closes the log
+    public void close() {
+        if (!enabled || closed || writer == null) {
+            return;
+        }
+        try {
+            snapshot();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+            segment.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
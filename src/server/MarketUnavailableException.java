@@ -0,0 +1,29 @@
+package server;
+
+// Thrown when a peer market cannot be reached or does not answer before the deadline.
+// outcomeUnknown is false only when the call is known never to have reached the peer;
+// otherwise the peer may have executed it and the caller must not report a failure.
+public class MarketUnavailableException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final String market;
+    private final boolean outcomeUnknown;
+
+    public MarketUnavailableException(String market, Throwable cause) {
+        this(market, cause, true);
+    }
+
+    public MarketUnavailableException(String market, Throwable cause, boolean outcomeUnknown) {
+        super("Market " + market + " is unavailable", cause);
+        this.market = market;
+        this.outcomeUnknown = outcomeUnknown;
+    }
+
+    public String getMarket() {
+        return market;
+    }
+
+    public boolean isOutcomeUnknown() {
+        return outcomeUnknown;
+    }
+}
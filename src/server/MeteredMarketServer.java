@@ -0,0 +1,230 @@
+package server;
+
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.List;
+
+// What a server process binds in its registry in place of the server itself: passes every
+// call through and times it into the process's MarketMetrics (type=Method), so calls are
+// measured the same way for a market, a shard, a shard router and a replica, and a call
+// the server makes to itself internally is not counted twice. Every call is also a server
+// span of the process's Tracer, current on the thread while the server works on it: the
+// root of a new trace for client calls, under the caller's span for calls on the peer
+// side (see Peer).
+public class MeteredMarketServer extends UnicastRemoteObject implements ShareMarketServer {
+    private static final long serialVersionUID = 1L;
+
+    private interface Call<T> {
+        T call() throws RemoteException;
+    }
+
+    private final ShareMarketServer server;
+    private final Tracer tracer;
+    private final MarketMetrics.Timer addShare;
+    private final MarketMetrics.Timer removeShare;
+    private final MarketMetrics.Timer listShareAvailability;
+    private final MarketMetrics.Timer purchaseRemoteShare;
+    private final MarketMetrics.Timer sellRemoteShare;
+    private final MarketMetrics.Timer purchaseShare;
+    private final MarketMetrics.Timer getShares;
+    private final MarketMetrics.Timer sellShare;
+    private final MarketMetrics.Timer placeOrders;
+
+    public MeteredMarketServer(ShareMarketServer server, MarketMetrics metrics, Tracer tracer) throws RemoteException {
+        super();
+        this.server = server;
+        this.tracer = tracer;
+        this.addShare = metrics.method("addShare");
+        this.removeShare = metrics.method("removeShare");
+        this.listShareAvailability = metrics.method("listShareAvailability");
+        this.purchaseRemoteShare = metrics.method("purchaseRemoteShare");
+        this.sellRemoteShare = metrics.method("sellRemoteShare");
+        this.purchaseShare = metrics.method("purchaseShare");
+        this.getShares = metrics.method("getShares");
+        this.sellShare = metrics.method("sellShare");
+        this.placeOrders = metrics.method("placeOrders");
+    }
+
+    private <T> T timed(MarketMetrics.Timer timer, Call<T> call) throws RemoteException {
+        return timed(tracer, timer, null, call);
+    }
+
+    // caller is the calling server's span, null for a client call
+    private static <T> T timed(Tracer tracer, MarketMetrics.Timer timer, TraceContext caller, Call<T> call)
+            throws RemoteException {
+        Tracer.Span span = tracer.serverSpan(timer.getName(), caller);
+        TraceContext previous = TraceContext.enter(span.getContext());
+        try {
+            return metered(timer, call);
+        } catch (RemoteException | RuntimeException e) {
+            span.fail();
+            throw e;
+        } finally {
+            TraceContext.restore(previous);
+            tracer.finish(span);
+        }
+    }
+
+    // Timed only, for calls that are not part of any request
+    private static <T> T metered(MarketMetrics.Timer timer, Call<T> call) throws RemoteException {
+        long start = System.nanoTime();
+        try {
+            T result = call.call();
+            timer.record(System.nanoTime() - start);
+            return result;
+        } catch (RemoteException | RuntimeException e) {
+            timer.recordError(System.nanoTime() - start);
+            throw e;
+        }
+    }
+
+    @Override
+    public String addShare(String shareID, String shareType, int capacity) throws RemoteException {
+        return timed(addShare, () -> server.addShare(shareID, shareType, capacity));
+    }
+
+    @Override
+    public String removeShare(String shareID, String shareType) throws RemoteException {
+        return timed(removeShare, () -> server.removeShare(shareID, shareType));
+    }
+
+    @Override
+    public String listShareAvailability(String shareType) throws RemoteException {
+        return timed(listShareAvailability, () -> server.listShareAvailability(shareType));
+    }
+
+    @Override
+    public String purchaseRemoteShare(String buyerID, String shareID, String shareType, int shareCount,
+                                      String targetMarket) throws RemoteException {
+        return timed(purchaseRemoteShare,
+                () -> server.purchaseRemoteShare(buyerID, shareID, shareType, shareCount, targetMarket));
+    }
+
+    @Override
+    public String sellRemoteShare(String buyerID, String shareID, String shareType, int shareCount,
+                                  String targetMarket) throws RemoteException {
+        return timed(sellRemoteShare,
+                () -> server.sellRemoteShare(buyerID, shareID, shareType, shareCount, targetMarket));
+    }
+
+    @Override
+    public String purchaseShare(String buyerID, String shareID, String shareType, int shareCount)
+            throws RemoteException {
+        return timed(purchaseShare, () -> server.purchaseShare(buyerID, shareID, shareType, shareCount));
+    }
+
+    @Override
+    public String getShares(String buyerID) throws RemoteException {
+        return timed(getShares, () -> server.getShares(buyerID));
+    }
+
+    @Override
+    public String sellShare(String buyerID, String shareID, int shareCount) throws RemoteException {
+        return timed(sellShare, () -> server.sellShare(buyerID, shareID, shareCount));
+    }
+
+    @Override
+    public List<String> placeOrders(String buyerID, List<OrderItem> items, boolean allOrNothing)
+            throws RemoteException {
+        return timed(placeOrders, () -> server.placeOrders(buyerID, items, allOrNothing));
+    }
+
+    // The peer side of a market, shard or shard router, exported on its own port (see
+    // MarketPeer); every call is a span under the calling market's
+    public static class Peer extends UnicastRemoteObject implements MarketPeer {
+        private static final long serialVersionUID = 1L;
+
+        private final MarketPeer peer;
+        private final Tracer tracer;
+        private final MarketMetrics.Timer getLocalHoldings;
+        private final MarketMetrics.Timer purchaseLocalShare;
+        private final MarketMetrics.Timer sellLocalShare;
+        private final MarketMetrics.Timer placeLocalOrders;
+        private final MarketMetrics.Timer reserveOrders;
+        private final MarketMetrics.Timer commitReservations;
+        private final MarketMetrics.Timer abortReservations;
+
+        public Peer(MarketPeer peer, MarketMetrics metrics, Tracer tracer, int port) throws RemoteException {
+            super(port);
+            this.peer = peer;
+            this.tracer = tracer;
+            this.getLocalHoldings = metrics.method("getLocalHoldings");
+            this.purchaseLocalShare = metrics.method("purchaseLocalShare");
+            this.sellLocalShare = metrics.method("sellLocalShare");
+            this.placeLocalOrders = metrics.method("placeLocalOrders");
+            this.reserveOrders = metrics.method("reserveOrders");
+            this.commitReservations = metrics.method("commitReservations");
+            this.abortReservations = metrics.method("abortReservations");
+        }
+
+        @Override
+        public Holdings getLocalHoldings(String buyerID, TraceContext trace) throws RemoteException {
+            return timed(tracer, getLocalHoldings, trace, () -> peer.getLocalHoldings(buyerID, trace));
+        }
+
+        @Override
+        public String purchaseLocalShare(String buyerID, String shareID, String shareType, int shareCount,
+                                         TraceContext trace) throws RemoteException {
+            return timed(tracer, purchaseLocalShare, trace,
+                    () -> peer.purchaseLocalShare(buyerID, shareID, shareType, shareCount, trace));
+        }
+
+        @Override
+        public String sellLocalShare(String buyerID, String shareID, int shareCount, TraceContext trace)
+                throws RemoteException {
+            return timed(tracer, sellLocalShare, trace, () -> peer.sellLocalShare(buyerID, shareID, shareCount, trace));
+        }
+
+        @Override
+        public List<String> placeLocalOrders(String buyerID, List<OrderItem> items, boolean allOrNothing,
+                                             TraceContext trace) throws RemoteException {
+            return timed(tracer, placeLocalOrders, trace,
+                    () -> peer.placeLocalOrders(buyerID, items, allOrNothing, trace));
+        }
+
+        @Override
+        public List<String> reserveOrders(String buyerID, List<OrderItem> items, long ttlMillis, TraceContext trace)
+                throws RemoteException {
+            return timed(tracer, reserveOrders, trace, () -> peer.reserveOrders(buyerID, items, ttlMillis, trace));
+        }
+
+        @Override
+        public boolean commitReservations(List<String> reservationIDs, TraceContext trace) throws RemoteException {
+            return timed(tracer, commitReservations, trace, () -> peer.commitReservations(reservationIDs, trace));
+        }
+
+        @Override
+        public boolean abortReservations(List<String> reservationIDs, TraceContext trace) throws RemoteException {
+            return timed(tracer, abortReservations, trace, () -> peer.abortReservations(reservationIDs, trace));
+        }
+    }
+
+    // A read replica is also what the primary's ReplicationStream looks up, so its binding
+    // has to answer the replication calls as well; they are background traffic, not
+    // requests, so they are timed but not traced
+    public static class Replica extends MeteredMarketServer implements MarketReplica {
+        private static final long serialVersionUID = 1L;
+
+        private final MarketReplica replica;
+        private final MarketMetrics.Timer install;
+        private final MarketMetrics.Timer replicate;
+
+        public <R extends ShareMarketServer & MarketReplica> Replica(R replica, MarketMetrics metrics, Tracer tracer)
+                throws RemoteException {
+            super(replica, metrics, tracer);
+            this.replica = replica;
+            this.install = metrics.method("install");
+            this.replicate = metrics.method("replicate");
+        }
+
+        @Override
+        public long install(byte[] state, long seq) throws RemoteException {
+            return metered(install, () -> replica.install(state, seq));
+        }
+
+        @Override
+        public long replicate(long firstSeq, long lastSeq, byte[] records, long headSeq) throws RemoteException {
+            return metered(replicate, () -> replica.replicate(firstSeq, lastSeq, records, headSeq));
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package server;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Bounded lock-free queue for many producers and one consumer. Each slot carries a
+// sequence number saying whose turn it is: a producer claims the next position with one
+// CAS and publishes its element by advancing the slot's sequence; the consumer takes the
+// element once the sequence shows it published and hands the slot to the producer one lap
+// later. A full ring fails offer instead of waiting. Only one thread may call poll/drainTo.
+public class MpscRing<E> {
+
+    private final int capacity;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    // Written by the consumer only; volatile so size() can be read anywhere
+    private volatile long head;
+
+    public MpscRing(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("capacity " + capacity);
+        }
+        this.capacity = capacity;
+        this.elements = new AtomicReferenceArray<>(capacity);
+        this.sequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public boolean offer(E element) {
+        long position = tail.get();
+        while (true) {
+            int slot = (int) (position % capacity);
+            long turn = sequences.get(slot) - position;
+            if (turn == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(slot, element);
+                    sequences.set(slot, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (turn < 0) {
+                // The consumer has not taken this slot's element from the last lap yet
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    public E poll() {
+        long position = head;
+        int slot = (int) (position % capacity);
+        if (sequences.get(slot) != position + 1) {
+            return null;
+        }
+        E element = elements.get(slot);
+        elements.lazySet(slot, null);
+        sequences.set(slot, position + capacity);
+        head = position + 1;
+        return element;
+    }
+
+    // Moves up to max published elements to the list, returns how many
+    public int drainTo(List<? super E> to, int max) {
+        int moved = 0;
+        E element;
+        while (moved < max && (element = poll()) != null) {
+            to.add(element);
+            moved++;
+        }
+        return moved;
+    }
+
+    // Positions claimed and not yet taken, including offers still publishing
+    public int size() {
+        long size = tail.get() - head;
+        return (int) Math.max(0, Math.min(capacity, size));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
@@ -0,0 +1,50 @@
+package server;
+
+import java.io.Serializable;
+
+// One line of a batch order: buy or sell a quantity of one share
+public class OrderItem implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Side { BUY, SELL }
+
+    private final String shareID;
+    private final String shareType;
+    private final int quantity;
+    private final Side side;
+
+    public OrderItem(String shareID, String shareType, int quantity, Side side) {
+        this.shareID = shareID;
+        this.shareType = shareType;
+        this.quantity = quantity;
+        this.side = side;
+    }
+
+    public String getShareID() {
+        return shareID;
+    }
+
+    // A sell finds the position by share ID alone, but carrying the type lets an
+    // all-or-nothing batch buy the shares back if it has to roll back
+    public String getShareType() {
+        return shareType;
+    }
+
+    public int getQuantity() {
+        return quantity;
+    }
+
+    public Side getSide() {
+        return side;
+    }
+
+    // The order that undoes this one
+    public OrderItem inverse() {
+        return new OrderItem(shareID, shareType, quantity, side == Side.BUY ? Side.SELL : Side.BUY);
+    }
+
+    @Override
+    public String toString() {
+        return side + " " + quantity + " of " + (shareType != null ? shareType + "-" : "") + shareID;
+    }
+}
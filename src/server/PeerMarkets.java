@@ -0,0 +1,305 @@
+package server;
+
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.UnknownHostException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Runs calls against other market servers, through stubs of type S: their peer side
+// (MarketPeer, see peerSides) or what they offer clients (ShareMarketServer, see
+// clientSides). Every call gets its own deadline and runs on a dedicated pool, so a slow
+// or dead peer never ties up the thread serving the buyer. Stubs are looked up once per
+// market and reused until the peer stops answering.
+// A call made while serving another server's call gets half its caller's deadline per hop
+// (see deadlineMillis), so a forwarded call settles, one way or the other, before the
+// market that forwarded it gives up on it.
+// Calls made while the calling thread works for a traced request are recorded as client
+// spans, and inside the PeerCall TraceContext.current() is that span, which is what
+// server-to-server calls pass on to the peer.
+public class PeerMarkets<S extends Remote> {
+
+    public interface PeerCall<S, T> {
+        T call(S peer) throws Exception;
+    }
+
+    // Finds the stub for a name, e.g. a market in the current topology
+    public interface Resolver<S> {
+        S lookup(String name) throws Exception;
+    }
+
+    // Outcome of a scatter-gather call: answers in arrival order plus the markets that missed the deadline
+    public static class Gathered<T> {
+        private final Map<String, T> results = new LinkedHashMap<>();
+        private final List<String> unavailable = new ArrayList<>();
+
+        public Map<String, T> getResults() {
+            return results;
+        }
+
+        public List<String> getUnavailable() {
+            return unavailable;
+        }
+
+        public boolean isPartial() {
+            return !unavailable.isEmpty();
+        }
+    }
+
+    private static final long DEFAULT_TIMEOUT_MS = Long.getLong("dsms.peer.timeoutMs", 3000);
+
+    private final String localCity;
+    private final long timeoutMillis;
+    private final ExecutorService executor;
+    private final Resolver<S> resolver;
+
+    private final Map<String, S> stubs = new ConcurrentHashMap<>();
+    private final AtomicLong stubHits = new AtomicLong();
+    private final AtomicLong stubMisses = new AtomicLong();
+    private final AtomicLong stubReResolves = new AtomicLong();
+    // Per-peer call latency, when the owner publishes metrics
+    private volatile MarketMetrics metrics;
+    private volatile Tracer tracer;
+
+    // Other markets' peer sides, as the current topology places them
+    public static PeerMarkets<MarketPeer> peerSides(String localCity) {
+        return new PeerMarkets<>(localCity, DEFAULT_TIMEOUT_MS, market -> {
+            Topology.Market endpoint = market(market);
+            Registry registry = LocateRegistry.getRegistry(endpoint.getHost(), endpoint.getPeerPort());
+            return (MarketPeer) registry.lookup(Topology.peerBinding(market));
+        });
+    }
+
+    // Markets as their clients see them, e.g. a replica's primary
+    public static PeerMarkets<ShareMarketServer> clientSides(String localCity) {
+        return new PeerMarkets<>(localCity, DEFAULT_TIMEOUT_MS, market -> {
+            Topology.Market endpoint = market(market);
+            Registry registry = LocateRegistry.getRegistry(endpoint.getHost(), endpoint.getRmiPort());
+            return (ShareMarketServer) registry.lookup(market);
+        });
+    }
+
+    public PeerMarkets(String localCity, long timeoutMillis, Resolver<S> resolver) {
+        this.localCity = localCity;
+        this.timeoutMillis = timeoutMillis;
+        this.resolver = resolver;
+        this.executor = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, localCity + "-peer-call");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public void setMetrics(MarketMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    // Deadline for a call made for parent: the full timeout for a client's request, and
+    // half as much for every server-to-server hop the request has already taken
+    long deadlineMillis(TraceContext parent) {
+        int depth = parent != null ? parent.getDepth() : 0;
+        return Math.max(1, timeoutMillis >> Math.min(depth, 16));
+    }
+
+    public <T> T call(String market, PeerCall<S, T> call) throws MarketUnavailableException {
+        TraceContext parent = TraceContext.current();
+        long deadline = deadlineMillis(parent);
+        Future<T> future = executor.submit(() -> invoke(market, call, parent));
+        try {
+            return future.get(deadline, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            System.out.println(localCity + ": call to " + market + " timed out after " + deadline + "ms");
+            throw new MarketUnavailableException(market, e);
+        } catch (ExecutionException e) {
+            throw new MarketUnavailableException(market, e.getCause(), !neverReached(e.getCause()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new MarketUnavailableException(market, e);
+        }
+    }
+
+    // Issues the call to every market at once and waits for all of them only up to one
+    // overall deadline, so the slowest (or a dead) peer costs at most that deadline
+    public <T> Gathered<T> callAll(Collection<String> markets, PeerCall<S, T> call) {
+        Map<String, PeerCall<S, T>> calls = new LinkedHashMap<>();
+        for (String market : markets) {
+            calls.put(market, call);
+        }
+        return callEach(calls);
+    }
+
+    // Scatter-gather where each market gets its own call, e.g. its share of a batch
+    public <T> Gathered<T> callEach(Map<String, PeerCall<S, T>> calls) {
+        return callEach(calls, () -> { });
+    }
+
+    // As callEach, running the caller's own part of the work on its thread while the
+    // calls are out; the deadline counts from when they were sent
+    public <T> Gathered<T> callEach(Map<String, PeerCall<S, T>> calls, Runnable meanwhile) {
+        Gathered<T> gathered = new Gathered<>();
+        CompletionService<Map.Entry<String, T>> completion = new ExecutorCompletionService<>(executor);
+        Map<String, Future<Map.Entry<String, T>>> pending = new LinkedHashMap<>();
+        TraceContext parent = TraceContext.current();
+        for (Map.Entry<String, PeerCall<S, T>> call : calls.entrySet()) {
+            String market = call.getKey();
+            pending.put(market, completion.submit(() -> Map.entry(market, invoke(market, call.getValue(), parent))));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis(parent));
+        meanwhile.run();
+        try {
+            for (int received = 0; received < calls.size(); received++) {
+                long remaining = deadline - System.nanoTime();
+                Future<Map.Entry<String, T>> done = completion.poll(remaining, TimeUnit.NANOSECONDS);
+                if (done == null) {
+                    break;
+                }
+                try {
+                    Map.Entry<String, T> answer = done.get();
+                    gathered.results.put(answer.getKey(), answer.getValue());
+                } catch (ExecutionException e) {
+                    // Reported as unavailable below, together with the markets that timed out
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (Map.Entry<String, Future<Map.Entry<String, T>>> entry : pending.entrySet()) {
+            if (!gathered.results.containsKey(entry.getKey())) {
+                entry.getValue().cancel(true);
+                gathered.unavailable.add(entry.getKey());
+            }
+        }
+        return gathered;
+    }
+
+    // Timed from the peer-call thread, so the time spent queued behind the deadline is not
+    // included. parent is the caller's current trace context, carried over from its thread.
+    private <T> T invoke(String market, PeerCall<S, T> call, TraceContext parent) throws Exception {
+        MarketMetrics.Timer timer = metrics != null ? metrics.peer(market) : null;
+        Tracer spans = tracer;
+        Tracer.Span span = spans != null ? spans.clientSpan("rmi", market, parent) : null;
+        TraceContext previous = TraceContext.enter(span != null ? span.getContext() : parent);
+        long start = System.nanoTime();
+        try {
+            T result = invokeStub(market, call);
+            if (timer != null) {
+                timer.record(System.nanoTime() - start);
+            }
+            return result;
+        } catch (Exception e) {
+            if (timer != null) {
+                timer.recordError(System.nanoTime() - start);
+            }
+            if (span != null) {
+                span.fail();
+            }
+            throw e;
+        } finally {
+            TraceContext.restore(previous);
+            if (spans != null) {
+                spans.finish(span);
+            }
+        }
+    }
+
+    private <T> T invokeStub(String market, PeerCall<S, T> call) throws Exception {
+        S stub = stubs.get(market);
+        if (stub != null) {
+            stubHits.incrementAndGet();
+        } else {
+            stubMisses.incrementAndGet();
+            stub = resolve(market);
+        }
+
+        try {
+            return call.call(stub);
+        } catch (NoSuchObjectException | ConnectException | ConnectIOException e) {
+            // The call never reached the peer (restarted or re-bound), so it is safe to
+            // look the market up again and retry once with the fresh stub
+            stubs.remove(market, stub);
+            stubReResolves.incrementAndGet();
+            return call.call(resolve(market));
+        } catch (RemoteException e) {
+            // The call may have executed, so don't retry; just make the next call re-resolve
+            stubs.remove(market, stub);
+            throw e;
+        }
+    }
+
+    // Failures that mean the call was never delivered: no stub could be found, or the
+    // connection was refused (invokeStub has already retried those once)
+    private static boolean neverReached(Throwable failure) {
+        return failure instanceof NotBoundException || failure instanceof NoSuchObjectException
+                || failure instanceof ConnectException || failure instanceof ConnectIOException
+                || failure instanceof UnknownHostException;
+    }
+
+    private S resolve(String market) throws Exception {
+        S stub = resolver.lookup(market);
+        stubs.put(market, stub);
+        return stub;
+    }
+
+    private static Topology.Market market(String name) {
+        Topology.Market market = Topology.current().market(name);
+        if (market == null) {
+            throw new IllegalArgumentException("Unknown market: " + name);
+        }
+        return market;
+    }
+
+    public void invalidate(String market) {
+        stubs.remove(market);
+    }
+
+    public long getStubHits() {
+        return stubHits.get();
+    }
+
+    public long getStubMisses() {
+        return stubMisses.get();
+    }
+
+    public long getStubReResolves() {
+        return stubReResolves.get();
+    }
+
+    public String stubCacheStats() {
+        return "Peer stub cache [hits: " + stubHits.get() + ", misses: " + stubMisses.get()
+                + ", re-resolves: " + stubReResolves.get() + ", cached: " + stubs.keySet() + "]";
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,68 @@
+package server;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// One buyer's positions in this market, as holding slot -> quantity in a primitive map.
+// Crediting and debiting an existing position neither boxes nor allocates; share IDs are
+// resolved to slots through the market-wide HoldingSlots. All access goes through the
+// portfolio's own monitor, i.e. a per-buyer lock.
+public class Portfolio {
+
+    private final HoldingSlots slots;
+    private final IntLongMap quantities = new IntLongMap(8);
+
+    public Portfolio(HoldingSlots slots) {
+        this.slots = slots;
+    }
+
+    public synchronized void credit(int slot, long quantity) {
+        quantities.addTo(slot, quantity);
+    }
+
+    // Slot of the position held under this share ID, or -1 if the buyer holds none
+    public synchronized int find(String shareID) {
+        for (int slot : slots.slotsOf(shareID)) {
+            if (quantities.containsKey(slot)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    // Takes quantity off the position; returns false (and changes nothing) if not enough is owned
+    public synchronized boolean debit(int slot, long quantity) {
+        if (!quantities.containsKey(slot)) {
+            return false;
+        }
+        long owned = quantities.get(slot);
+        if (quantity > owned) {
+            return false;
+        }
+
+        if (quantity == owned) {
+            quantities.remove(slot);
+        } else {
+            quantities.put(slot, owned - quantity);
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        return quantities.size();
+    }
+
+    public synchronized Map<HoldingKey, Integer> positions() {
+        Map<HoldingKey, Integer> copy = new HashMap<>();
+        quantities.forEach((slot, quantity) -> copy.put(slots.keyOf(slot), (int) quantity));
+        return copy;
+    }
+
+    // Display snapshot: "shareType-shareID" -> quantity
+    public synchronized Map<String, Integer> snapshot() {
+        Map<String, Integer> copy = new LinkedHashMap<>();
+        quantities.forEach((slot, quantity) -> copy.put(slots.keyOf(slot).toString(), (int) quantity));
+        return copy;
+    }
+}
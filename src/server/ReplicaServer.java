@@ -0,0 +1,231 @@
+package server;
+
+import java.io.IOException;
+import java.rmi.RemoteException;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+// Read-only replica of one market, fed by the primary's ReplicationStream. It is bound
+// under the market's name on its own RMI port (market.<name>.replicas in the topology) and
+// answers getShares and listShareAvailability from its copy of the
+// market; every update is refused and has to go to the primary.
+//
+// Staleness is bounded: the replica counts as current while it has applied everything the
+// primary had committed as of a message received within dsms.replica.maxStalenessMs
+// (1000). Past that, e.g. while catching up or cut off from the primary, reads are passed
+// on to the primary instead of being answered from old data.
+//
+// Installing a copy empties the market and fills it again, and a group commit changes
+// several entries, so both run under the write side of the store's mutation lock and reads
+// answered here hold the read side while they take the replica's own part: a read sees the
+// market between installs and commits, never half of one.
+public class ReplicaServer extends UnicastRemoteObject implements ShareMarketServer, MarketReplica {
+    private static final long serialVersionUID = 1L;
+
+    private static final long MAX_STALENESS_MS = Long.getLong("dsms.replica.maxStalenessMs", 1000);
+
+    private final String city;
+    private final String instance;
+    private final ShareMarketServerImpl state;
+    private final MarketStore.Target target;
+    private final PeerMarkets<ShareMarketServer> primary;
+
+    // Guarded by this
+    private long appliedSeq = -1;
+    private long baseLsn;
+    // When the replica last knew itself to have everything the primary had (nanoTime), 0 if never
+    private volatile long currentAt;
+
+    private final AtomicLong servedHere = new AtomicLong();
+    private final AtomicLong passedToPrimary = new AtomicLong();
+    private final AtomicLong appliedRecords = new AtomicLong();
+
+    public ReplicaServer(String city, String instance) throws RemoteException {
+        super();
+        this.city = city;
+        this.instance = instance;
+        this.state = ShareMarketServerImpl.replicaOf(city, instance);
+        this.target = state.replicationTarget();
+        this.primary = PeerMarkets.clientSides(instance);
+        primary.setMetrics(state.getMetrics());
+        primary.setTracer(state.getTracer());
+    }
+
+    // The replica's own calls and the reads passed on to the primary
+    public MarketMetrics getMetrics() {
+        return state.getMetrics();
+    }
+
+    public Tracer getTracer() {
+        return state.getTracer();
+    }
+
+    public void applyTopology(Topology topology) {
+        state.applyTopology(topology);
+        primary.invalidate(city);
+    }
+
+    @Override
+    public synchronized long install(byte[] snapshot, long seq) throws RemoteException {
+        currentAt = 0;
+        Lock install = state.getStore().mutationLock().writeLock();
+        install.lock();
+        try {
+            state.resetState();
+            baseLsn = MarketStore.applyState(snapshot, target);
+        } catch (IOException e) {
+            appliedSeq = -1;
+            throw new RemoteException("Could not install state of " + city, e);
+        } finally {
+            install.unlock();
+        }
+        appliedSeq = seq;
+        System.out.println(instance + ": installed state of " + city + " at commit " + seq + " (LSN " + baseLsn + ")");
+        return appliedSeq;
+    }
+
+    @Override
+    public synchronized long replicate(long firstSeq, long lastSeq, byte[] records, long headSeq) throws RemoteException {
+        if (appliedSeq < 0 || firstSeq != appliedSeq + 1) {
+            // Missing commits in between (or no state at all): tell the primary where we are
+            return appliedSeq;
+        }
+        if (records.length > 0) {
+            Lock apply = state.getStore().mutationLock().writeLock();
+            apply.lock();
+            try {
+                appliedRecords.addAndGet(MarketStore.applyRecords(records, baseLsn, target));
+            } catch (IOException e) {
+                // Half-applied records cannot be undone, so start over from a full copy
+                appliedSeq = -1;
+                currentAt = 0;
+                throw new RemoteException("Could not apply commits " + firstSeq + ".." + lastSeq, e);
+            } finally {
+                apply.unlock();
+            }
+            appliedSeq = lastSeq;
+        }
+        if (appliedSeq >= headSeq) {
+            currentAt = System.nanoTime();
+        }
+        return appliedSeq;
+    }
+
+    // How far behind the primary the replica may be, in milliseconds
+    public long stalenessMillis() {
+        long at = currentAt;
+        return at == 0 ? Long.MAX_VALUE : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - at);
+    }
+
+    private boolean current() {
+        return stalenessMillis() <= MAX_STALENESS_MS;
+    }
+
+    private <T> T fromPrimary(PeerMarkets.PeerCall<ShareMarketServer, T> call) throws RemoteException {
+        passedToPrimary.incrementAndGet();
+        try {
+            return primary.call(city, call);
+        } catch (MarketUnavailableException e) {
+            throw new RemoteException("Replica " + instance + " is behind and " + e.getMessage(), e);
+        }
+    }
+
+    // Only the replica's own part of a read is taken under the lock; the other markets are
+    // asked after it is released, so a slow market does not hold up install and replicate
+    @Override
+    public String getShares(String buyerID) throws RemoteException {
+        Holdings local = null;
+        Lock read = state.getStore().mutationLock().readLock();
+        read.lock();
+        try {
+            if (current()) {
+                local = state.getLocalHoldings(buyerID, TraceContext.current());
+            }
+        } finally {
+            read.unlock();
+        }
+        if (local == null) {
+            return fromPrimary(market -> market.getShares(buyerID));
+        }
+        servedHere.incrementAndGet();
+        return state.getShares(buyerID, local);
+    }
+
+    @Override
+    public String listShareAvailability(String shareType) throws RemoteException {
+        StringBuilder local = null;
+        Lock read = state.getStore().mutationLock().readLock();
+        read.lock();
+        try {
+            if (current()) {
+                local = state.localAvailability(shareType);
+            }
+        } finally {
+            read.unlock();
+        }
+        if (local == null) {
+            return fromPrimary(market -> market.listShareAvailability(shareType));
+        }
+        servedHere.incrementAndGet();
+        return state.listShareAvailability(shareType, local);
+    }
+
+    private String readOnly() {
+        return "Read-only replica of " + city + "; send updates to the " + city + " server.";
+    }
+
+    @Override
+    public String addShare(String shareID, String shareType, int capacity) {
+        return readOnly();
+    }
+
+    @Override
+    public String removeShare(String shareID, String shareType) {
+        return readOnly();
+    }
+
+    @Override
+    public String purchaseShare(String buyerID, String shareID, String shareType, int shareCount) {
+        return readOnly();
+    }
+
+    @Override
+    public String sellShare(String buyerID, String shareID, int shareCount) {
+        return readOnly();
+    }
+
+    @Override
+    public String purchaseRemoteShare(String buyerID, String shareID, String shareType, int shareCount,
+                                      String targetMarket) {
+        return readOnly();
+    }
+
+    @Override
+    public String sellRemoteShare(String buyerID, String shareID, String shareType, int shareCount,
+                                  String targetMarket) {
+        return readOnly();
+    }
+
+    @Override
+    public List<String> placeOrders(String buyerID, List<OrderItem> items, boolean allOrNothing) {
+        return Collections.nCopies(items.size(), readOnly());
+    }
+
+    public String stats() {
+        long staleness = stalenessMillis();
+        synchronized (this) {
+            return "Replica [commit: " + appliedSeq + ", records applied: " + appliedRecords.get()
+                    + ", staleness: " + (staleness == Long.MAX_VALUE ? "unknown" : staleness + "ms")
+                    + ", reads served: " + servedHere.get() + ", passed to primary: " + passedToPrimary.get() + "]";
+        }
+    }
+
+    public void close() {
+        primary.shutdown();
+        state.getAuditLog().close();
+    }
+}
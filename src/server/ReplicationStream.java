@@ -0,0 +1,195 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Primary side of read replication. Every durable WAL group commit of the market is kept
+// in a bounded in-memory window and shipped, in its WAL encoding, to each replica by a
+// sender thread of its own, so a slow or dead replica never holds up the primary or the
+// other replicas. A replica that is new, restarted or fell out of the window is first
+// given a full copy of the state (MarketStore.encodeState) and then the commits after it.
+// While idle, senders send heartbeats so replicas can tell how current they are.
+//
+// Tunables (system properties):
+//   dsms.replication.window       group commits kept for replicas that fall behind (8192)
+//   dsms.replication.heartbeatMs  heartbeat period while there is nothing to ship (200)
+//   dsms.replication.retryMs      wait before retrying an unreachable replica (1000)
+public class ReplicationStream implements MarketStore.BatchListener {
+
+    private static final int WINDOW = Integer.getInteger("dsms.replication.window", 8192);
+    private static final long HEARTBEAT_MS = Long.getLong("dsms.replication.heartbeatMs", 200);
+    private static final long RETRY_MS = Long.getLong("dsms.replication.retryMs", 1000);
+    private static final int MAX_SHIPMENT_BYTES = 1 << 20;
+
+    // Commits firstSeq..lastSeq concatenated; empty for a heartbeat
+    private static final class Shipment {
+        final long firstSeq;
+        final long lastSeq;
+        final long headSeq;
+        final byte[] records;
+
+        Shipment(long firstSeq, long lastSeq, long headSeq, byte[] records) {
+            this.firstSeq = firstSeq;
+            this.lastSeq = lastSeq;
+            this.headSeq = headSeq;
+            this.records = records;
+        }
+    }
+
+    private final String city;
+    private final MarketStore store;
+    private final List<Topology.Endpoint> replicas;
+    private final List<Thread> senders = new ArrayList<>();
+
+    // Guarded by this
+    private final ArrayDeque<byte[]> window = new ArrayDeque<>();
+    private long headSeq;
+
+    private final AtomicLong shippedCommits = new AtomicLong();
+    private final AtomicLong shippedBytes = new AtomicLong();
+    private final AtomicLong installs = new AtomicLong();
+    private volatile boolean closed;
+
+    public ReplicationStream(String city, MarketStore store, List<Topology.Endpoint> replicas) {
+        this.city = city;
+        this.store = store;
+        this.replicas = replicas;
+    }
+
+    public void start() {
+        store.setBatchListener(this);
+        for (Topology.Endpoint replica : replicas) {
+            Thread sender = new Thread(() -> ship(replica), city + "-replication-" + replica);
+            sender.setDaemon(true);
+            senders.add(sender);
+            sender.start();
+        }
+    }
+
+    @Override
+    public synchronized void written(byte[] records) {
+        window.addLast(records);
+        headSeq++;
+        if (window.size() > WINDOW) {
+            window.removeFirst();
+        }
+        notifyAll();
+    }
+
+    // Waits up to the heartbeat period for commits from nextSeq on; null if nextSeq has
+    // already left the window
+    private synchronized Shipment next(long nextSeq) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(HEARTBEAT_MS);
+        long remaining;
+        while (headSeq < nextSeq && !closed && (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        long oldestSeq = headSeq - window.size() + 1;
+        if (nextSeq < oldestSeq) {
+            return null;
+        }
+
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        long lastSeq = nextSeq - 1;
+        Iterator<byte[]> commits = window.iterator();
+        for (long seq = oldestSeq; seq <= headSeq && commits.hasNext(); seq++) {
+            byte[] commit = commits.next();
+            if (seq < nextSeq) {
+                continue;
+            }
+            if (records.size() > 0 && records.size() + commit.length > MAX_SHIPMENT_BYTES) {
+                break;
+            }
+            records.write(commit, 0, commit.length);
+            lastSeq = seq;
+        }
+        return new Shipment(nextSeq, lastSeq, headSeq, records.toByteArray());
+    }
+
+    private void ship(Topology.Endpoint endpoint) {
+        MarketReplica replica = null;
+        long nextSeq = -1; // unknown until the replica says what it has
+        boolean reported = false;
+
+        while (!closed) {
+            try {
+                if (replica == null) {
+                    Registry registry = LocateRegistry.getRegistry(endpoint.getHost(), endpoint.getPort());
+                    replica = (MarketReplica) registry.lookup(city);
+                }
+                if (nextSeq < 0) {
+                    nextSeq = install(replica) + 1;
+                    reported = false;
+                    continue;
+                }
+
+                Shipment shipment = next(nextSeq);
+                if (shipment == null) {
+                    System.out.println(city + ": replica " + endpoint + " fell behind the replication window");
+                    nextSeq = -1;
+                    continue;
+                }
+                long applied = replica.replicate(shipment.firstSeq, shipment.lastSeq, shipment.records, shipment.headSeq);
+                if (applied == shipment.lastSeq) {
+                    shippedCommits.addAndGet(shipment.lastSeq - shipment.firstSeq + 1);
+                    shippedBytes.addAndGet(shipment.records.length);
+                }
+                // Resend from wherever the replica actually is; -1 means it lost its state
+                nextSeq = applied < 0 ? -1 : applied + 1;
+                reported = false;
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                if (!reported) {
+                    System.out.println(city + ": replica " + endpoint + " unreachable (" + e.getMessage()
+                            + "), retrying every " + RETRY_MS + "ms");
+                    reported = true;
+                }
+                replica = null;
+                try {
+                    Thread.sleep(RETRY_MS);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+            }
+        }
+    }
+
+    // Ships the whole market; the copy covers exactly the commits up to the returned seq
+    private long install(MarketReplica replica) throws Exception {
+        long[] coveredSeq = new long[1];
+        byte[] state = store.encodeState(() -> {
+            synchronized (this) {
+                coveredSeq[0] = headSeq;
+            }
+        });
+        installs.incrementAndGet();
+        return replica.install(state, coveredSeq[0]);
+    }
+
+    public synchronized long getHeadSeq() {
+        return headSeq;
+    }
+
+    public String stats() {
+        return "Replication [replicas: " + replicas + ", head: " + getHeadSeq() + ", shipped commits: "
+                + shippedCommits.get() + ", bytes: " + shippedBytes.get() + ", installs: " + installs.get() + "]";
+    }
+
+    public void close() {
+        closed = true;
+        synchronized (this) {
+            notifyAll();
+        }
+        for (Thread sender : senders) {
+            sender.interrupt();
+        }
+    }
+}
@@ -0,0 +1,230 @@
+package server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+// Pending first-phase holds of a two-phase order. What a hold means (capacity taken off a
+// share, or units taken out of a buyer's portfolio) is up to the market; this class only
+// hands out IDs, finds holds again for commit/abort and expires the ones whose
+// coordinator never came back. A batch is committed whole or not at all, and the outcome
+// of a batch is remembered for a while, so a coordinator whose commit call timed out can
+// still learn from abort whether it went through.
+public class Reservations {
+
+    // How long the outcome of a batch can still be asked about
+    private static final long COMMITTED_RETENTION_MS = 60_000;
+
+    public static class Hold {
+        private final String reservationID;
+        private final String buyerID;
+        private final OrderItem item;
+        private final int slot;
+        private final long expiresAt;
+
+        Hold(String reservationID, String buyerID, OrderItem item, int slot, long expiresAt) {
+            this.reservationID = reservationID;
+            this.buyerID = buyerID;
+            this.item = item;
+            this.slot = slot;
+            this.expiresAt = expiresAt;
+        }
+
+        public String getReservationID() {
+            return reservationID;
+        }
+
+        public String getBuyerID() {
+            return buyerID;
+        }
+
+        public OrderItem getItem() {
+            return item;
+        }
+
+        // Holding slot of the position the hold credits or debited
+        public int getSlot() {
+            return slot;
+        }
+    }
+
+    private static final class Outcome {
+        final long claimedAt = System.currentTimeMillis();
+        private Boolean committed;
+
+        synchronized void complete(boolean committed) {
+            if (this.committed == null) {
+                this.committed = committed;
+                notifyAll();
+            }
+        }
+
+        synchronized boolean await() {
+            boolean interrupted = false;
+            while (committed == null) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return committed;
+        }
+    }
+
+    private final String city;
+    private final Map<String, Hold> holds = new ConcurrentHashMap<>();
+    // Outcome of every batch claimed in the last COMMITTED_RETENTION_MS, by reservation ID
+    private final Map<String, Outcome> outcomes = new ConcurrentHashMap<>();
+    private final AtomicLong nextID = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final ScheduledExecutorService reaper;
+
+    public Reservations(String city, long reapIntervalMillis, Consumer<Hold> onExpire) {
+        this.city = city;
+        this.reaper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, city + "-reservation-reaper");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reaper.scheduleWithFixedDelay(() -> reap(onExpire), reapIntervalMillis, reapIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    public Hold add(String buyerID, OrderItem item, int slot, long ttlMillis) {
+        String id = city + "-" + nextID.incrementAndGet();
+        Hold hold = new Hold(id, buyerID, item, slot, System.currentTimeMillis() + ttlMillis);
+        holds.put(id, hold);
+        return hold;
+    }
+
+    // Follows a hold made by another process under that process's ID (a shard router
+    // keeps track of the holds its shards made for it)
+    public Hold track(String reservationID, String buyerID, OrderItem item, long ttlMillis) {
+        Hold hold = new Hold(reservationID, buyerID, item, -1, System.currentTimeMillis() + ttlMillis);
+        holds.put(reservationID, hold);
+        return hold;
+    }
+
+    // Removes and returns the hold; null if it was already committed, aborted or expired.
+    // Whoever gets the hold here is the only one allowed to settle it.
+    public Hold take(String reservationID) {
+        return reservationID != null ? holds.remove(reservationID) : null;
+    }
+
+    // Removes and returns the holds of a batch, or null if any of them was already
+    // committed, aborted or expired; then none is taken, so the caller applies all of the
+    // batch or nothing. A batch handed out here is committed.
+    public List<Hold> commit(List<String> reservationIDs) {
+        List<Hold> taken = claim(reservationIDs);
+        if (taken != null) {
+            settle(reservationIDs, true);
+        }
+        return taken;
+    }
+
+    // As commit, for a caller that only learns later whether the batch was applied and
+    // reports it with settle; until then wasCommitted waits for the outcome
+    public synchronized List<Hold> claim(List<String> reservationIDs) {
+        List<Hold> taken = new ArrayList<>(reservationIDs.size());
+        for (String id : reservationIDs) {
+            Hold hold = take(id);
+            if (hold == null) {
+                for (Hold back : taken) {
+                    holds.put(back.reservationID, back);
+                }
+                return null;
+            }
+            taken.add(hold);
+        }
+        Outcome outcome = new Outcome();
+        for (String id : reservationIDs) {
+            outcomes.put(id, outcome);
+        }
+        return taken;
+    }
+
+    public void settle(List<String> reservationIDs, boolean committed) {
+        for (String id : reservationIDs) {
+            Outcome outcome = outcomes.get(id);
+            if (outcome != null) {
+                outcome.complete(committed);
+            }
+        }
+    }
+
+    // Removes and returns the holds still pending. Once this returns, none of the IDs can
+    // be claimed any more, so wasCommitted gives the batch's final outcome.
+    public synchronized List<Hold> abort(List<String> reservationIDs) {
+        List<Hold> released = new ArrayList<>();
+        for (String id : reservationIDs) {
+            Hold hold = take(id);
+            if (hold != null) {
+                released.add(hold);
+            }
+        }
+        return released;
+    }
+
+    // Whether a batch with any of these IDs was committed; waits for a claimed batch
+    // still being settled
+    public boolean wasCommitted(List<String> reservationIDs) {
+        for (String id : reservationIDs) {
+            Outcome outcome = id != null ? outcomes.get(id) : null;
+            if (outcome != null && outcome.await()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Hands every hold past its TTL to onExpire, which takes it with expire and settles it;
+    // the owner can so remove and release it inside one critical section of its own
+    private void reap(Consumer<Hold> onExpire) {
+        long now = System.currentTimeMillis();
+        outcomes.values().removeIf(outcome -> outcome.claimedAt <= now - COMMITTED_RETENTION_MS);
+        for (Hold hold : holds.values()) {
+            if (hold.expiresAt <= now) {
+                try {
+                    onExpire.accept(hold);
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Removes a hold the reaper handed out; false if it was committed or aborted meanwhile
+    public boolean expire(Hold hold) {
+        if (holds.remove(hold.reservationID, hold)) {
+            expired.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    public Iterable<Hold> pending() {
+        return holds.values();
+    }
+
+    public int getPending() {
+        return holds.size();
+    }
+
+    public long getExpired() {
+        return expired.get();
+    }
+
+    public void shutdown() {
+        reaper.shutdownNow();
+    }
+}
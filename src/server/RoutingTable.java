@@ -0,0 +1,74 @@
+package server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Decides which market owns a share so a forwarded call goes straight to it. Share IDs
+// start with their market's city code from the topology (NYK..., LON..., TOK...); IDs that
+// don't follow the rule, or turn out to live elsewhere, are found once by probing and
+// then remembered.
+public class RoutingTable {
+
+    private static final int DEFAULT_CACHE_SIZE = Integer.getInteger("dsms.routing.cacheSize", 100_000);
+
+    private final Topology topology;
+    private final Map<String, String> learned = new ConcurrentHashMap<>();
+    private final int cacheSize;
+
+    private final AtomicLong prefixRoutes = new AtomicLong();
+    private final AtomicLong learnedRoutes = new AtomicLong();
+    private final AtomicLong unrouted = new AtomicLong();
+    private final AtomicLong misroutes = new AtomicLong();
+
+    public RoutingTable(Topology topology) {
+        this(topology, DEFAULT_CACHE_SIZE);
+    }
+
+    public RoutingTable(Topology topology, int cacheSize) {
+        this.topology = topology;
+        this.cacheSize = cacheSize;
+    }
+
+    // Owning market of the share, or null if neither the cache nor the prefix rule knows
+    public String ownerOf(String shareID) {
+        String market = learned.get(shareID);
+        if (market != null) {
+            learnedRoutes.incrementAndGet();
+            return market;
+        }
+        Topology.Market byPrefix = topology.marketForID(shareID);
+        if (byPrefix != null) {
+            market = byPrefix.getName();
+            prefixRoutes.incrementAndGet();
+        } else {
+            unrouted.incrementAndGet();
+        }
+        return market;
+    }
+
+    // Remembers where a probe actually found the share
+    public void learn(String shareID, String market) {
+        if (learned.size() >= cacheSize) {
+            // Crude bound: start over rather than track recency on every lookup
+            learned.clear();
+        }
+        learned.put(shareID, market);
+    }
+
+    // The routed market did not have the share; drop what we believed about it
+    public void misrouted(String shareID) {
+        misroutes.incrementAndGet();
+        learned.remove(shareID);
+    }
+
+    public long getMisroutes() {
+        return misroutes.get();
+    }
+
+    public String stats() {
+        return "Routing [prefix: " + prefixRoutes.get() + ", learned: " + learnedRoutes.get()
+                + ", unrouted: " + unrouted.get() + ", misroutes: " + misroutes.get()
+                + ", cached: " + learned.size() + "]";
+    }
+}
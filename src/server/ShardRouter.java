@@ -0,0 +1,526 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// RMI front end of a sharded market. The market's share catalogue is hash-partitioned
+// over N ShareMarketServerImpl processes (see Topology, market.<name>.shards); the router
+// is bound under the market's own name and sends every per-share call to the shard that
+// owns the share ID, and merges the answers of all shards for per-market views. Its peer
+// side (MarketPeer) does the same for other markets, towards the shards' peer sides. Apart
+// from the two-phase holds in flight it keeps no state of its own, so clients and other
+// markets cannot tell a sharded market apart.
+//
+// The shard count is read once at startup: changing it needs the data moved between
+// shards, which a topology reload cannot do.
+public class ShardRouter extends UnicastRemoteObject implements ShareMarketServer, MarketPeer {
+    private static final long serialVersionUID = 1L;
+
+    private final String city;
+    private final List<Topology.Shard> shards;
+    // Calls to this market's shards, client and peer side, and to the other markets
+    private final PeerMarkets<ShareMarketServer> shardCalls;
+    private final PeerMarkets<MarketPeer> shardPeers;
+    private final PeerMarkets<MarketPeer> peers;
+    private final UDPPeerClient udpPeers;
+    private final Map<String, InetSocketAddress> remoteServers = new ConcurrentHashMap<>();
+    private final AtomicLong[] routed;
+    // Holds the shards made for reserveOrders, so a commit that only some shards
+    // managed can be rolled back on the others; the shards expire their own holds
+    private final Reservations holds;
+
+    public ShardRouter(Topology.Market market) throws RemoteException {
+        super();
+        this.city = market.getName();
+        this.shards = market.getShards();
+        this.routed = new AtomicLong[shards.size()];
+        for (int i = 0; i < routed.length; i++) {
+            routed[i] = new AtomicLong();
+        }
+
+        Map<String, Topology.Shard> byName = new LinkedHashMap<>();
+        for (Topology.Shard shard : shards) {
+            byName.put(shard.getName(), shard);
+        }
+        long timeoutMillis = Long.getLong("dsms.peer.timeoutMs", 3000);
+        this.shardCalls = new PeerMarkets<>(city + "-router", timeoutMillis, name -> {
+            Topology.Shard shard = byName.get(name);
+            Registry registry = LocateRegistry.getRegistry(shard.getHost(), shard.getRmiPort());
+            return (ShareMarketServer) registry.lookup(name);
+        });
+        this.shardPeers = new PeerMarkets<>(city + "-router", timeoutMillis, name -> {
+            Topology.Shard shard = byName.get(name);
+            Registry registry = LocateRegistry.getRegistry(shard.getHost(), shard.getPeerPort());
+            return (MarketPeer) registry.lookup(Topology.peerBinding(name));
+        });
+        this.peers = PeerMarkets.peerSides(city);
+        this.holds = new Reservations(city + "-router", Long.getLong("dsms.reservation.reapMs", 500), this::forget);
+        try {
+            this.udpPeers = new UDPPeerClient();
+        } catch (IOException e) {
+            throw new RemoteException("Could not open UDP peer channel", e);
+        }
+    }
+
+    public void applyTopology(Topology topology) {
+        for (Topology.Market market : topology.markets()) {
+            if (!market.getName().equals(this.city)) {
+                InetSocketAddress address = new InetSocketAddress(market.getHost(), market.getUdpPort());
+                if (!address.equals(remoteServers.put(market.getName(), address))) {
+                    peers.invalidate(market.getName());
+                }
+            }
+        }
+        remoteServers.keySet().removeIf(name -> topology.market(name) == null);
+    }
+
+    // Shard that owns the share ID; the same hash wherever it is computed
+    static int shardOf(String shareID, int shardCount) {
+        return Math.floorMod(shareID.hashCode(), shardCount);
+    }
+
+    // Counted in routed, so stats() shows how the per-share calls spread over the shards
+    private String shardFor(String key) {
+        int index = shardOf(key, shards.size());
+        routed[index].incrementAndGet();
+        return shards.get(index).getName();
+    }
+
+    private <S extends Remote> String onShard(PeerMarkets<S> calls, String key, PeerMarkets.PeerCall<S, String> call,
+                                              String failure) {
+        String shard = shardFor(key);
+        try {
+            return calls.call(shard, call);
+        } catch (MarketUnavailableException e) {
+            System.out.println(city + ": " + e.getMessage());
+            return failure + " Market " + city + " is unavailable" + (e.isOutcomeUnknown() ? "; outcome unknown." : ".");
+        }
+    }
+
+    // Records the router's calls to its shards, to other markets and over UDP as client spans
+    public void setTracer(Tracer tracer) {
+        shardCalls.setTracer(tracer);
+        shardPeers.setTracer(tracer);
+        peers.setTracer(tracer);
+        udpPeers.setTracer(tracer);
+    }
+
+    public PeerMarkets<ShareMarketServer> getShardCalls() {
+        return shardCalls;
+    }
+
+    public PeerMarkets<MarketPeer> getShardPeers() {
+        return shardPeers;
+    }
+
+    public PeerMarkets<MarketPeer> getPeerMarkets() {
+        return peers;
+    }
+
+    public String stats() {
+        long[] counts = new long[routed.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = routed[i].get();
+        }
+        return "Shard router [shards: " + shards.size() + ", routed per shard: " + Arrays.toString(counts) + "]";
+    }
+
+    @Override
+    public String addShare(String shareID, String shareType, int availableCapacity) {
+        return onShard(shardCalls, shareID, shard -> shard.addShare(shareID, shareType, availableCapacity),
+                "Add share failed.");
+    }
+
+    @Override
+    public String removeShare(String shareID, String shareType) {
+        return onShard(shardCalls, shareID, shard -> shard.removeShare(shareID, shareType), "Remove share failed.");
+    }
+
+    @Override
+    public String purchaseShare(String buyerID, String shareID, String shareType, int shareCount) {
+        // A share this market does not have is looked for elsewhere by the shard itself
+        return onShard(shardCalls, shareID, shard -> shard.purchaseShare(buyerID, shareID, shareType, shareCount),
+                "Purchase failed.");
+    }
+
+    @Override
+    public String sellShare(String buyerID, String shareID, int quantity) {
+        return onShard(shardCalls, shareID, shard -> shard.sellShare(buyerID, shareID, quantity), "Sell failed.");
+    }
+
+    @Override
+    public String purchaseRemoteShare(String buyerID, String shareID, String shareType, int shareCount,
+                                      String targetMarket) {
+        return onShard(shardCalls, shareID,
+                shard -> shard.purchaseRemoteShare(buyerID, shareID, shareType, shareCount, targetMarket),
+                "Purchase failed.");
+    }
+
+    @Override
+    public String sellRemoteShare(String buyerID, String shareID, String shareType, int shareCount,
+                                  String targetMarket) {
+        return onShard(shardCalls, shareID,
+                shard -> shard.sellRemoteShare(buyerID, shareID, shareType, shareCount, targetMarket),
+                "Sell failed.");
+    }
+
+    @Override
+    public String purchaseLocalShare(String buyerID, String shareID, String shareType, int shareCount,
+                                     TraceContext trace) {
+        return onShard(shardPeers, shareID,
+                shard -> shard.purchaseLocalShare(buyerID, shareID, shareType, shareCount, TraceContext.current()),
+                "Purchase failed.");
+    }
+
+    @Override
+    public String sellLocalShare(String buyerID, String shareID, int shareCount, TraceContext trace) {
+        return onShard(shardPeers, shareID,
+                shard -> shard.sellLocalShare(buyerID, shareID, shareCount, TraceContext.current()), "Sell failed.");
+    }
+
+    @Override
+    public String getShares(String buyerID) {
+        Holdings holdings = new Holdings();
+        List<String> unavailable = new ArrayList<>();
+
+        PeerMarkets.Gathered<Holdings> local = shardPeers.callAll(shardNames(),
+                shard -> shard.getLocalHoldings(buyerID, TraceContext.current()));
+        local.getResults().values().forEach(holdings::putAll);
+        if (local.isPartial()) {
+            unavailable.add(city);
+        }
+
+        List<String> remoteNames = new ArrayList<>(remoteServers.keySet());
+        PeerMarkets.Gathered<Holdings> remote = peers.callAll(remoteNames,
+                peer -> peer.getLocalHoldings(buyerID, TraceContext.current()));
+        remote.getResults().values().forEach(holdings::putAll);
+        unavailable.addAll(remote.getUnavailable());
+
+        return holdings.format(unavailable);
+    }
+
+    @Override
+    public Holdings getLocalHoldings(String buyerID, TraceContext trace) throws RemoteException {
+        PeerMarkets.Gathered<Holdings> gathered = shardPeers.callAll(shardNames(),
+                shard -> shard.getLocalHoldings(buyerID, TraceContext.current()));
+        if (gathered.isPartial()) {
+            // Half a portfolio would look like a complete one to the caller
+            throw new RemoteException("Shards " + gathered.getUnavailable() + " of " + city + " are unavailable");
+        }
+        Holdings holdings = new Holdings();
+        gathered.getResults().values().forEach(holdings::putAll);
+        return holdings;
+    }
+
+    @Override
+    public String listShareAvailability(String shareType) {
+        Map<String, InetSocketAddress> targets = new LinkedHashMap<>(shardAddresses());
+        targets.putAll(remoteServers);
+        PeerMarkets.Gathered<List<AvailabilityCodec.Entry>> gathered = udpPeers.listAvailability(targets, shareType);
+
+        StringBuilder availability = new StringBuilder();
+        boolean shardMissing = false;
+        for (String name : targets.keySet()) {
+            List<AvailabilityCodec.Entry> entries = gathered.getResults().get(name);
+            boolean isShard = !remoteServers.containsKey(name);
+            if (entries == null) {
+                shardMissing |= isShard;
+                continue;
+            }
+            for (AvailabilityCodec.Entry entry : entries) {
+                // This market's shares first and in the local format, as an unsharded market lists them
+                if (isShard) {
+                    availability.append("[Share ID: ").append(entry.getShareID())
+                            .append(", Type: ").append(entry.getShareType())
+                            .append(", Available: ").append(entry.getAvailable()).append("]\n");
+                } else {
+                    availability.append("Share: ").append(entry.getShareID())
+                            .append(", Type: ").append(entry.getShareType())
+                            .append(", Available: ").append(entry.getAvailable()).append("\n");
+                }
+            }
+        }
+
+        List<String> unavailable = new ArrayList<>();
+        if (shardMissing) {
+            unavailable.add(city);
+        }
+        for (String name : gathered.getUnavailable()) {
+            if (remoteServers.containsKey(name)) {
+                unavailable.add(name);
+            }
+        }
+        if (!unavailable.isEmpty()) {
+            availability.append("(Markets not responding: ").append(String.join(", ", unavailable)).append(")");
+        }
+        return availability.toString().trim();
+    }
+
+    // What the UDP responder on the market's port reports to other markets
+    Iterable<Share> sharesOfType(String shareType) {
+        PeerMarkets.Gathered<List<AvailabilityCodec.Entry>> gathered = udpPeers.listAvailability(shardAddresses(), shareType);
+        if (gathered.isPartial()) {
+            System.out.println(city + ": availability from " + gathered.getUnavailable() + " missing");
+        }
+        List<Share> shares = new ArrayList<>();
+        for (List<AvailabilityCodec.Entry> entries : gathered.getResults().values()) {
+            for (AvailabilityCodec.Entry entry : entries) {
+                shares.add(new Share(entry.getShareID(), entry.getShareType(), entry.getAvailable()));
+            }
+        }
+        return shares;
+    }
+
+    @Override
+    public List<String> placeOrders(String buyerID, List<OrderItem> items, boolean allOrNothing) throws RemoteException {
+        // Any shard can coordinate: it hands this market's items back to placeLocalOrders /
+        // reserveOrders below, which split them by owning shard and count them there. The
+        // coordinator is spread by buyer but not counted, as it owns none of the items.
+        String coordinator = shards.get(shardOf(buyerID, shards.size())).getName();
+        try {
+            return shardCalls.call(coordinator, shard -> shard.placeOrders(buyerID, items, allOrNothing));
+        } catch (MarketUnavailableException e) {
+            throw new RemoteException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public List<String> placeLocalOrders(String buyerID, List<OrderItem> items, boolean allOrNothing,
+                                         TraceContext trace) {
+        Map<String, List<Integer>> byShard = splitByShard(items);
+        if (allOrNothing && byShard.size() > 1) {
+            return placeAcrossShards(buyerID, items, byShard);
+        }
+
+        String[] results = new String[items.size()];
+        Map<String, PeerMarkets.PeerCall<MarketPeer, List<String>>> calls = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Integer>> group : byShard.entrySet()) {
+            List<OrderItem> part = ShareMarketServerImpl.select(items, group.getValue());
+            calls.put(group.getKey(), shard -> shard.placeLocalOrders(buyerID, part, allOrNothing,
+                    TraceContext.current()));
+        }
+        PeerMarkets.Gathered<List<String>> gathered = shardPeers.callEach(calls);
+        for (Map.Entry<String, List<String>> answer : gathered.getResults().entrySet()) {
+            ShareMarketServerImpl.scatter(answer.getValue(), byShard.get(answer.getKey()), results);
+        }
+        for (String shard : gathered.getUnavailable()) {
+            for (int position : byShard.get(shard)) {
+                results[position] = "Order failed. Market " + city + " is unavailable; outcome unknown.";
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    // All-or-nothing batch spread over several shards: hold on every shard, then commit
+    private List<String> placeAcrossShards(String buyerID, List<OrderItem> items, Map<String, List<Integer>> byShard) {
+        List<String> ids = reserveOrders(buyerID, items, Long.getLong("dsms.reservation.ttlMs", 5000),
+                TraceContext.current());
+        int failedAt = ids.indexOf(null);
+        List<String> stuck = new ArrayList<>();
+        if (failedAt < 0 && commit(ids, stuck)) {
+            List<String> results = new ArrayList<>(items.size());
+            for (OrderItem item : items) {
+                results.add(ShareMarketServerImpl.successMessage(item));
+            }
+            return results;
+        }
+
+        // Holds left are released; a shard that went away between the phases drops its
+        // holds when they expire
+        abortReservations(ids, TraceContext.current());
+        String[] results = new String[items.size()];
+        for (int i = 0; i < results.length; i++) {
+            if (i == failedAt) {
+                results[i] = "Order failed. Could not reserve " + items.get(i) + " in " + city + ".";
+            } else if (stuck.contains(ids.get(i))) {
+                results[i] = "Order incomplete. Executed in " + city + " but could not be rolled back.";
+            } else {
+                results[i] = "Not executed. Batch aborted because " + (failedAt >= 0 ? "item " + (failedAt + 1) : city)
+                        + " failed.";
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    @Override
+    public List<String> reserveOrders(String buyerID, List<OrderItem> items, long ttlMillis, TraceContext trace) {
+        Map<String, List<Integer>> byShard = splitByShard(items);
+        Map<String, PeerMarkets.PeerCall<MarketPeer, List<String>>> calls = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Integer>> group : byShard.entrySet()) {
+            List<OrderItem> part = ShareMarketServerImpl.select(items, group.getValue());
+            calls.put(group.getKey(), shard -> shard.reserveOrders(buyerID, part, ttlMillis, TraceContext.current()));
+        }
+        // An unavailable shard leaves its positions null, i.e. not reserved
+        String[] ids = new String[items.size()];
+        for (Map.Entry<String, List<String>> answer : shardPeers.callEach(calls).getResults().entrySet()) {
+            ShareMarketServerImpl.scatter(answer.getValue(), byShard.get(answer.getKey()), ids);
+        }
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != null) {
+                holds.track(ids[i], buyerID, items.get(i), ttlMillis);
+            }
+        }
+        return Arrays.asList(ids);
+    }
+
+    // All or nothing across the shards, like a single market's (see MarketPeer)
+    @Override
+    public boolean commitReservations(List<String> reservationIDs, TraceContext trace) {
+        return commit(reservationIDs, new ArrayList<>());
+    }
+
+    // Commits the batch on every shard it spans. If some shard cannot, the shards that did
+    // commit are rolled back with the inverse orders, so false means nothing was applied,
+    // except for the IDs added to stuck: items whose shard could be neither asked nor
+    // rolled back.
+    private boolean commit(List<String> reservationIDs, List<String> stuck) {
+        List<Reservations.Hold> claimed = holds.claim(reservationIDs);
+        if (claimed == null) {
+            return false;
+        }
+        boolean committed = false;
+        try {
+            Map<String, List<String>> byShard = splitReservations(reservationIDs);
+            if (byShard.containsKey(null)) {
+                return false;
+            }
+            Map<String, PeerMarkets.PeerCall<MarketPeer, Boolean>> calls = new LinkedHashMap<>();
+            for (Map.Entry<String, List<String>> group : byShard.entrySet()) {
+                calls.put(group.getKey(), shard -> shard.commitReservations(group.getValue(), TraceContext.current()));
+            }
+            PeerMarkets.Gathered<Boolean> gathered = shardPeers.callEach(calls);
+            committed = !gathered.isPartial() && !gathered.getResults().containsValue(false);
+            if (committed) {
+                return true;
+            }
+
+            // A shard that did not answer may have committed anyway; its abort says so
+            List<String> applied = new ArrayList<>();
+            for (Map.Entry<String, Boolean> answer : gathered.getResults().entrySet()) {
+                if (answer.getValue()) {
+                    applied.add(answer.getKey());
+                }
+            }
+            for (String shard : gathered.getUnavailable()) {
+                List<String> ids = byShard.get(shard);
+                try {
+                    if (shardPeers.call(shard, peer -> peer.abortReservations(ids, TraceContext.current()))) {
+                        applied.add(shard);
+                    }
+                } catch (MarketUnavailableException e) {
+                    System.out.println(city + ": commit outcome in " + shard + " unknown (" + e.getMessage() + ")");
+                    stuck.addAll(ids);
+                }
+            }
+            for (String shard : applied) {
+                if (!rollBack(shard, byShard.get(shard), claimed)) {
+                    stuck.addAll(byShard.get(shard));
+                }
+            }
+            return false;
+        } finally {
+            holds.settle(reservationIDs, committed);
+        }
+    }
+
+    // Undoes a shard's committed part of a batch with the inverse orders
+    private boolean rollBack(String shard, List<String> ids, List<Reservations.Hold> claimed) {
+        String buyerID = null;
+        List<OrderItem> inverse = new ArrayList<>();
+        for (Reservations.Hold hold : claimed) {
+            if (ids.contains(hold.getReservationID())) {
+                buyerID = hold.getBuyerID();
+                inverse.add(hold.getItem().inverse());
+            }
+        }
+        String buyer = buyerID;
+        try {
+            List<String> undone = shardPeers.call(shard, peer -> peer.placeLocalOrders(buyer, inverse, true,
+                    TraceContext.current()));
+            for (String result : undone) {
+                if (!ShareMarketServerImpl.succeeded(result)) {
+                    System.out.println(city + ": could not roll back " + ids + " in " + shard + ": " + result);
+                    return false;
+                }
+            }
+            return true;
+        } catch (MarketUnavailableException e) {
+            System.out.println(city + ": could not roll back " + ids + " in " + shard + " (" + e.getMessage() + ")");
+            return false;
+        }
+    }
+
+    // Answers for the router's own commit: a batch the shards committed but the router
+    // rolled back counts as not committed
+    @Override
+    public boolean abortReservations(List<String> reservationIDs, TraceContext trace) {
+        holds.abort(reservationIDs);
+        boolean committed = holds.wasCommitted(reservationIDs);
+        Map<String, List<String>> byShard = splitReservations(reservationIDs);
+        byShard.remove(null);
+        Map<String, PeerMarkets.PeerCall<MarketPeer, Boolean>> calls = new LinkedHashMap<>();
+        for (Map.Entry<String, List<String>> group : byShard.entrySet()) {
+            calls.put(group.getKey(), shard -> shard.abortReservations(group.getValue(), TraceContext.current()));
+        }
+        shardPeers.callEach(calls);
+        return committed;
+    }
+
+    // The shards expire and release their own holds; the router only stops tracking them
+    private void forget(Reservations.Hold hold) {
+        holds.expire(hold);
+    }
+
+    private Map<String, List<Integer>> splitByShard(List<OrderItem> items) {
+        Map<String, List<Integer>> byShard = new LinkedHashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            byShard.computeIfAbsent(shardFor(items.get(i).getShareID()), shard -> new ArrayList<>()).add(i);
+        }
+        return byShard;
+    }
+
+    // Reservation IDs start with the name of the shard that issued them; IDs of no
+    // known shard (null entries included) are grouped under null
+    private Map<String, List<String>> splitReservations(List<String> reservationIDs) {
+        Map<String, List<String>> byShard = new LinkedHashMap<>();
+        for (String id : reservationIDs) {
+            String owner = null;
+            for (Topology.Shard shard : shards) {
+                if (id != null && id.startsWith(shard.getName() + "-")) {
+                    owner = shard.getName();
+                    break;
+                }
+            }
+            byShard.computeIfAbsent(owner, shard -> new ArrayList<>()).add(id);
+        }
+        return byShard;
+    }
+
+    private List<String> shardNames() {
+        List<String> names = new ArrayList<>(shards.size());
+        for (Topology.Shard shard : shards) {
+            names.add(shard.getName());
+        }
+        return names;
+    }
+
+    private Map<String, InetSocketAddress> shardAddresses() {
+        Map<String, InetSocketAddress> addresses = new LinkedHashMap<>();
+        for (Topology.Shard shard : shards) {
+            addresses.put(shard.getName(), new InetSocketAddress(shard.getHost(), shard.getUdpPort()));
+        }
+        return addresses;
+    }
+}
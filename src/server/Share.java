@@ -1,140 +1,172 @@
-package server;
-
-import java.io.Serializable;
-import java.util.HashSet;
-import java.util.Set;
-
-public class Share implements Serializable {
-    private final String shareID;
-    private final String shareType;
-    private int availableCapacity;
-    private final int totalCapacity;
-    private final Set<String> buyers;
-    private final String originMarket;
-
-    public Share(String shareID, String shareType, int availableCapacity, String originMarket) {
-        this.shareID = shareID;
-        this.shareType = shareType;
-        this.availableCapacity = availableCapacity;
-        this.totalCapacity = availableCapacity; 
-        this.buyers = new HashSet<>();
-        this.originMarket = originMarket;
-    }
-
-    public Share(String shareID, String shareType, int availableCapacity) {
-        this(shareID, shareType, availableCapacity, null);
-    }
-
-    // Add getter for origin market
-    public String getOriginMarket() {
-        return originMarket;
-    }
-
-    public int getAvailableCapacity() {
-        return availableCapacity;
-    }
-
-    public void reduceCapacity(int count) {
-        this.availableCapacity -= count;
-    }
-
-    public void increaseCapacity(int count) { 
-        this.availableCapacity += count;
-    }
-
-    public void addBuyer(String buyerID) {
-        buyers.add(buyerID);
-    }
-
-    public boolean hasBuyer(String buyerID) {
-        return buyers.contains(buyerID);
-    }
-
-    public void removeBuyer(String buyerID) {
-        buyers.remove(buyerID);
-    }
-
-    public int getTotalCapacity() { 
-        return totalCapacity;
-    }
-
-    public String getShareID() {
-        return shareID;
-    }
-
-    // **New Method** - Fix for missing method error
-    public String getShareType() {
-        return shareType;
-    }
-    public String getName() {
-        return shareType;
-    }
-    
-
-    @Override
-    public String toString() {
-        return "[Share ID: " + shareID + ", Type: " + shareType + ", Available: " + availableCapacity + 
-               (originMarket != null ? ", Market: " + originMarket : "") + "]";
-    }
-}
-
-
-// package server;
-
-// import java.io.Serializable;
-// import java.util.HashSet;
-// import java.util.Set;
-
-// public class Share implements Serializable {
-//     private final String shareID;
-//     private final String shareType;
-//     private int availableCapacity;
-//     private final int totalCapacity;
-//     private final Set<String> buyers;
-
-
-//     public Share(String shareID, String shareType, int availableCapacity) {
-//         this.shareID = shareID;
-//         this.shareType = shareType;
-//         this.availableCapacity = availableCapacity;
-//         this.totalCapacity = availableCapacity; 
-//         this.buyers = new HashSet<>();
-//     }
-
-//     public int getAvailableCapacity() {
-//         return availableCapacity;
-//     }
-
-//     public void reduceCapacity(int count) {
-//         this.availableCapacity -= count;
-//     }
-
-//     public void increaseCapacity(int count) { 
-//         this.availableCapacity += count;
-//     }
-
-//     public void addBuyer(String buyerID) {
-//         buyers.add(buyerID);
-//     }
-
-//     public boolean hasBuyer(String buyerID) {
-//         return buyers.contains(buyerID);
-//     }
-
-//     public void removeBuyer(String buyerID) {
-//         buyers.remove(buyerID);
-//     }
-
-//     public int getTotalCapacity() { 
-//         return totalCapacity;
-//     }
-
-//     public String getShareID() {
-//         return shareID;
-//     }
-
-//     @Override
-//     public String toString() {
-//         return "[Share ID: " + shareID + ", Type: " + shareType + ", Available: " + availableCapacity + "]";
-//     }
-// }
+package server;
+
+import java.io.Serializable;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class Share implements Serializable {
+    private final String shareID;
+    private final String shareType;
+    private final AtomicInteger availableCapacity;
+    private final int totalCapacity;
+    private volatile Set<String> buyers;
+    private final String originMarket;
+    private final HoldingKey holdingKey;
+
+    public Share(String shareID, String shareType, int availableCapacity, String originMarket) {
+        this.shareID = shareID;
+        this.shareType = shareType;
+        this.availableCapacity = new AtomicInteger(availableCapacity);
+        this.totalCapacity = availableCapacity; 
+        this.originMarket = originMarket;
+        this.holdingKey = new HoldingKey(shareType, shareID);
+    }
+
+    public Share(String shareID, String shareType, int availableCapacity) {
+        this(shareID, shareType, availableCapacity, null);
+    }
+
+    // Add getter for origin market
+    public String getOriginMarket() {
+        return originMarket;
+    }
+
+    public int getAvailableCapacity() {
+        return availableCapacity.get();
+    }
+
+    // Takes count units only if that many are still available (CAS loop, so
+    // two buyers racing for the last units can never oversell the share)
+    public boolean tryReduceCapacity(int count) {
+        while (true) {
+            int current = availableCapacity.get();
+            if (current < count) {
+                return false;
+            }
+            if (availableCapacity.compareAndSet(current, current - count)) {
+                return true;
+            }
+        }
+    }
+
+    public void reduceCapacity(int count) {
+        increaseCapacity(-count);
+    }
+
+    public void increaseCapacity(int count) { 
+        availableCapacity.addAndGet(count);
+    }
+
+    // The buyer set is rarely used, so it is only allocated on first add
+    public void addBuyer(String buyerID) {
+        if (buyers == null) {
+            synchronized (this) {
+                if (buyers == null) {
+                    buyers = ConcurrentHashMap.newKeySet();
+                }
+            }
+        }
+        buyers.add(buyerID);
+    }
+
+    public boolean hasBuyer(String buyerID) {
+        Set<String> current = buyers;
+        return current != null && current.contains(buyerID);
+    }
+
+    public void removeBuyer(String buyerID) {
+        Set<String> current = buyers;
+        if (current != null) {
+            current.remove(buyerID);
+        }
+    }
+
+    public int getTotalCapacity() { 
+        return totalCapacity;
+    }
+
+    public HoldingKey getHoldingKey() {
+        return holdingKey;
+    }
+
+    public String getShareID() {
+        return shareID;
+    }
+
+    // **New Method** - Fix for missing method error
+    public String getShareType() {
+        return shareType;
+    }
+    public String getName() {
+        return shareType;
+    }
+    
+
+    @Override
+    public String toString() {
+        return "[Share ID: " + shareID + ", Type: " + shareType + ", Available: " + getAvailableCapacity() + 
+               (originMarket != null ? ", Market: " + originMarket : "") + "]";
+    }
+}
+
+
+// package server;
+
+// import java.io.Serializable;
+// import java.util.HashSet;
+// import java.util.Set;
+
+// public class Share implements Serializable {
+//     private final String shareID;
+//     private final String shareType;
+//     private int availableCapacity;
+//     private final int totalCapacity;
+//     private final Set<String> buyers;
+
+
+//     public Share(String shareID, String shareType, int availableCapacity) {
+//         this.shareID = shareID;
+//         this.shareType = shareType;
+//         this.availableCapacity = availableCapacity;
+//         this.totalCapacity = availableCapacity; 
+//         this.buyers = new HashSet<>();
+//     }
+
+//     public int getAvailableCapacity() {
+//         return availableCapacity;
+//     }
+
+//     public void reduceCapacity(int count) {
+//         this.availableCapacity -= count;
+//     }
+
+//     public void increaseCapacity(int count) { 
+//         this.availableCapacity += count;
+//     }
+
+//     public void addBuyer(String buyerID) {
+//         buyers.add(buyerID);
+//     }
+
+//     public boolean hasBuyer(String buyerID) {
+//         return buyers.contains(buyerID);
+//     }
+
+//     public void removeBuyer(String buyerID) {
+//         buyers.remove(buyerID);
+//     }
+
+//     public int getTotalCapacity() { 
+//         return totalCapacity;
+//     }
+
+//     public String getShareID() {
+//         return shareID;
+//     }
+
+//     @Override
+//     public String toString() {
+//         return "[Share ID: " + shareID + ", Type: " + shareType + ", Available: " + availableCapacity + "]";
+//     }
+// }
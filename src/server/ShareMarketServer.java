@@ -1,21 +1,26 @@
-package server;
-
-import java.rmi.Remote;
-import java.rmi.RemoteException;
-
-public interface ShareMarketServer extends Remote {
-    // Admin Operations
-    String addShare(String shareID, String shareType, int capacity) throws RemoteException;
-    String removeShare(String shareID, String shareType) throws RemoteException;
-    String listShareAvailability(String shareType) throws RemoteException;
-
-    String purchaseRemoteShare(String buyerID, String shareID, String shareType, 
-    int shareCount, String targetMarket) throws RemoteException;
-    String sellRemoteShare(String buyerID, String shareID, String shareType, 
-    int shareCount, String targetMarket) throws RemoteException;
-
-    // Buyer Operations
-    String purchaseShare(String buyerID, String shareID, String shareType, int shareCount) throws RemoteException;
-    String getShares(String buyerID) throws RemoteException;
-    String sellShare(String buyerID, String shareID, int shareCount) throws RemoteException;
-}
+package server;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+public interface ShareMarketServer extends Remote {
+    // Admin Operations
+    String addShare(String shareID, String shareType, int capacity) throws RemoteException;
+    String removeShare(String shareID, String shareType) throws RemoteException;
+    String listShareAvailability(String shareType) throws RemoteException;
+
+    String purchaseRemoteShare(String buyerID, String shareID, String shareType, 
+    int shareCount, String targetMarket) throws RemoteException;
+    String sellRemoteShare(String buyerID, String shareID, String shareType, 
+    int shareCount, String targetMarket) throws RemoteException;
+
+    // Buyer Operations
+    String purchaseShare(String buyerID, String shareID, String shareType, int shareCount) throws RemoteException;
+    String getShares(String buyerID) throws RemoteException;
+    String sellShare(String buyerID, String shareID, int shareCount) throws RemoteException;
+
+    // Executes many buys/sells in one call; one result per item, in order. Items are sent
+    // to the market that owns each share. With allOrNothing, a failed item undoes the rest.
+    List<String> placeOrders(String buyerID, List<OrderItem> items, boolean allOrNothing) throws RemoteException;
+}
@@ -1,436 +1,1290 @@
-package server;
-
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.rmi.server.UnicastRemoteObject;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.rmi.RemoteException;
-import java.util.HashMap;
-import java.util.Map;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-
-public class ShareMarketServerImpl extends UnicastRemoteObject implements ShareMarketServer {
-
-    private final String city;
-    private final int udpPort;
-    private static final int DEFAULT_PORT = 5000;
-    private final Map<String, Map<String, Share>> shareDatabase = new HashMap<>();
-    private final Map<String, Integer> remoteServers = new HashMap<>();
-
-    private final Map<String, Map<String, Integer>> buyerHoldings = new HashMap<>();
-
-    public ShareMarketServerImpl(String city, int udpPort) throws RemoteException {
-        super();
-        this.city = city;
-        this.udpPort = udpPort;
-        initializeShareTypes();
-    }
-
-    private void initializeShareTypes() {
-        shareDatabase.put("Equity", new HashMap<>());
-        shareDatabase.put("Bonus", new HashMap<>());
-        shareDatabase.put("Dividend", new HashMap<>());
-    }
-
-    public void addRemoteServer(String city, int port) {
-        remoteServers.put(city, port);
-    }
-
-    public Map<String, Map<String, Share>> getShareDatabase() {
-        return this.shareDatabase;
-    }
-
-    private void logAction(String requestType, String requestParams, boolean success) {
-        try {
-            FileWriter writer = new FileWriter("logs/" + city + "_Server.log", true);
-            String timestamp = LocalDateTime.now().format(DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss"));
-            writer.write("[" + timestamp + "] " + requestType + " | Params: " + requestParams + " | Status: " + (success ? "Successfully Completed" : "Failed") + "\n");
-            writer.close();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-
-    @Override
-    public synchronized String addShare(String shareID, String shareType, int availableCapacity) {
-        shareDatabase.putIfAbsent(shareType, new HashMap<>());
-
-        if (shareDatabase.get(shareType).containsKey(shareID)) {
-            logAction("Add Share", "ShareID: " + shareID + ", ShareType: " + shareType, false);
-            return "Share already exists with ID " + shareID + " and Type " + shareType;
-        }
-
-        shareDatabase.get(shareType).put(shareID, new Share(shareID, shareType, availableCapacity));
-        logAction("Add Share", "ShareID: " + shareID + ", ShareType: " + shareType + ", Capacity: " + availableCapacity, true);
-        return "Share added successfully: " + shareType + "-" + shareID;
-    }
-
-    @Override
-    public synchronized String getShares(String buyerID) {
-        // Strip depth marker if present for cleaner processing
-        String cleanBuyerID = buyerID.contains("::DEPTH::") ? 
-            buyerID.split("::DEPTH::")[0] : buyerID;
-        
-        StringBuilder result = new StringBuilder("Your Shares:\n");
-        boolean hasShares = false;
-        
-        // Check for local shares
-        if (buyerHoldings.containsKey(cleanBuyerID) && !buyerHoldings.get(cleanBuyerID).isEmpty()) {
-            result.append(this.city).append(" Market Shares:\n");
-            for (Map.Entry<String, Integer> entry : buyerHoldings.get(cleanBuyerID).entrySet()) {
-                result.append("[Share: ").append(entry.getKey())
-                      .append(", Owned: ").append(entry.getValue()).append("]\n");
-            }
-            hasShares = true;
-        }
-        
-        // Only check remote markets if this isn't already a recursive call
-        if (!buyerID.contains("::DEPTH::")) {
-            // Add depth marker to prevent infinite recursion
-            String depthMarkedID = cleanBuyerID + "::DEPTH::1";
-            
-            // Try to get shares from each remote market
-            for (String remoteName : remoteServers.keySet()) {
-                if (!remoteName.equalsIgnoreCase(this.city)) {
-                    try {
-                        // Get port for the remote market
-                        int targetPort = getPortForMarket(remoteName);
-                        if (targetPort == -1) {
-                            System.out.println("Invalid port for market: " + remoteName);
-                            continue;
-                        }
-                        
-                        // Connect to the remote server
-                        Registry registry = LocateRegistry.getRegistry("localhost", targetPort);
-                        ShareMarketServer remoteServer = (ShareMarketServer) registry.lookup(remoteName);
-                        
-                        // Get shares from remote server
-                        String remoteSharesResponse = remoteServer.getShares(depthMarkedID);
-                        System.out.println("DEBUG - Remote response from " + remoteName + ": " + remoteSharesResponse);
-                        
-                        // Only process if the buyer has shares in this remote market
-                        if (!remoteSharesResponse.equals("You do not own any shares in any market.")) {
-                            // Extract just the shares part, removing the header
-                            String[] lines = remoteSharesResponse.split("\n");
-                            StringBuilder remoteShares = new StringBuilder();
-                            
-                            boolean foundShareLines = false;
-                            for (int i = 1; i < lines.length; i++) { // Skip the header line
-                                if (lines[i].trim().startsWith("[Share:")) {
-                                    remoteShares.append(lines[i]).append("\n");
-                                    foundShareLines = true;
-                                }
-                            }
-                            
-                            if (foundShareLines) {
-                                if (hasShares) {
-                                    result.append("\n"); // Add spacing between markets
-                                }
-                                result.append(remoteName).append(" Market Shares:\n");
-                                result.append(remoteShares);
-                                hasShares = true;
-                            }
-                        }
-                    } catch (Exception e) {
-                        System.out.println("Error fetching shares from " + remoteName + ": " + e.getMessage());
-                        e.printStackTrace(); // More detailed error info
-                    }
-                }
-            }
-        }
-        
-        logAction("Get Shares", "BuyerID: " + cleanBuyerID, true);
-        
-        if (!hasShares) {
-            return "You do not own any shares in any market.";
-        }
-        
-        return result.toString();
-    }
-
-    @Override
-    public synchronized String removeShare(String shareID, String shareType) {
-        if (!shareDatabase.containsKey(shareType) || !shareDatabase.get(shareType).containsKey(shareID)) {
-            logAction("Remove Share", "ShareID: " + shareID + ", ShareType: " + shareType, false);
-            return "Share not found.";
-        }
-
-        shareDatabase.get(shareType).remove(shareID);
-        logAction("Remove Share", "ShareID: " + shareID + ", ShareType: " + shareType, true);
-        return "Share removed successfully.";
-    }
-
-
-    @Override
-    public synchronized String purchaseShare(String buyerID, String shareID, String shareType, int shareCount) {
-        String uniqueKey = shareType + "-" + shareID;
-
-        // if (!shareDatabase.containsKey(shareType) || !shareDatabase.get(shareType).containsKey(shareID)) {
-        //     logAction("Purchase Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + ", ShareType: " + shareType + ", Quantity: " + shareCount, false);
-        //     return "Purchase failed. Share not found.";
-        // }
-
-        Share share = shareDatabase.get(shareType).get(shareID);
-        if (shareDatabase.containsKey(shareType) && shareDatabase.get(shareType).containsKey(shareID)) {
-            if (share.getAvailableCapacity() < shareCount) {
-                logAction("Purchase Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + ", ShareType: " + shareType + ", Quantity: " + shareCount, false);
-                return "Purchase failed. Not enough shares available.";
-            }
-
-            // Update the share's available capacity
-            share.reduceCapacity(shareCount);
-
-            // Update buyer's holdings
-            buyerHoldings.putIfAbsent(buyerID, new HashMap<>());
-            Map<String, Integer> holdings = buyerHoldings.get(buyerID);
-            holdings.put(uniqueKey, holdings.getOrDefault(uniqueKey, 0) + shareCount);
-
-            logAction("Purchase Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + ", ShareType: " + shareType + ", Quantity: " + shareCount, true);
-            return "Purchase successful. You bought " + shareCount + " of " + uniqueKey;
-        }
-        else{
-            for (Map.Entry<String, Integer> entry : remoteServers.entrySet()) {
-                String remoteName = entry.getKey();
-                try {
-                    return purchaseRemoteShare(buyerID, shareID, shareType, shareCount, remoteName);
-                } catch (Exception e) {
-                    // If this remote server doesn't have it, continue to the next one
-                    continue;
-                }
-            }
-            logAction("Purchase Share", "BuyerID: " + buyerID + ", ShareID: " + shareID, false);
-            return "Purchase failed. Share not found in any market.";
-        }
-    }
-
-
-    @Override
-    public synchronized String purchaseRemoteShare(String buyerID, String shareID, String shareType, 
-                                                int shareCount, String targetMarket) throws RemoteException {
-        try {
-            // Get the RMI port for the target market
-            int targetPort = getPortForMarket(targetMarket);
-            if (targetPort == -1) {
-                logAction("Purchase Remote Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + 
-                        ", Target: " + targetMarket, false);
-                return "Purchase failed. Invalid target market.";
-            }
-            
-            // Connect to the remote server
-            Registry registry = LocateRegistry.getRegistry("localhost", targetPort);
-            ShareMarketServer remoteServer = (ShareMarketServer) registry.lookup(targetMarket);
-            
-            // Execute the purchase on the remote server
-            String result = remoteServer.purchaseShare(buyerID, shareID, shareType, shareCount);
-            
-            // Log the cross-server transaction
-            logAction("Purchase Remote Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + 
-                    ", Target: " + targetMarket + ", Quantity: " + shareCount, true);
-            
-            return "Cross-server purchase: " + result;
-        } catch (Exception e) {
-            logAction("Purchase Remote Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + 
-                    ", Target: " + targetMarket, false);
-            return "Cross-server purchase failed: " + e.getMessage();
-        }
-    }
-
-
-    @Override
-    public synchronized String sellShare(String buyerID, String shareID, int quantity) {
-        String uniqueKey = null;
-        String shareType = null;
-
-        if (buyerHoldings.containsKey(buyerID)) {
-            for (String key : buyerHoldings.get(buyerID).keySet()) {
-                if (key.endsWith("-" + shareID)) {
-                    uniqueKey = key;
-                    shareType = key.split("-")[0];
-                    break;
-                }
-            }
-        }
-
-        // if (uniqueKey == null) {
-        //     logAction("Sell Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + ", Quantity: " + quantity, false);
-        //     return "Sell failed. You do not own this share.";
-        // }
-
-        if (uniqueKey != null){
-            int ownedShares = buyerHoldings.get(buyerID).get(uniqueKey);
-
-            if (quantity > ownedShares) {
-                logAction("Sell Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + ", Quantity: " + quantity, false);
-                return "Sell failed. You cannot sell more than you own.";
-            }
-
-            if (quantity == ownedShares) {
-                buyerHoldings.get(buyerID).remove(uniqueKey);
-            } else {
-                buyerHoldings.get(buyerID).put(uniqueKey, ownedShares - quantity);
-            }
-
-            shareType = uniqueKey.split("-")[0];
-            Share share = shareDatabase.get(shareType).get(shareID);
-            share.increaseCapacity(quantity);
-
-            logAction("Sell Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + ", Quantity: " + quantity, true);
-            return "Sell operation successful. Sold " + quantity + " of " + uniqueKey;
-        }
-        else {
-            // If not found locally, try to find it in other markets
-            for (Map.Entry<String, Integer> entry : remoteServers.entrySet()) {
-                String remoteName = entry.getKey();
-                try {
-                    return sellRemoteShare(buyerID, shareID, null, quantity, remoteName);
-                } catch (Exception e) {
-                    // If this remote server doesn't have it, continue to the next one
-                    continue;
-                }
-            }
-            logAction("Sell Share", "BuyerID: " + buyerID + ", ShareID: " + shareID, false);
-            return "Sell failed. Share not found in any market.";
-        }
-    }
-
-    @Override
-    public synchronized String sellRemoteShare(String buyerID, String shareID, String shareType, 
-                                            int shareCount, String targetMarket) throws RemoteException {
-        try {
-            // Get the RMI port for the target market
-            int targetPort = getPortForMarket(targetMarket);
-            if (targetPort == -1) {
-                logAction("Sell Remote Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + 
-                        ", Target: " + targetMarket, false);
-                return "Sell failed. Invalid target market.";
-            }
-            
-            // Connect to the remote server
-            Registry registry = LocateRegistry.getRegistry("localhost", targetPort);
-            ShareMarketServer remoteServer = (ShareMarketServer) registry.lookup(targetMarket);
-            
-            // Execute the sell on the remote server
-            String result = remoteServer.sellShare(buyerID, shareID, shareCount);
-            
-            // Log the cross-server transaction
-            logAction("Sell Remote Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + 
-                    ", Target: " + targetMarket + ", Quantity: " + shareCount, true);
-            
-            return "Cross-server sell: " + result;
-        } catch (Exception e) {
-            logAction("Sell Remote Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + 
-                    ", Target: " + targetMarket, false);
-            return "Cross-server sell failed: " + e.getMessage();
-        }
-    }
-
-    // Helper method to get the port for a market name
-    private int getPortForMarket(String marketName) {
-        switch (marketName) {
-            case "NewYork": return 1099;
-            case "London": return 1100;
-            case "Tokyo": return 1101;
-            default: return -1;
-        }
-    }
-
-
-    @Override
-    public synchronized String listShareAvailability(String shareType) {
-        StringBuilder availability = new StringBuilder();
-
-        synchronized (shareDatabase) {
-            if (shareDatabase.containsKey(shareType)) {
-                for (Share share : shareDatabase.get(shareType).values()) {
-                    availability.append("[Share ID: ").append(share.getShareID())
-                            .append(", Type: ").append(share.getShareType())
-                            .append(", Available: ").append(share.getAvailableCapacity()).append("]\n");
-                }
-            }
-        }
-
-        for (Map.Entry<String, Integer> entry : remoteServers.entrySet()) {
-            if (!entry.getKey().equalsIgnoreCase(this.city)) {
-                int port = entry.getValue();
-                String udpResponse = sendUDPRequest("localhost", port, "LIST_AVAILABILITY " + shareType);
-                if (!udpResponse.isEmpty()) {
-                    availability.append(udpResponse).append("\n");
-                }
-            }
-        }
-        return availability.toString().trim();
-    }
-
-
-    private String sendUDPRequest(String host, int port, String message) {
-        try (DatagramSocket socket = new DatagramSocket()) {
-            byte[] buffer = message.getBytes();
-            InetAddress serverAddress = InetAddress.getByName(host);
-
-            DatagramPacket request = new DatagramPacket(buffer, buffer.length, serverAddress, port);
-            socket.send(request);
-
-            byte[] responseBuffer = new byte[4096];
-            DatagramPacket response = new DatagramPacket(responseBuffer, responseBuffer.length);
-            socket.receive(response);
-
-            String responseMessage = new String(response.getData(), 0, response.getLength());
-            return responseMessage;
-        } catch (Exception e) {
-            e.printStackTrace();
-            return "";
-        }
-    }
-
-
-    private static void startServer(String city, int udpPort, int rmiPort) throws RemoteException {
-        ShareMarketServerImpl server = new ShareMarketServerImpl(city, udpPort);
-
-        // Try to create a new RMI registry, if not already running
-        Registry registry;
-        try {
-            registry = LocateRegistry.createRegistry(rmiPort);
-        } catch (RemoteException e) {
-            registry = LocateRegistry.getRegistry(rmiPort);
-        }
-
-        // Bind the server
-        registry.rebind(city, server);
-
-        System.out.println(city + " Server is ready at UDP Port "+udpPort+" and RMI port "+rmiPort+" .");
-
-        // Add remote servers
-        if (city.equals("NewYork")) {
-            server.addRemoteServer("London", 5001);
-            server.addRemoteServer("Tokyo", 5002);
-        } else if (city.equals("London")) {
-            server.addRemoteServer("NewYork", 5000);
-            server.addRemoteServer("Tokyo", 5002);
-        } else if (city.equals("Tokyo")) {
-            server.addRemoteServer("NewYork", 5000);
-            server.addRemoteServer("London", 5001);
-        }
-
-        // Start UDP thread
-        new Thread(new UDPServerThread(udpPort, server, server.getShareDatabase())).start();
-    }
-
-
-
-
-    public static void main(String[] args) {
-        try {
-            startServer("NewYork", 5000, 1099);
-            startServer("London", 5001, 1100);
-            startServer("Tokyo", 5002, 1101);
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-}
+package server;
+
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.file.Paths;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+
+public class ShareMarketServerImpl extends UnicastRemoteObject implements ShareMarketServer, MarketPeer {
+
+    private final String city;
+    // The market's name, or "<market>-shard<k>" for one partition of a sharded market;
+    // names the data directory, audit log and reservation IDs of this process
+    private final String instance;
+    private final boolean shard;
+    private final int udpPort;
+    private static final int DEFAULT_PORT = 5000;
+    // How long a two-phase hold waits for its coordinator before it is released
+    private static final long RESERVATION_TTL_MS = Long.getLong("dsms.reservation.ttlMs", 5000);
+    // Keyed by case-normalised share type (see typeKey), then by share ID
+    private final Map<String, Map<String, Share>> shareDatabase = new ConcurrentHashMap<>();
+    private final AvailabilityCache availabilityCache = new AvailabilityCache();
+    // Other markets by name, with the UDP address their availability is queried on
+    private final Map<String, InetSocketAddress> remoteServers = new ConcurrentHashMap<>();
+    private final PeerMarkets<MarketPeer> peers;
+    private final RoutingTable routing = new RoutingTable(Topology.current());
+    private final AuditLog auditLog;
+    private final UDPPeerClient udpPeers;
+    private final MarketStore store;
+
+    // Capacity updates are lock-free on Share; each Portfolio is guarded by its own
+    // monitor, so buyers of different shares never contend.
+    private final Map<String, Portfolio> buyerHoldings = new ConcurrentHashMap<>();
+    private final HoldingSlots holdingSlots = new HoldingSlots();
+    private final Reservations reservations;
+    private final MarketMetrics metrics;
+    private final Tracer tracer;
+
+    public ShareMarketServerImpl(String city, int udpPort) throws RemoteException {
+        this(city, city, udpPort);
+    }
+
+    public ShareMarketServerImpl(String city, String instance, int udpPort) throws RemoteException {
+        this(city, instance, udpPort, false);
+    }
+
+    // A replica keeps no store of its own: its state comes from the
+    // primary's replication stream (see ReplicaServer)
+    private ShareMarketServerImpl(String city, String instance, int udpPort, boolean replica) throws RemoteException {
+        super();
+        this.city = city;
+        this.instance = instance;
+        this.shard = !instance.equals(city);
+        this.udpPort = udpPort;
+        this.metrics = new MarketMetrics(instance);
+        this.peers = PeerMarkets.peerSides(instance);
+        peers.setMetrics(metrics);
+        this.tracer = new Tracer(instance);
+        peers.setTracer(tracer);
+        this.reservations = new Reservations(instance, Long.getLong("dsms.reservation.reapMs", 500), this::expire);
+        this.auditLog = new AuditLog(instance);
+        try {
+            this.udpPeers = new UDPPeerClient();
+            udpPeers.setTracer(tracer);
+        } catch (IOException e) {
+            throw new RemoteException("Could not open UDP peer channel", e);
+        }
+        initializeShareTypes();
+
+        // Recover whatever the previous run of this market left on disk
+        this.store = replica
+                ? new MarketStore(Paths.get(System.getProperty("dsms.store.dir", "data"), instance), false, false, false, 0,
+                        new StoreTarget())
+                : new MarketStore(instance, new StoreTarget());
+        try {
+            store.open();
+        } catch (IOException e) {
+            throw new RemoteException("Could not recover market state for " + instance, e);
+        }
+
+        metrics.gauge("shares", () -> shareDatabase.values().stream().mapToLong(Map::size).sum());
+        metrics.gauge("buyers", buyerHoldings::size);
+        metrics.gauge("pendingReservations", reservations::getPending);
+    }
+
+    // State holder for a read replica; not exported, ReplicaServer answers for it
+    static ShareMarketServerImpl replicaOf(String city, String instance) throws RemoteException {
+        ShareMarketServerImpl replica = new ShareMarketServerImpl(city, instance, 0, true);
+        UnicastRemoteObject.unexportObject(replica, true);
+        return replica;
+    }
+
+    // Applies replicated WAL records and installed state, like recovery does
+    MarketStore.Target replicationTarget() {
+        return new StoreTarget();
+    }
+
+    // Empties the market before a replica installs a fresh copy of the primary
+    void resetState() {
+        shareDatabase.clear();
+        initializeShareTypes();
+        buyerHoldings.clear();
+    }
+
+    private void initializeShareTypes() {
+        shareDatabase.put(typeKey("Equity"), new ConcurrentHashMap<>());
+        shareDatabase.put(typeKey("Bonus"), new ConcurrentHashMap<>());
+        shareDatabase.put(typeKey("Dividend"), new ConcurrentHashMap<>());
+    }
+
+    // Takes the store's mutation lock; the wait shows how long checkpoints hold up updates
+    private void lock(Lock mutation) {
+        long start = System.nanoTime();
+        mutation.lock();
+        metrics.getLockWait().record(System.nanoTime() - start);
+    }
+
+    private void awaitDurable(CompletableFuture<Void> durable) {
+        long start = System.nanoTime();
+        store.awaitDurable(durable);
+        metrics.getCommitWait().record(System.nanoTime() - start);
+    }
+
+    // "Equity", "equity" and "EQUITY" all name the same bucket
+    static String typeKey(String shareType) {
+        return shareType.toLowerCase(Locale.ROOT);
+    }
+
+
+    public void addRemoteServer(String city, int port) {
+        addRemoteServer(city, "localhost", port);
+    }
+
+    public void addRemoteServer(String city, String host, int port) {
+        remoteServers.put(city, new InetSocketAddress(host, port));
+    }
+
+    // Makes every other market in the topology a peer and drops markets no longer in it.
+    // Called at startup and again whenever the topology file changes.
+    public void applyTopology(Topology topology) {
+        for (Topology.Market market : topology.markets()) {
+            if (!market.getName().equals(this.city)) {
+                InetSocketAddress address = new InetSocketAddress(market.getHost(), market.getUdpPort());
+                if (!address.equals(remoteServers.put(market.getName(), address))) {
+                    // New or moved: look its RMI stub up again on next use
+                    peers.invalidate(market.getName());
+                }
+            }
+        }
+        remoteServers.keySet().removeIf(name -> topology.market(name) == null);
+    }
+
+    public Reservations getReservations() {
+        return reservations;
+    }
+
+    public RoutingTable getRoutingTable() {
+        return routing;
+    }
+
+    public PeerMarkets<MarketPeer> getPeerMarkets() {
+        return peers;
+    }
+
+    public AvailabilityCache getAvailabilityCache() {
+        return availabilityCache;
+    }
+
+    public Map<String, Map<String, Share>> getShareDatabase() {
+        return this.shareDatabase;
+    }
+
+    public AuditLog getAuditLog() {
+        return auditLog;
+    }
+
+    public MarketStore getStore() {
+        return store;
+    }
+
+    public MarketMetrics getMetrics() {
+        return metrics;
+    }
+
+    public Tracer getTracer() {
+        return tracer;
+    }
+
+    // Hands the record to the background audit writer; never touches the file on the request thread
+    private void logAction(String requestType, String requestParams, boolean success) {
+        auditLog.record(requestType, requestParams, success);
+    }
+
+    @Override
+    public String addShare(String shareID, String shareType, int availableCapacity) {
+        Map<String, Share> shares = shareDatabase.computeIfAbsent(typeKey(shareType), type -> new ConcurrentHashMap<>());
+
+        CompletableFuture<Void> durable;
+        Lock mutation = store.mutationLock().readLock();
+        lock(mutation);
+        try {
+            if (shares.containsKey(shareID)) {
+                logAction("Add Share", "ShareID: " + shareID + ", ShareType: " + shareType, false);
+                return "Share already exists with ID " + shareID + " and Type " + shareType;
+            }
+            Share share = new Share(shareID, shareType, availableCapacity);
+            if (shares.putIfAbsent(shareID, share) != null) {
+                logAction("Add Share", "ShareID: " + shareID + ", ShareType: " + shareType, false);
+                return "Share already exists with ID " + shareID + " and Type " + shareType;
+            }
+            durable = store.logAddShare(shareType, shareID, availableCapacity);
+        } finally {
+            mutation.unlock();
+        }
+        awaitDurable(durable);
+        availabilityCache.invalidate(typeKey(shareType));
+
+        logAction("Add Share", "ShareID: " + shareID + ", ShareType: " + shareType + ", Capacity: " + availableCapacity, true);
+        return "Share added successfully: " + shareType + "-" + shareID;
+    }
+
+    @Override
+    public String getShares(String buyerID) {
+        return getShares(buyerID, getLocalHoldings(buyerID, TraceContext.current()));
+    }
+
+    // getShares around a local part the caller has already taken, e.g. a replica under its lock
+    String getShares(String buyerID, Holdings holdings) {
+        // Ask every remote market at once for its structured holdings and merge them as they
+        // arrive; getLocalHoldings never forwards, so this is one hop per market
+        List<String> remoteNames = new ArrayList<>();
+        for (String remoteName : remoteServers.keySet()) {
+            if (!remoteName.equalsIgnoreCase(this.city)) {
+                remoteNames.add(remoteName);
+            }
+        }
+        PeerMarkets.Gathered<Holdings> gathered = peers.callAll(remoteNames,
+                peer -> peer.getLocalHoldings(buyerID, TraceContext.current()));
+
+        for (Holdings remoteHoldings : gathered.getResults().values()) {
+            holdings.putAll(remoteHoldings);
+        }
+
+        List<String> unavailable = gathered.getUnavailable();
+        if (gathered.isPartial()) {
+            System.out.println("Error fetching shares from " + unavailable + ": no answer within "
+                    + peers.getTimeoutMillis() + "ms");
+        }
+
+        logAction("Get Shares", "BuyerID: " + buyerID, unavailable.isEmpty());
+        
+        // Partial results are still returned, tagged with the markets that did not answer
+        return holdings.format(unavailable);
+    }
+
+    @Override
+    public Holdings getLocalHoldings(String buyerID, TraceContext trace) {
+        Holdings holdings = new Holdings();
+        Portfolio portfolio = buyerHoldings.get(buyerID);
+        if (portfolio != null) {
+            holdings.put(this.city, portfolio.snapshot());
+        }
+        return holdings;
+    }
+
+    @Override
+    public String removeShare(String shareID, String shareType) {
+        Map<String, Share> shares = shareDatabase.get(typeKey(shareType));
+        CompletableFuture<Void> durable;
+        Lock mutation = store.mutationLock().readLock();
+        lock(mutation);
+        try {
+            Share removed = shares == null ? null : shares.remove(shareID);
+            if (removed == null) {
+                logAction("Remove Share", "ShareID: " + shareID + ", ShareType: " + shareType, false);
+                return "Share not found.";
+            }
+            durable = store.logRemoveShare(shareType, shareID);
+        } finally {
+            mutation.unlock();
+        }
+        awaitDurable(durable);
+        availabilityCache.invalidate(typeKey(shareType));
+
+        logAction("Remove Share", "ShareID: " + shareID + ", ShareType: " + shareType, true);
+        return "Share removed successfully.";
+    }
+
+
+    @Override
+    public String purchaseShare(String buyerID, String shareID, String shareType, int shareCount) {
+        if (shareCount <= 0) {
+            logAction("Purchase Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + ", Quantity: " + shareCount, false);
+            return "Purchase failed. Quantity must be positive.";
+        }
+        Share share = findShare(shareID, shareType);
+        if (share != null) {
+            return purchaseLocalShare(buyerID, share, shareCount);
+        }
+
+        // Straight to the owning market; probe the others only if that guess was wrong
+        String owner = routing.ownerOf(shareID);
+        if (isPeer(owner)) {
+            String result = purchaseRemoteShare(buyerID, shareID, shareType, shareCount, owner);
+            if (!shareNotFound(result)) {
+                return result;
+            }
+            routing.misrouted(shareID);
+        }
+        for (String market : probeOrder(owner)) {
+            String result = purchaseRemoteShare(buyerID, shareID, shareType, shareCount, market);
+            // A market that may have executed the purchase ends the search: trying the
+            // next one could buy twice
+            if (outcomeUnknown(result)) {
+                return result;
+            }
+            if (!shareNotFound(result) && !result.startsWith("Cross-server purchase failed.")) {
+                routing.learn(shareID, market);
+                return result;
+            }
+        }
+        logAction("Purchase Share", "BuyerID: " + buyerID + ", ShareID: " + shareID, false);
+        return "Purchase failed. Share not found in any market.";
+    }
+
+    private boolean isPeer(String market) {
+        return market != null && !market.equals(this.city) && remoteServers.containsKey(market);
+    }
+
+    // Peers other than the one already tried, in a fixed order
+    private List<String> probeOrder(String alreadyTried) {
+        List<String> markets = new ArrayList<>(new TreeSet<>(remoteServers.keySet()));
+        markets.remove(alreadyTried);
+        return markets;
+    }
+
+    private static boolean shareNotFound(String result) {
+        return result.endsWith("Share not found.");
+    }
+
+    // Why a peer call failed, as the end of a reply. A call that may have reached the
+    // market is reported as such, not as a failure the buyer could safely retry.
+    static String unavailable(MarketUnavailableException e) {
+        return e.getMessage() + (e.isOutcomeUnknown() ? "; outcome unknown." : ".");
+    }
+
+    static boolean outcomeUnknown(String result) {
+        return result.endsWith("; outcome unknown.");
+    }
+
+    private Share findShare(String shareID, String shareType) {
+        Map<String, Share> shares = shareDatabase.get(typeKey(shareType));
+        return shares != null ? shares.get(shareID) : null;
+    }
+
+    private String purchaseLocalShare(String buyerID, Share share, int shareCount) {
+        String shareID = share.getShareID();
+        String shareType = share.getShareType();
+        // Also reached from other markets, which may not have checked it; a negative count
+        // would raise the share's capacity
+        if (shareCount <= 0) {
+            logAction("Purchase Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + ", Quantity: " + shareCount, false);
+            return "Purchase failed. Quantity must be positive.";
+        }
+
+        CompletableFuture<Void> durable;
+        Lock mutation = store.mutationLock().readLock();
+        lock(mutation);
+        try {
+            // Reserve the capacity atomically before crediting the buyer
+            if (!share.tryReduceCapacity(shareCount)) {
+                logAction("Purchase Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + ", ShareType: " + shareType + ", Quantity: " + shareCount, false);
+                return "Purchase failed. Not enough shares available.";
+            }
+
+            // Update buyer's holdings, logged under the buyer's lock (see MarketStore)
+            Portfolio portfolio = buyerHoldings.computeIfAbsent(buyerID, id -> new Portfolio(holdingSlots));
+            synchronized (portfolio) {
+                portfolio.credit(holdingSlots.slotOf(share.getHoldingKey()), shareCount);
+                durable = store.logPurchase(buyerID, shareType, shareID, shareCount);
+            }
+        } finally {
+            mutation.unlock();
+        }
+        awaitDurable(durable);
+        availabilityCache.invalidate(typeKey(shareType));
+
+        logAction("Purchase Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + ", ShareType: " + shareType + ", Quantity: " + shareCount, true);
+        return "Purchase successful. You bought " + shareCount + " of " + share.getHoldingKey();
+    }
+
+
+    @Override
+    public String purchaseRemoteShare(String buyerID, String shareID, String shareType, 
+                                                int shareCount, String targetMarket) {
+        if (targetMarket.equalsIgnoreCase(this.city)) {
+            return purchaseLocalShare(buyerID, shareID, shareType, shareCount, TraceContext.current());
+        }
+
+        if (Topology.current().market(targetMarket) == null) {
+            logAction("Purchase Remote Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + 
+                    ", Target: " + targetMarket, false);
+            return "Purchase failed. Invalid target market.";
+        }
+
+        try {
+            // Execute the purchase on the remote server, outside of any local lock; the
+            // target settles it itself and never forwards it again
+            String result = peers.call(targetMarket,
+                    peer -> peer.purchaseLocalShare(buyerID, shareID, shareType, shareCount, TraceContext.current()));
+            
+            // Log the cross-server transaction with the outcome the target reported
+            logAction("Purchase Remote Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + 
+                    ", Target: " + targetMarket + ", Quantity: " + shareCount, succeeded(result));
+            
+            return "Cross-server purchase: " + result;
+        } catch (MarketUnavailableException e) {
+            logAction("Purchase Remote Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + 
+                    ", Target: " + targetMarket, false);
+            return "Cross-server purchase failed. " + unavailable(e);
+        }
+    }
+
+    // The caller's span is already the thread's current one (see MeteredMarketServer.Peer)
+    @Override
+    public String purchaseLocalShare(String buyerID, String shareID, String shareType, int shareCount,
+                                     TraceContext trace) {
+        Share share = findShare(shareID, shareType);
+        if (share == null) {
+            logAction("Purchase Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + ", ShareType: " + shareType, false);
+            return "Purchase failed. Share not found.";
+        }
+        return purchaseLocalShare(buyerID, share, shareCount);
+    }
+
+
+    @Override
+    public String sellShare(String buyerID, String shareID, int quantity) {
+        if (quantity <= 0) {
+            logAction("Sell Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + ", Quantity: " + quantity, false);
+            return "Sell failed. Quantity must be positive.";
+        }
+        String result = sellHeldShare(buyerID, shareID, quantity);
+        if (result != null) {
+            return result;
+        }
+
+        // Holdings live in the share's own market, so that is the only place to sell
+        String owner = routing.ownerOf(shareID);
+        if (isPeer(owner)) {
+            return sellRemoteShare(buyerID, shareID, null, quantity, owner);
+        }
+
+        // Unknown owner: the first market where the buyer holds it is the owner
+        for (String market : probeOrder(owner)) {
+            result = sellRemoteShare(buyerID, shareID, null, quantity, market);
+            if (outcomeUnknown(result)) {
+                return result;
+            }
+            if (!result.endsWith("You do not own this share.") && !result.startsWith("Cross-server sell failed.")) {
+                routing.learn(shareID, market);
+                return result;
+            }
+        }
+        logAction("Sell Share", "BuyerID: " + buyerID + ", ShareID: " + shareID, false);
+        return "Sell failed. Share not found in any market.";
+    }
+
+    // Sells from the buyer's holdings in this market; returns null if the buyer holds no such share here
+    private String sellHeldShare(String buyerID, String shareID, int quantity) {
+        Portfolio portfolio = buyerHoldings.get(buyerID);
+        int slot = portfolio != null ? portfolio.find(shareID) : -1;
+
+        if (slot < 0) {
+            return null;
+        }
+        HoldingKey key = holdingSlots.keyOf(slot);
+        // As for purchases: a negative count would credit the buyer
+        if (quantity <= 0) {
+            logAction("Sell Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + ", Quantity: " + quantity, false);
+            return "Sell failed. Quantity must be positive.";
+        }
+
+        CompletableFuture<Void> durable;
+        Lock mutation = store.mutationLock().readLock();
+        lock(mutation);
+        try {
+            // Checked, debited and logged under the buyer's lock, so two concurrent sells
+            // cannot both pass the ownership check and the log has the buyer's order
+            synchronized (portfolio) {
+                if (!portfolio.debit(slot, quantity)) {
+                    logAction("Sell Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + ", Quantity: " + quantity, false);
+                    return "Sell failed. You cannot sell more than you own.";
+                }
+
+                Share share = findShare(shareID, key.getShareType());
+                if (share != null) {
+                    share.increaseCapacity(quantity);
+                }
+                durable = store.logSell(buyerID, key.getShareType(), shareID, quantity);
+            }
+        } finally {
+            mutation.unlock();
+        }
+        awaitDurable(durable);
+        availabilityCache.invalidate(typeKey(key.getShareType()));
+
+        logAction("Sell Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + ", Quantity: " + quantity, true);
+        return "Sell operation successful. Sold " + quantity + " of " + key;
+    }
+
+    @Override
+    public String sellRemoteShare(String buyerID, String shareID, String shareType, 
+                                            int shareCount, String targetMarket) {
+        if (targetMarket.equalsIgnoreCase(this.city)) {
+            return sellLocalShare(buyerID, shareID, shareCount, TraceContext.current());
+        }
+
+        if (Topology.current().market(targetMarket) == null) {
+            logAction("Sell Remote Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + 
+                    ", Target: " + targetMarket, false);
+            return "Sell failed. Invalid target market.";
+        }
+
+        try {
+            // Execute the sell on the remote server, outside of any local lock; the target
+            // settles it itself and never forwards it again
+            String result = peers.call(targetMarket,
+                    peer -> peer.sellLocalShare(buyerID, shareID, shareCount, TraceContext.current()));
+            
+            // Log the cross-server transaction with the outcome the target reported
+            logAction("Sell Remote Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + 
+                    ", Target: " + targetMarket + ", Quantity: " + shareCount, succeeded(result));
+            
+            return "Cross-server sell: " + result;
+        } catch (MarketUnavailableException e) {
+            logAction("Sell Remote Share", "BuyerID: " + buyerID + ", ShareID: " + shareID + 
+                    ", Target: " + targetMarket, false);
+            return "Cross-server sell failed. " + unavailable(e);
+        }
+    }
+
+    @Override
+    public String sellLocalShare(String buyerID, String shareID, int shareCount, TraceContext trace) {
+        String result = sellHeldShare(buyerID, shareID, shareCount);
+        if (result == null) {
+            logAction("Sell Share", "BuyerID: " + buyerID + ", ShareID: " + shareID, false);
+            return "Sell failed. You do not own this share.";
+        }
+        return result;
+    }
+
+
+    // Market whose items this process settles itself. A shard holds only part of its
+    // market, so it hands its own market's items to the front end like any peer's.
+    private String settledHere() {
+        return shard ? null : this.city;
+    }
+
+    @Override
+    public List<String> placeOrders(String buyerID, List<OrderItem> items, boolean allOrNothing) {
+        // Split the batch by owning market, remembering where each item sits in the reply
+        Map<String, List<Integer>> byMarket = new LinkedHashMap<>();
+        for (int i = 0; i < items.size(); i++) {
+            String owner = routing.ownerOf(items.get(i).getShareID());
+            if (owner == null || !remoteServers.containsKey(owner)) {
+                owner = this.city;
+            }
+            byMarket.computeIfAbsent(owner, market -> new ArrayList<>()).add(i);
+        }
+
+        if (allOrNothing) {
+            return placeOrdersAtomically(buyerID, items, byMarket);
+        }
+
+        String[] results = new String[items.size()];
+        List<Integer> localPositions = byMarket.remove(settledHere());
+        if (localPositions != null) {
+            scatter(placeLocalOrders(buyerID, select(items, localPositions), false, TraceContext.current()),
+                    localPositions, results);
+        }
+
+        if (!byMarket.isEmpty()) {
+            // One forwarded batch per peer market, all in flight at once
+            Map<String, PeerMarkets.PeerCall<MarketPeer, List<String>>> calls = new LinkedHashMap<>();
+            for (Map.Entry<String, List<Integer>> group : byMarket.entrySet()) {
+                List<OrderItem> part = select(items, group.getValue());
+                calls.put(group.getKey(), peer -> peer.placeLocalOrders(buyerID, part, false, TraceContext.current()));
+            }
+            PeerMarkets.Gathered<List<String>> gathered = peers.callEach(calls);
+            for (Map.Entry<String, List<String>> answer : gathered.getResults().entrySet()) {
+                scatter(answer.getValue(), byMarket.get(answer.getKey()), results);
+            }
+            for (String market : gathered.getUnavailable()) {
+                for (int position : byMarket.get(market)) {
+                    results[position] = "Order failed. Market " + market + " is unavailable; outcome unknown.";
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    // Two-phase version of placeOrders: every market first holds its items (capacity or
+    // owned units set aside, with a TTL), and only once all holds are in place are they
+    // committed, remote markets first. If any hold or commit fails, the remaining holds
+    // are aborted and markets that already committed are reversed with inverse orders;
+    // holds nobody settles expire on their own.
+    private List<String> placeOrdersAtomically(String buyerID, List<OrderItem> items,
+                                               Map<String, List<Integer>> byMarket) {
+        String[] results = new String[items.size()];
+        Map<String, List<String>> held = new LinkedHashMap<>();
+        boolean failed = false;
+        String local = settledHere();
+
+        Map<String, PeerMarkets.PeerCall<MarketPeer, List<String>>> calls = new LinkedHashMap<>();
+        for (Map.Entry<String, List<Integer>> group : byMarket.entrySet()) {
+            if (!group.getKey().equals(local)) {
+                List<OrderItem> part = select(items, group.getValue());
+                calls.put(group.getKey(), peer -> peer.reserveOrders(buyerID, part, RESERVATION_TTL_MS,
+                        TraceContext.current()));
+            }
+        }
+        // The local part is held while the peers hold theirs
+        PeerMarkets.Gathered<List<String>> gathered = peers.callEach(calls, () -> {
+            if (byMarket.containsKey(local)) {
+                held.put(local, reserveOrders(buyerID, select(items, byMarket.get(local)), RESERVATION_TTL_MS,
+                        TraceContext.current()));
+            }
+        });
+        held.putAll(gathered.getResults());
+
+        for (Map.Entry<String, List<String>> market : held.entrySet()) {
+            List<Integer> positions = byMarket.get(market.getKey());
+            for (int i = 0; i < positions.size(); i++) {
+                if (market.getValue().get(i) == null) {
+                    failed = true;
+                    results[positions.get(i)] = "Order failed. Could not reserve " + items.get(positions.get(i))
+                            + " in " + market.getKey() + ".";
+                }
+            }
+        }
+        for (String market : gathered.getUnavailable()) {
+            failed = true;
+            for (int position : byMarket.get(market)) {
+                results[position] = "Order failed. Market " + market + " is unavailable.";
+            }
+        }
+
+        // Phase two: local market last, so it is committed only if every peer committed.
+        // A market that does not answer its commit may still have committed; what its
+        // abort below returns decides.
+        List<String> order = new ArrayList<>(held.keySet());
+        if (order.remove(local)) {
+            order.add(local);
+        }
+        Set<String> committed = new LinkedHashSet<>();
+        String commitFailure = null;
+        for (String market : order) {
+            if (failed) {
+                break;
+            }
+            List<String> ids = held.get(market);
+            boolean ok;
+            try {
+                ok = market.equals(local)
+                        ? commitReservations(ids, TraceContext.current())
+                        : peers.call(market, peer -> peer.commitReservations(ids, TraceContext.current()));
+            } catch (MarketUnavailableException e) {
+                ok = false;
+            }
+            if (ok) {
+                committed.add(market);
+            } else {
+                failed = true;
+                commitFailure = market;
+            }
+        }
+
+        if (failed) {
+            // Release whatever is still held; the answer says whether the market had
+            // committed after all. A market that is gone drops its holds when they expire.
+            for (Map.Entry<String, List<String>> market : held.entrySet()) {
+                List<String> ids = market.getValue();
+                if (market.getKey().equals(local)) {
+                    if (abortReservations(ids, TraceContext.current())) {
+                        committed.add(local);
+                    }
+                    continue;
+                }
+                try {
+                    if (peers.call(market.getKey(), peer -> peer.abortReservations(ids, TraceContext.current()))) {
+                        committed.add(market.getKey());
+                    }
+                } catch (MarketUnavailableException e) {
+                    System.out.println(city + ": could not abort holds in " + market.getKey() + ", leaving them to expire");
+                    if (market.getKey().equals(commitFailure)) {
+                        for (int position : byMarket.get(commitFailure)) {
+                            results[position] = "Order failed. Market " + commitFailure
+                                    + " did not answer the commit; outcome unknown.";
+                        }
+                    }
+                }
+            }
+
+            // Markets that committed before the failure: undo those commits with the
+            // inverse orders
+            for (String market : committed) {
+                List<Integer> positions = byMarket.get(market);
+                List<OrderItem> inverse = new ArrayList<>();
+                for (int position : positions) {
+                    inverse.add(items.get(position).inverse());
+                }
+                List<String> undone;
+                try {
+                    undone = market.equals(local)
+                            ? placeLocalOrders(buyerID, inverse, true, TraceContext.current())
+                            : peers.call(market, peer -> peer.placeLocalOrders(buyerID, inverse, true,
+                                    TraceContext.current()));
+                } catch (MarketUnavailableException e) {
+                    undone = null;
+                }
+                for (int i = 0; i < positions.size(); i++) {
+                    results[positions.get(i)] = undone != null && succeeded(undone.get(i))
+                            ? "Rolled back. Commit failed in " + commitFailure + "."
+                            : "Order incomplete. Commit failed in " + commitFailure + " and " + market
+                              + " could not be rolled back.";
+                }
+            }
+        }
+
+        for (int i = 0; i < results.length; i++) {
+            if (!failed) {
+                results[i] = successMessage(items.get(i));
+            } else if (results[i] == null) {
+                results[i] = commitFailure != null
+                        ? "Not executed. Order aborted because " + commitFailure + " could not commit."
+                        : "Not executed. Order aborted.";
+            }
+        }
+        logAction("Atomic Order", "BuyerID: " + buyerID + ", Items: " + items.size() + ", Markets: " + byMarket.keySet(), !failed);
+        return Arrays.asList(results);
+    }
+
+    static String successMessage(OrderItem item) {
+        String held = (item.getShareType() != null ? item.getShareType() + "-" : "") + item.getShareID();
+        return item.getSide() == OrderItem.Side.BUY
+                ? "Purchase successful. You bought " + item.getQuantity() + " of " + held
+                : "Sell operation successful. Sold " + item.getQuantity() + " of " + held;
+    }
+
+    @Override
+    public List<String> reserveOrders(String buyerID, List<OrderItem> items, long ttlMillis, TraceContext trace) {
+        List<String> ids = new ArrayList<>(items.size());
+        Set<String> touchedTypes = new HashSet<>();
+        // Under the read lock so a snapshot never sees a hold half-made
+        Lock mutation = store.mutationLock().readLock();
+        lock(mutation);
+        try {
+            for (OrderItem item : items) {
+                ids.add(reserve(buyerID, item, ttlMillis, touchedTypes));
+            }
+        } finally {
+            mutation.unlock();
+        }
+        for (String type : touchedTypes) {
+            availabilityCache.invalidate(type);
+        }
+        return ids;
+    }
+
+    // Sets the item aside without logging it: a buy takes capacity off the share (CAS, so
+    // other buyers of it are never blocked), a sell takes the units out of the portfolio
+    private String reserve(String buyerID, OrderItem item, long ttlMillis, Set<String> touchedTypes) {
+        int quantity = item.getQuantity();
+        if (quantity <= 0) {
+            return null;
+        }
+
+        if (item.getSide() == OrderItem.Side.BUY) {
+            Share share = item.getShareType() != null ? findShare(item.getShareID(), item.getShareType()) : null;
+            if (share == null || !share.tryReduceCapacity(quantity)) {
+                return null;
+            }
+            touchedTypes.add(typeKey(share.getShareType()));
+            return reservations.add(buyerID, item, holdingSlots.slotOf(share.getHoldingKey()), ttlMillis)
+                    .getReservationID();
+        }
+
+        Portfolio portfolio = buyerHoldings.get(buyerID);
+        if (portfolio == null) {
+            return null;
+        }
+        synchronized (portfolio) {
+            int slot = portfolio.find(item.getShareID());
+            if (slot < 0 || !portfolio.debit(slot, quantity)) {
+                return null;
+            }
+            return reservations.add(buyerID, item, slot, ttlMillis).getReservationID();
+        }
+    }
+
+    // All or nothing: false means none of the batch was applied (one of the holds had
+    // already expired or been aborted), and the holds that were still there stay pending
+    @Override
+    public boolean commitReservations(List<String> reservationIDs, TraceContext trace) {
+        List<CompletableFuture<Void>> durable = new ArrayList<>();
+        Set<String> touchedTypes = new HashSet<>();
+        List<String> params = new ArrayList<>();
+        Lock mutation = store.mutationLock().readLock();
+        lock(mutation);
+        try {
+            List<Reservations.Hold> holds = reservations.commit(reservationIDs);
+            if (holds == null) {
+                return false;
+            }
+            for (Reservations.Hold hold : holds) {
+                HoldingKey key = holdingSlots.keyOf(hold.getSlot());
+                int quantity = hold.getItem().getQuantity();
+                Portfolio portfolio = buyerHoldings.computeIfAbsent(hold.getBuyerID(),
+                        buyer -> new Portfolio(holdingSlots));
+                synchronized (portfolio) {
+                    if (hold.getItem().getSide() == OrderItem.Side.BUY) {
+                        portfolio.credit(hold.getSlot(), quantity);
+                        durable.add(store.logPurchase(hold.getBuyerID(), key.getShareType(), key.getShareID(), quantity));
+                    } else {
+                        Share share = findShare(key.getShareID(), key.getShareType());
+                        if (share != null) {
+                            share.increaseCapacity(quantity);
+                        }
+                        durable.add(store.logSell(hold.getBuyerID(), key.getShareType(), key.getShareID(), quantity));
+                    }
+                }
+                touchedTypes.add(typeKey(key.getShareType()));
+                params.add("BuyerID: " + hold.getBuyerID() + ", Reservation: " + hold.getReservationID()
+                        + ", Order: " + hold.getItem());
+            }
+        } finally {
+            mutation.unlock();
+        }
+        for (CompletableFuture<Void> record : durable) {
+            awaitDurable(record);
+        }
+        for (String type : touchedTypes) {
+            availabilityCache.invalidate(type);
+        }
+
+        boolean[] success = new boolean[params.size()];
+        Arrays.fill(success, true);
+        auditLog.recordAll("Commit Reservation", params, success);
+        return true;
+    }
+
+    @Override
+    public boolean abortReservations(List<String> reservationIDs, TraceContext trace) {
+        // Taken and released in one critical section, so a snapshot sees the units either
+        // still held or back where they came from
+        List<Reservations.Hold> released;
+        Set<String> touchedTypes = new HashSet<>();
+        Lock mutation = store.mutationLock().readLock();
+        lock(mutation);
+        try {
+            released = reservations.abort(reservationIDs);
+            for (Reservations.Hold hold : released) {
+                touchedTypes.add(release(hold));
+            }
+        } finally {
+            mutation.unlock();
+        }
+        for (String type : touchedTypes) {
+            availabilityCache.invalidate(type);
+        }
+        for (Reservations.Hold hold : released) {
+            logAction("Abort Reservation", "BuyerID: " + hold.getBuyerID() + ", Reservation: "
+                    + hold.getReservationID(), true);
+        }
+        return reservations.wasCommitted(reservationIDs);
+    }
+
+    // Called by the reaper for a hold past its TTL; as abort, under the mutation lock
+    private void expire(Reservations.Hold hold) {
+        String type;
+        Lock mutation = store.mutationLock().readLock();
+        lock(mutation);
+        try {
+            if (!reservations.expire(hold)) {
+                return;
+            }
+            type = release(hold);
+        } finally {
+            mutation.unlock();
+        }
+        availabilityCache.invalidate(type);
+        System.out.println(instance + ": reservation " + hold.getReservationID() + " expired");
+    }
+
+    // Puts a hold's units back where they came from and returns the share type key touched.
+    // The caller holds the mutation lock from taking the hold until this returns.
+    private String release(Reservations.Hold hold) {
+        HoldingKey key = holdingSlots.keyOf(hold.getSlot());
+        int quantity = hold.getItem().getQuantity();
+        if (hold.getItem().getSide() == OrderItem.Side.BUY) {
+            Share share = findShare(key.getShareID(), key.getShareType());
+            if (share != null) {
+                share.increaseCapacity(quantity);
+            }
+        } else {
+            Portfolio portfolio = buyerHoldings.computeIfAbsent(hold.getBuyerID(), buyer -> new Portfolio(holdingSlots));
+            synchronized (portfolio) {
+                portfolio.credit(hold.getSlot(), quantity);
+            }
+        }
+        return typeKey(key.getShareType());
+    }
+
+    @Override
+    public List<String> placeLocalOrders(String buyerID, List<OrderItem> items, boolean allOrNothing,
+                                         TraceContext trace) {
+        String[] results = new String[items.size()];
+        boolean[] applied = new boolean[items.size()];
+        Share[] shares = new Share[items.size()];
+        int[] slots = new int[items.size()];
+        int failedAt = -1;
+
+        boolean buys = false;
+        for (OrderItem item : items) {
+            buys |= item.getSide() == OrderItem.Side.BUY;
+        }
+        Portfolio portfolio = buys
+                ? buyerHoldings.computeIfAbsent(buyerID, id -> new Portfolio(holdingSlots))
+                : buyerHoldings.get(buyerID);
+        if (portfolio == null) {
+            // Sells only, and nothing held here: an empty, unregistered portfolio makes each fail normally
+            portfolio = new Portfolio(holdingSlots);
+        }
+
+        List<CompletableFuture<Void>> durable = new ArrayList<>();
+        Set<String> touchedTypes = new HashSet<>();
+        Lock mutation = store.mutationLock().readLock();
+        lock(mutation);
+        try {
+            // Holding the buyer's monitor for the whole batch keeps their positions stable,
+            // so crediting/debiting back on rollback cannot fail
+            synchronized (portfolio) {
+                for (int i = 0; i < items.size(); i++) {
+                    OrderItem item = items.get(i);
+                    int quantity = item.getQuantity();
+                    if (quantity <= 0) {
+                        results[i] = "Order failed. Quantity must be positive.";
+                    } else if (item.getSide() == OrderItem.Side.BUY) {
+                        Share share = item.getShareType() != null ? findShare(item.getShareID(), item.getShareType()) : null;
+                        if (share == null) {
+                            results[i] = "Purchase failed. Share not found.";
+                        } else if (!share.tryReduceCapacity(quantity)) {
+                            results[i] = "Purchase failed. Not enough shares available.";
+                        } else {
+                            slots[i] = holdingSlots.slotOf(share.getHoldingKey());
+                            portfolio.credit(slots[i], quantity);
+                            shares[i] = share;
+                            applied[i] = true;
+                            results[i] = "Purchase successful. You bought " + quantity + " of " + share.getHoldingKey();
+                        }
+                    } else {
+                        int slot = portfolio.find(item.getShareID());
+                        if (slot < 0) {
+                            results[i] = "Sell failed. You do not own this share.";
+                        } else if (!portfolio.debit(slot, quantity)) {
+                            results[i] = "Sell failed. You cannot sell more than you own.";
+                        } else {
+                            HoldingKey key = holdingSlots.keyOf(slot);
+                            slots[i] = slot;
+                            shares[i] = findShare(key.getShareID(), key.getShareType());
+                            applied[i] = true;
+                            results[i] = "Sell operation successful. Sold " + quantity + " of " + key;
+                        }
+                    }
+
+                    if (!applied[i] && allOrNothing) {
+                        failedAt = i;
+                        break;
+                    }
+                }
+
+                if (failedAt >= 0) {
+                    // Nothing was logged yet, so undoing in memory is enough
+                    for (int i = failedAt - 1; i >= 0; i--) {
+                        int quantity = items.get(i).getQuantity();
+                        if (items.get(i).getSide() == OrderItem.Side.BUY) {
+                            portfolio.debit(slots[i], quantity);
+                            shares[i].increaseCapacity(quantity);
+                        } else {
+                            portfolio.credit(slots[i], quantity);
+                        }
+                        applied[i] = false;
+                    }
+                    for (int i = 0; i < results.length; i++) {
+                        if (i != failedAt) {
+                            results[i] = "Not executed. Batch aborted because item " + (failedAt + 1) + " failed.";
+                        }
+                    }
+                }
+
+                // Logged before the buyer's monitor is released (see MarketStore)
+                for (int i = 0; i < items.size(); i++) {
+                    if (!applied[i]) {
+                        continue;
+                    }
+                    HoldingKey key = holdingSlots.keyOf(slots[i]);
+                    int quantity = items.get(i).getQuantity();
+                    if (items.get(i).getSide() == OrderItem.Side.BUY) {
+                        durable.add(store.logPurchase(buyerID, key.getShareType(), key.getShareID(), quantity));
+                    } else {
+                        // Sold units only become available to others once the batch is decided
+                        if (shares[i] != null) {
+                            shares[i].increaseCapacity(quantity);
+                        }
+                        durable.add(store.logSell(buyerID, key.getShareType(), key.getShareID(), quantity));
+                    }
+                    touchedTypes.add(typeKey(key.getShareType()));
+                }
+            }
+        } finally {
+            mutation.unlock();
+        }
+        for (CompletableFuture<Void> record : durable) {
+            awaitDurable(record);
+        }
+        for (String type : touchedTypes) {
+            availabilityCache.invalidate(type);
+        }
+
+        // One audit batch for the whole order
+        List<String> params = new ArrayList<>(items.size());
+        for (OrderItem item : items) {
+            params.add("BuyerID: " + buyerID + ", Order: " + item);
+        }
+        auditLog.recordAll("Batch Order", params, applied);
+        return Arrays.asList(results);
+    }
+
+    static List<OrderItem> select(List<OrderItem> items, List<Integer> positions) {
+        List<OrderItem> part = new ArrayList<>(positions.size());
+        for (int position : positions) {
+            part.add(items.get(position));
+        }
+        return part;
+    }
+
+    // Copies a market's answers back to their positions in the batch
+    static void scatter(List<String> answers, List<Integer> positions, String[] results) {
+        for (int i = 0; i < positions.size(); i++) {
+            results[positions.get(i)] = answers.get(i);
+        }
+    }
+
+    static boolean succeeded(String result) {
+        return result.startsWith("Purchase successful") || result.startsWith("Sell operation successful");
+    }
+
+
+    @Override
+    public String listShareAvailability(String shareType) {
+        return listShareAvailability(shareType, localAvailability(shareType));
+    }
+
+    StringBuilder localAvailability(String shareType) {
+        StringBuilder availability = new StringBuilder();
+        Map<String, Share> shares = shareDatabase.get(typeKey(shareType));
+        if (shares != null) {
+            for (Share share : shares.values()) {
+                availability.append("[Share ID: ").append(share.getShareID())
+                        .append(", Type: ").append(share.getShareType())
+                        .append(", Available: ").append(share.getAvailableCapacity()).append("]\n");
+            }
+        }
+        return availability;
+    }
+
+    // listShareAvailability around a local part the caller has already taken
+    String listShareAvailability(String shareType, StringBuilder availability) {
+        // Query every other market at once over the shared UDP channel; a silent market
+        // is retried a few times and then reported instead of hanging the admin call
+        Map<String, InetSocketAddress> peerPorts = new LinkedHashMap<>();
+        for (Map.Entry<String, InetSocketAddress> entry : remoteServers.entrySet()) {
+            if (!entry.getKey().equalsIgnoreCase(this.city)) {
+                peerPorts.put(entry.getKey(), entry.getValue());
+            }
+        }
+        PeerMarkets.Gathered<List<AvailabilityCodec.Entry>> gathered = udpPeers.listAvailability(peerPorts, shareType);
+        for (String market : peerPorts.keySet()) {
+            List<AvailabilityCodec.Entry> entries = gathered.getResults().get(market);
+            if (entries == null) {
+                continue;
+            }
+            for (AvailabilityCodec.Entry entry : entries) {
+                availability.append("Share: ").append(entry.getShareID())
+                        .append(", Type: ").append(entry.getShareType())
+                        .append(", Available: ").append(entry.getAvailable()).append("\n");
+            }
+        }
+        if (gathered.isPartial()) {
+            availability.append("(Markets not responding: ").append(String.join(", ", gathered.getUnavailable())).append(")");
+        }
+        return availability.toString().trim();
+    }
+
+
+    // Rebuilds state during recovery and walks it for snapshots; no logging, no forwarding
+    private class StoreTarget implements MarketStore.Target {
+        @Override
+        public void applyAddShare(String shareType, String shareID, int totalCapacity, int availableCapacity) {
+            Map<String, Share> shares = shareDatabase.computeIfAbsent(typeKey(shareType), type -> new ConcurrentHashMap<>());
+            Share share = new Share(shareID, shareType, totalCapacity);
+            share.reduceCapacity(totalCapacity - availableCapacity);
+            shares.put(shareID, share);
+        }
+
+        @Override
+        public void applyRemoveShare(String shareType, String shareID) {
+            Map<String, Share> shares = shareDatabase.get(typeKey(shareType));
+            if (shares != null) {
+                shares.remove(shareID);
+            }
+        }
+
+        @Override
+        public void applyCapacity(String shareType, String shareID, int delta) {
+            Share share = findShare(shareID, shareType);
+            if (share != null) {
+                share.increaseCapacity(delta);
+            }
+        }
+
+        @Override
+        public void applyHolding(String buyerID, String shareType, String shareID, int delta) {
+            Share share = findShare(shareID, shareType);
+            HoldingKey key = share != null ? share.getHoldingKey() : new HoldingKey(shareType, shareID);
+            int slot = holdingSlots.slotOf(key);
+            Portfolio portfolio = buyerHoldings.computeIfAbsent(buyerID, id -> new Portfolio(holdingSlots));
+            if (delta > 0) {
+                portfolio.credit(slot, delta);
+            } else {
+                portfolio.debit(slot, -delta);
+            }
+        }
+
+        @Override
+        public void writeState(MarketStore.StateWriter writer) throws IOException {
+            // Pending holds are not in the log, so the snapshot records their units where
+            // they were before the hold: bought capacity as available, sold units as owned
+            Map<HoldingKey, Integer> heldCapacity = new HashMap<>();
+            Map<String, Map<HoldingKey, Integer>> heldUnits = new HashMap<>();
+            for (Reservations.Hold hold : reservations.pending()) {
+                HoldingKey key = holdingSlots.keyOf(hold.getSlot());
+                if (hold.getItem().getSide() == OrderItem.Side.BUY) {
+                    heldCapacity.merge(key, hold.getItem().getQuantity(), Integer::sum);
+                } else {
+                    heldUnits.computeIfAbsent(hold.getBuyerID(), buyer -> new HashMap<>())
+                            .merge(key, hold.getItem().getQuantity(), Integer::sum);
+                }
+            }
+
+            for (Map<String, Share> shares : shareDatabase.values()) {
+                for (Share share : shares.values()) {
+                    writer.share(share.getShareType(), share.getShareID(), share.getTotalCapacity(),
+                            share.getAvailableCapacity() + heldCapacity.getOrDefault(share.getHoldingKey(), 0));
+                }
+            }
+            for (Map.Entry<String, Portfolio> buyer : buyerHoldings.entrySet()) {
+                Map<HoldingKey, Integer> positions = buyer.getValue().positions();
+                Map<HoldingKey, Integer> held = heldUnits.remove(buyer.getKey());
+                if (held != null) {
+                    held.forEach((key, quantity) -> positions.merge(key, quantity, Integer::sum));
+                }
+                for (Map.Entry<HoldingKey, Integer> position : positions.entrySet()) {
+                    writer.holding(buyer.getKey(), position.getKey().getShareType(), position.getKey().getShareID(),
+                            position.getValue());
+                }
+            }
+        }
+    }
+
+
+    static void startServer(Topology topology, Topology.Market market) throws RemoteException {
+        startServer(topology, market.getName(), market.getName(), market.getRmiPort(), market.getUdpPort(),
+                market.getPeerPort());
+    }
+
+    // Starts one market, or with instance "<market>-shard<k>" one shard of it, bound under the instance name
+    static void startServer(Topology topology, String city, String instance, int rmiPort, int udpPort, int peerPort)
+            throws RemoteException {
+        ShareMarketServerImpl server = new ShareMarketServerImpl(city, instance, udpPort);
+
+        // Bind the server behind its call timers and spans, creating the RMI registry if not already running
+        registry(rmiPort).rebind(instance, new MeteredMarketServer(server, server.getMetrics(), server.getTracer()));
+        // Other markets call its peer side, on a port of its own unless peerPort is rmiPort
+        registry(peerPort).rebind(Topology.peerBinding(instance),
+                new MeteredMarketServer.Peer(server, server.getMetrics(), server.getTracer(), peerPort));
+
+        System.out.println(instance + " Server is ready at UDP Port "+udpPort+" and RMI port "+rmiPort+" (peers on "+peerPort+") .");
+
+        // Peers come from the topology, and follow it when the file changes
+        server.applyTopology(topology);
+        topology.addListener(server::applyTopology);
+
+        // Ship the WAL to the market's read replicas, if it has any
+        Topology.Market market = topology.market(city);
+        ReplicationStream replication = !server.shard && market != null && !market.getReplicas().isEmpty()
+                ? new ReplicationStream(city, server.getStore(), market.getReplicas())
+                : null;
+        if (replication != null) {
+            replication.start();
+        }
+
+        // Start UDP thread
+        UDPServerThread udpServer = new UDPServerThread(udpPort, server, server.getShareDatabase());
+        udpServer.setMetrics(server.getMetrics());
+        udpServer.setTracer(server.getTracer());
+        new Thread(udpServer).start();
+        server.getMetrics().start();
+        server.getTracer().start();
+
+        // Report how often peer stubs were reused vs looked up again, snapshot the market
+        // and flush the audit log
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            System.out.println(instance + " " + server.getPeerMarkets().stubCacheStats());
+            System.out.println(instance + " " + server.getRoutingTable().stats());
+            if (replication != null) {
+                replication.close();
+                System.out.println(instance + " " + replication.stats());
+            }
+            server.getStore().close();
+            System.out.println(instance + " " + server.getStore().stats());
+            server.getAuditLog().close();
+            server.getMetrics().close();
+            server.getTracer().close();
+            System.out.println(instance + " " + server.getTracer().stats());
+        }));
+    }
+
+    static Registry registry(int rmiPort) throws RemoteException {
+        try {
+            return LocateRegistry.createRegistry(rmiPort);
+        } catch (RemoteException e) {
+            return LocateRegistry.getRegistry(rmiPort);
+        }
+    }
+
+    // Bound the RMI transport as well, so a peer call abandoned at its deadline does not
+    // leave a thread blocked on a dead connection
+    static void setTransportTimeouts() {
+        System.setProperty("sun.rmi.transport.tcp.responseTimeout",
+                System.getProperty("sun.rmi.transport.tcp.responseTimeout", "10000"));
+        System.setProperty("sun.rmi.transport.connectionTimeout",
+                System.getProperty("sun.rmi.transport.connectionTimeout", "5000"));
+    }
+
+    // Runs the whole topology in this JVM, or with market names as arguments only those
+    // markets; MarketLauncher runs one market (or one shard) per process instead
+    public static void main(String[] args) {
+        setTransportTimeouts();
+        Topology topology = Topology.current();
+        topology.watch(Long.getLong("dsms.topology.reloadMs", 2000));
+        try {
+            for (Topology.Market market : topology.markets()) {
+                if (args.length == 0 || Arrays.asList(args).contains(market.getName())) {
+                    MarketLauncher.start(topology, market);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+}
@@ -0,0 +1,352 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Which markets exist and where they listen. Read from the properties file named by
+// dsms.topology (topology.properties by default); without that file the built-in
+// New York/London/Tokyo layout is used. Servers and clients both resolve markets here.
+//
+//   markets=NewYork,London,Tokyo
+//   market.NewYork.code=NYK              prefix of its share, buyer and admin IDs
+//   market.NewYork.host=localhost
+//   market.NewYork.rmiPort=1099
+//   market.NewYork.udpPort=5000
+//   market.NewYork.peerPort=2099          RMI port other markets call it on (MarketPeer),
+//                                        optional; defaults to rmiPort
+//   market.NewYork.replicas=host:port,...  read-only replicas (RMI), optional; the
+//                                        primary streams its WAL to them (ReplicaServer)
+//   market.NewYork.shards=host:rmiPort:udpPort[:peerPort],...
+//                                        optional; the catalogue is then hash-partitioned
+//                                        over these processes and host and ports above
+//                                        belong to the ShardRouter front end
+//
+// watch() re-reads the file when it changes and tells the listeners, so a market added
+// to the file is picked up by running servers without restarting them.
+public class Topology {
+
+    public static class Endpoint {
+        private final String host;
+        private final int port;
+
+        public Endpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    // One partition of a sharded market, bound as "<market>-shard<index>"
+    public static class Shard {
+        private final String name;
+        private final String host;
+        private final int rmiPort;
+        private final int udpPort;
+        private final int peerPort;
+
+        public Shard(String name, String host, int rmiPort, int udpPort) {
+            this(name, host, rmiPort, udpPort, rmiPort);
+        }
+
+        public Shard(String name, String host, int rmiPort, int udpPort, int peerPort) {
+            this.name = name;
+            this.host = host;
+            this.rmiPort = rmiPort;
+            this.udpPort = udpPort;
+            this.peerPort = peerPort;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getRmiPort() {
+            return rmiPort;
+        }
+
+        public int getUdpPort() {
+            return udpPort;
+        }
+
+        public int getPeerPort() {
+            return peerPort;
+        }
+
+        @Override
+        public String toString() {
+            return name + "@" + host + ":" + rmiPort + "/" + udpPort + (peerPort != rmiPort ? "/" + peerPort : "");
+        }
+    }
+
+    public static class Market {
+        private final String name;
+        private final String code;
+        private final String host;
+        private final int rmiPort;
+        private final int udpPort;
+        private final int peerPort;
+        private final List<Endpoint> replicas;
+        private final List<Shard> shards;
+
+        public Market(String name, String code, String host, int rmiPort, int udpPort, List<Endpoint> replicas) {
+            this(name, code, host, rmiPort, udpPort, rmiPort, replicas, Collections.emptyList());
+        }
+
+        public Market(String name, String code, String host, int rmiPort, int udpPort, int peerPort,
+                      List<Endpoint> replicas, List<Shard> shards) {
+            this.name = name;
+            this.code = code;
+            this.host = host;
+            this.rmiPort = rmiPort;
+            this.udpPort = udpPort;
+            this.peerPort = peerPort;
+            this.replicas = replicas;
+            this.shards = shards;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getRmiPort() {
+            return rmiPort;
+        }
+
+        public int getUdpPort() {
+            return udpPort;
+        }
+
+        public int getPeerPort() {
+            return peerPort;
+        }
+
+        public List<Endpoint> getReplicas() {
+            return replicas;
+        }
+
+        public List<Shard> getShards() {
+            return shards;
+        }
+
+        public boolean isSharded() {
+            return !shards.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return name + " [" + code + ", " + host + ", RMI " + rmiPort + ", UDP " + udpPort
+                    + (peerPort != rmiPort ? ", peers " + peerPort : "")
+                    + (replicas.isEmpty() ? "" : ", replicas " + replicas)
+                    + (shards.isEmpty() ? "" : ", shards " + shards) + "]";
+        }
+    }
+
+    public interface Listener {
+        void topologyChanged(Topology topology);
+    }
+
+    private static Topology current;
+
+    private final Path file;
+    private volatile Map<String, Market> markets;
+    private volatile long loadedModified;
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private Thread watcher;
+
+    public Topology(Path file) {
+        this.file = file;
+        reload();
+    }
+
+    // The process-wide topology, loaded on first use
+    public static synchronized Topology current() {
+        if (current == null) {
+            current = new Topology(Paths.get(System.getProperty("dsms.topology", "topology.properties")));
+        }
+        return current;
+    }
+
+    // Registry name of a market's or shard's peer side (MarketPeer), bound on its peerPort
+    public static String peerBinding(String instance) {
+        return instance + "-peer";
+    }
+
+    public Market market(String name) {
+        return name != null ? markets.get(name) : null;
+    }
+
+    public Collection<Market> markets() {
+        return markets.values();
+    }
+
+    // Market whose city code starts the given share, buyer or admin ID
+    public Market marketForID(String id) {
+        if (id == null || id.length() < 3) {
+            return null;
+        }
+        String code = id.substring(0, 3).toUpperCase(Locale.ROOT);
+        for (Market market : markets.values()) {
+            if (market.getCode().equals(code)) {
+                return market;
+            }
+        }
+        return null;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    // Polls the file's modification time and reloads on change
+    public synchronized void watch(long intervalMillis) {
+        if (watcher != null) {
+            return;
+        }
+        watcher = new Thread(() -> {
+            while (true) {
+                try {
+                    Thread.sleep(intervalMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                if (modifiedTime() != loadedModified && reload()) {
+                    System.out.println("Topology reloaded from " + file + ": " + markets.keySet());
+                    for (Listener listener : listeners) {
+                        listener.topologyChanged(this);
+                    }
+                }
+            }
+        }, "topology-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+    }
+
+    // Returns false (keeping the previous layout) if the file is unreadable or malformed
+    public synchronized boolean reload() {
+        long modified = modifiedTime();
+        if (!Files.exists(file)) {
+            if (markets == null) {
+                markets = defaults();
+            }
+            loadedModified = modified;
+            return false;
+        }
+
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+            markets = parse(properties);
+            loadedModified = modified;
+            return true;
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Could not load topology from " + file + ": " + e.getMessage());
+            if (markets == null) {
+                markets = defaults();
+            }
+            loadedModified = modified;
+            return false;
+        }
+    }
+
+    private long modifiedTime() {
+        try {
+            return Files.exists(file) ? Files.getLastModifiedTime(file).toMillis() : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static Map<String, Market> parse(Properties properties) {
+        Map<String, Market> parsed = new LinkedHashMap<>();
+        for (String name : properties.getProperty("markets", "").split(",")) {
+            name = name.trim();
+            if (name.isEmpty()) {
+                continue;
+            }
+            String prefix = "market." + name + ".";
+            String code = required(properties, prefix + "code").toUpperCase(Locale.ROOT);
+            String host = properties.getProperty(prefix + "host", "localhost").trim();
+            int rmiPort = Integer.parseInt(required(properties, prefix + "rmiPort"));
+            int udpPort = Integer.parseInt(required(properties, prefix + "udpPort"));
+            String peerPort = properties.getProperty(prefix + "peerPort", "").trim();
+
+            List<Endpoint> replicas = new ArrayList<>();
+            for (String replica : properties.getProperty(prefix + "replicas", "").split(",")) {
+                replica = replica.trim();
+                if (!replica.isEmpty()) {
+                    int colon = replica.lastIndexOf(':');
+                    replicas.add(new Endpoint(replica.substring(0, colon), Integer.parseInt(replica.substring(colon + 1))));
+                }
+            }
+            List<Shard> shards = new ArrayList<>();
+            for (String shard : properties.getProperty(prefix + "shards", "").split(",")) {
+                shard = shard.trim();
+                if (!shard.isEmpty()) {
+                    String[] parts = shard.split(":");
+                    int shardRmiPort = Integer.parseInt(parts[1]);
+                    shards.add(new Shard(name + "-shard" + shards.size(), parts[0], shardRmiPort,
+                            Integer.parseInt(parts[2]), parts.length > 3 ? Integer.parseInt(parts[3]) : shardRmiPort));
+                }
+            }
+            parsed.put(name, new Market(name, code, host, rmiPort, udpPort,
+                    peerPort.isEmpty() ? rmiPort : Integer.parseInt(peerPort),
+                    Collections.unmodifiableList(replicas), Collections.unmodifiableList(shards)));
+        }
+        if (parsed.isEmpty()) {
+            throw new IllegalArgumentException("no markets defined");
+        }
+        return Collections.unmodifiableMap(parsed);
+    }
+
+    private static String required(Properties properties, String key) {
+        String value = properties.getProperty(key);
+        if (value == null || value.trim().isEmpty()) {
+            throw new IllegalArgumentException("missing " + key);
+        }
+        return value.trim();
+    }
+
+    private static Map<String, Market> defaults() {
+        Map<String, Market> layout = new LinkedHashMap<>();
+        layout.put("NewYork", new Market("NewYork", "NYK", "localhost", 1099, 5000, Collections.emptyList()));
+        layout.put("London", new Market("London", "LON", "localhost", 1100, 5001, Collections.emptyList()));
+        layout.put("Tokyo", new Market("Tokyo", "TOK", "localhost", 1101, 5002, Collections.emptyList()));
+        return Collections.unmodifiableMap(layout);
+    }
+}
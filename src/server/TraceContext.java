@@ -0,0 +1,111 @@
+package server;
+
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+
+// Identifies one span of a distributed trace: the trace it belongs to, the span itself and
+// how many server-to-server hops from the market the client called it is. It travels as
+// an explicit argument of every server-to-server RMI call and in every UDP availability
+// request, always naming the caller's span for that call, so the callee can hang its own
+// span under it. Inside a server the span being worked on is the thread's current
+// context (see Tracer), which is what calls to other markets are made under.
+public final class TraceContext implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private static final ThreadLocal<TraceContext> CURRENT = new ThreadLocal<>();
+
+    private final long traceID;
+    private final long spanID;
+    private final int depth;
+    // Unsampled traces are still passed on, so the markets they reach do not start new ones
+    private final boolean sampled;
+
+    private TraceContext(long traceID, long spanID, int depth, boolean sampled) {
+        this.traceID = traceID;
+        this.spanID = spanID;
+        this.depth = depth;
+        this.sampled = sampled;
+    }
+
+    static TraceContext newTrace(boolean sampled) {
+        return new TraceContext(randomID(), randomID(), 0, sampled);
+    }
+
+    // Another span of the same trace at the same hop, e.g. a server's span under its caller's
+    TraceContext sibling() {
+        return new TraceContext(traceID, randomID(), depth, sampled);
+    }
+
+    // The span of a call to another process, one hop further out
+    TraceContext nextHop() {
+        return new TraceContext(traceID, randomID(), depth + 1, sampled);
+    }
+
+    private static long randomID() {
+        long id;
+        do {
+            id = ThreadLocalRandom.current().nextLong();
+        } while (id == 0);
+        return id;
+    }
+
+    public long getTraceID() {
+        return traceID;
+    }
+
+    public long getSpanID() {
+        return spanID;
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public boolean isSampled() {
+        return sampled;
+    }
+
+    // The span this thread is working for, or null outside any traced request
+    public static TraceContext current() {
+        return CURRENT.get();
+    }
+
+    // Makes context the thread's current one and returns the one it replaces
+    static TraceContext enter(TraceContext context) {
+        TraceContext previous = CURRENT.get();
+        CURRENT.set(context);
+        return previous;
+    }
+
+    static void restore(TraceContext previous) {
+        if (previous == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(previous);
+        }
+    }
+
+    // Wire form for UDP requests: "<trace>-<span>-<depth>-<sampled 0|1>", IDs in hex
+    public String encode() {
+        return Long.toHexString(traceID) + "-" + Long.toHexString(spanID) + "-" + depth + "-" + (sampled ? 1 : 0);
+    }
+
+    // Null if the text is not an encoded context
+    public static TraceContext decode(String text) {
+        String[] parts = text.split("-");
+        if (parts.length != 4) {
+            return null;
+        }
+        try {
+            return new TraceContext(Long.parseUnsignedLong(parts[0], 16), Long.parseUnsignedLong(parts[1], 16),
+                    Integer.parseInt(parts[2]), parts[3].equals("1"));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return encode();
+    }
+}
@@ -0,0 +1,200 @@
+package server;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Puts the trace files of all processes back together (see Tracer) and prints each trace
+// as a call tree, so one slow request can be followed from market to market:
+//
+//   java server.TraceViewer                 the dsms.trace.top (10) slowest traces
+//   java server.TraceViewer <trace> ...     the given traces (IDs in hex, as in the files)
+//
+// Every *_trace.log in dsms.trace.dir (logs) is read, so copy the files of processes on
+// other machines next to the local ones first. Under each span the slowest child is
+// marked with '*'; the marks trace the path the request waited on, and the span on it with
+// the most time of its own ("self": not spent in its children, which for a client span
+// is time on the wire or queued at the callee) is named after the tree as the one that
+// made the request slow.
+public class TraceViewer {
+
+    static final class Span {
+        final String traceID;
+        final String spanID;
+        final String parentID;
+        final int depth;
+        final String instance;
+        final String kind;
+        final String name;
+        final String peer;
+        final long startMicros;
+        final long durationMicros;
+        final boolean ok;
+        final List<Span> children = new ArrayList<>();
+
+        Span(String[] fields) {
+            traceID = fields[0];
+            spanID = fields[1];
+            parentID = fields[2];
+            depth = Integer.parseInt(fields[3]);
+            instance = fields[4];
+            kind = fields[5];
+            name = fields[6];
+            peer = fields[7];
+            startMicros = Long.parseLong(fields[8]);
+            durationMicros = Long.parseLong(fields[9]);
+            ok = fields[10].equals("ok");
+        }
+
+        // The child that took longest, or null for a leaf
+        Span slowestChild() {
+            Span slowest = null;
+            for (Span child : children) {
+                if (slowest == null || child.durationMicros > slowest.durationMicros) {
+                    slowest = child;
+                }
+            }
+            return slowest;
+        }
+
+        // Time no child accounts for: work done in this span itself, or for a client span
+        // the time on the wire and queued at the callee. Children may run in parallel, so
+        // what they cover is the union of their intervals.
+        long selfMicros() {
+            long end = startMicros + durationMicros;
+            long covered = 0;
+            long coveredUpTo = startMicros;
+            for (Span child : children) {
+                long from = Math.max(child.startMicros, coveredUpTo);
+                long to = Math.min(child.startMicros + child.durationMicros, end);
+                if (to > from) {
+                    covered += to - from;
+                    coveredUpTo = to;
+                }
+            }
+            return Math.max(durationMicros - covered, 0);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path dir = Paths.get(System.getProperty("dsms.trace.dir", "logs"));
+        Map<String, List<Span>> traces = read(dir);
+        if (traces.isEmpty()) {
+            System.out.println("No spans in " + dir.toAbsolutePath() + "/*_trace.log");
+            return;
+        }
+
+        List<Span> roots = new ArrayList<>();
+        if (args.length > 0) {
+            for (String traceID : args) {
+                List<Span> spans = traces.get(traceID.toLowerCase());
+                if (spans == null) {
+                    System.out.println("Trace " + traceID + " not found");
+                } else {
+                    roots.addAll(link(spans));
+                }
+            }
+        } else {
+            for (List<Span> spans : traces.values()) {
+                roots.addAll(link(spans));
+            }
+            roots.sort(Comparator.comparingLong((Span span) -> span.durationMicros).reversed());
+            int top = Integer.getInteger("dsms.trace.top", 10);
+            System.out.println(traces.size() + " traces; the " + Math.min(top, roots.size()) + " slowest:");
+            System.out.println();
+            roots = roots.subList(0, Math.min(top, roots.size()));
+        }
+
+        for (Span root : roots) {
+            print(root);
+        }
+    }
+
+    // Spans by trace ID, from every trace file in dir; malformed lines are skipped
+    static Map<String, List<Span>> read(Path dir) throws IOException {
+        Map<String, List<Span>> traces = new LinkedHashMap<>();
+        if (!Files.isDirectory(dir)) {
+            return traces;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*_trace.log")) {
+            for (Path file : files) {
+                for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                    String[] fields = line.split("\t");
+                    if (fields.length != 11) {
+                        continue;
+                    }
+                    try {
+                        Span span = new Span(fields);
+                        traces.computeIfAbsent(span.traceID, trace -> new ArrayList<>()).add(span);
+                    } catch (NumberFormatException e) {
+                        // Skipped, like any other line that is not a span
+                    }
+                }
+            }
+        }
+        return traces;
+    }
+
+    // Hangs every span under its parent and returns the roots: spans without a parent, or
+    // whose parent is missing (a process whose file was not collected)
+    static List<Span> link(List<Span> spans) {
+        Map<String, Span> byID = new HashMap<>();
+        for (Span span : spans) {
+            byID.put(span.spanID, span);
+        }
+        List<Span> roots = new ArrayList<>();
+        for (Span span : spans) {
+            Span parent = byID.get(span.parentID);
+            if (parent != null && parent != span) {
+                parent.children.add(span);
+            } else {
+                roots.add(span);
+            }
+        }
+        for (Span span : spans) {
+            span.children.sort(Comparator.comparingLong(child -> child.startMicros));
+        }
+        return roots;
+    }
+
+    private static void print(Span root) {
+        System.out.println("trace " + root.traceID + "  " + millis(root.durationMicros) + "  "
+                + root.instance + " " + root.name);
+        print(root, root.startMicros, "", false);
+
+        Span culprit = root;
+        for (Span next = root.slowestChild(); next != null; next = next.slowestChild()) {
+            if (next.selfMicros() > culprit.selfMicros()) {
+                culprit = next;
+            }
+        }
+        System.out.println("  slowest in " + culprit.instance + " " + culprit.kind + " " + culprit.name
+                + (culprit.peer.equals("-") ? "" : " -> " + culprit.peer) + " (self " + millis(culprit.selfMicros())
+                + " of " + millis(root.durationMicros) + ")");
+        System.out.println();
+    }
+
+    private static void print(Span span, long traceStart, String indent, boolean slowest) {
+        System.out.println(String.format("  %s %-30s %-6s hop %d  %-20s %-16s +%-10s %10s  self %10s  %s",
+                slowest ? "*" : " ", indent + span.instance, span.kind, span.depth, span.name,
+                span.peer.equals("-") ? "" : "-> " + span.peer, millis(span.startMicros - traceStart),
+                millis(span.durationMicros), millis(span.selfMicros()), span.ok ? "ok" : "ERROR"));
+        Span slowestChild = span.slowestChild();
+        for (Span child : span.children) {
+            print(child, traceStart, indent + "  ", child == slowestChild);
+        }
+    }
+
+    private static String millis(long micros) {
+        return String.format("%.3fms", micros / 1000.0);
+    }
+}
@@ -0,0 +1,199 @@
+package server;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Records the spans of one server process (a market, shard, shard router or replica) to
+// logs/<instance>_trace.log, one tab-separated line per span:
+//
+//   trace  span  parent  depth  instance  kind  name  peer  start(epoch us)  duration(us)  status
+//
+// A server span covers a call this process answered (RMI or UDP) and a client span a call
+// it made to another process; a client span is the parent of the span the callee records,
+// so TraceViewer can rebuild the whole call tree from the files of all processes. Request
+// threads only enqueue finished spans; a background writer appends them, and spans that
+// find the queue full are dropped and counted rather than slowing requests down.
+//
+// Tunables (system properties):
+//   dsms.trace.enabled     true | false (true)
+//   dsms.trace.sampleRate  fraction of new traces recorded, 0.0 - 1.0 (1.0); a trace that
+//                          arrives from another market is recorded if it was sampled there
+//   dsms.trace.dir         directory of the trace files (logs)
+//   dsms.trace.capacity    spans queued for the writer at most (65536)
+public class Tracer {
+
+    public static final String SERVER = "server";
+    public static final String CLIENT = "client";
+
+    public static final class Span {
+        private final TraceContext context;
+        private final long parentSpanID;
+        private final String kind;
+        private final String name;
+        private final String peer;
+        private final long startMicros;
+        private final long startNanos;
+        private long durationMicros;
+        private boolean failed;
+
+        private Span(TraceContext context, long parentSpanID, String kind, String name, String peer) {
+            this.context = context;
+            this.parentSpanID = parentSpanID;
+            this.kind = kind;
+            this.name = name;
+            this.peer = peer;
+            this.startNanos = System.nanoTime();
+            this.startMicros = CLOCK_MICROS + TimeUnit.NANOSECONDS.toMicros(startNanos - CLOCK_NANOS);
+        }
+
+        public TraceContext getContext() {
+            return context;
+        }
+
+        public void fail() {
+            failed = true;
+        }
+    }
+
+    // Wall clock at startup, advanced by nanoTime, so start times within a process have
+    // microsecond resolution and spans of different processes can still be lined up
+    private static final long CLOCK_MICROS = TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis());
+    private static final long CLOCK_NANOS = System.nanoTime();
+
+    private static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("dsms.trace.enabled", "true"));
+    private static final double SAMPLE_RATE = Double.parseDouble(System.getProperty("dsms.trace.sampleRate", "1.0"));
+
+    private final String instance;
+    private final Path file;
+    private final BlockingQueue<Span> finished = new ArrayBlockingQueue<>(Integer.getInteger("dsms.trace.capacity", 65536));
+    private final AtomicLong recorded = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private Thread writer;
+    private volatile boolean closed;
+
+    public Tracer(String instance) {
+        this.instance = instance;
+        this.file = Paths.get(System.getProperty("dsms.trace.dir", "logs"), instance + "_trace.log");
+    }
+
+    // Span of a call answered here. caller is the calling process's span for the call;
+    // null (a client, or a caller that is not tracing) starts a new trace.
+    public Span serverSpan(String name, TraceContext caller) {
+        if (caller == null) {
+            return new Span(TraceContext.newTrace(sample()), 0, SERVER, name, "-");
+        }
+        return new Span(caller.sibling(), caller.getSpanID(), SERVER, name, "-");
+    }
+
+    // Span of a call to peer made for the thread's current span; null outside a traced request
+    public Span clientSpan(String name, String peer) {
+        return clientSpan(name, peer, TraceContext.current());
+    }
+
+    // As above for a call made on another thread on behalf of parent
+    public Span clientSpan(String name, String peer, TraceContext parent) {
+        if (parent == null) {
+            return null;
+        }
+        return new Span(parent.nextHop(), parent.getSpanID(), CLIENT, name, peer);
+    }
+
+    private static boolean sample() {
+        return ENABLED && (SAMPLE_RATE >= 1.0 || ThreadLocalRandom.current().nextDouble() < SAMPLE_RATE);
+    }
+
+    // Null-safe, so callers can finish whatever clientSpan returned
+    public void finish(Span span) {
+        if (span == null) {
+            return;
+        }
+        span.durationMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - span.startNanos);
+        if (!ENABLED || !span.context.isSampled() || closed) {
+            return;
+        }
+        if (finished.offer(span)) {
+            recorded.incrementAndGet();
+        } else {
+            dropped.incrementAndGet();
+        }
+    }
+
+    public synchronized void start() {
+        if (!ENABLED || writer != null) {
+            return;
+        }
+        writer = new Thread(this::drainLoop, instance + "-trace");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void drainLoop() {
+        try {
+            Files.createDirectories(file.getParent());
+        } catch (IOException e) {
+            System.out.println(instance + ": tracing off, cannot create " + file.getParent() + " (" + e.getMessage() + ")");
+            return;
+        }
+        List<Span> batch = new ArrayList<>();
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            while (!closed || !finished.isEmpty()) {
+                Span first = finished.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                finished.drainTo(batch);
+                for (Span span : batch) {
+                    write(out, span);
+                }
+                batch.clear();
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.out.println(instance + ": could not write " + file + " (" + e.getMessage() + ")");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void write(Writer out, Span span) throws IOException {
+        TraceContext context = span.context;
+        out.write(Long.toHexString(context.getTraceID()) + '\t' + Long.toHexString(context.getSpanID()) + '\t'
+                + (span.parentSpanID == 0 ? "-" : Long.toHexString(span.parentSpanID)) + '\t' + context.getDepth()
+                + '\t' + instance + '\t' + span.kind + '\t' + span.name + '\t' + span.peer + '\t' + span.startMicros
+                + '\t' + span.durationMicros + '\t' + (span.failed ? "error" : "ok") + '\n');
+    }
+
+    public String stats() {
+        return "Tracing [spans recorded: " + recorded.get() + ", dropped: " + dropped.get() + ", file: " + file + "]";
+    }
+
+    // Writes out what is queued and stops the writer
+    public void close() {
+        closed = true;
+        Thread running;
+        synchronized (this) {
+            running = writer;
+        }
+        if (running != null) {
+            try {
+                running.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
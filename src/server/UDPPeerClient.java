@@ -0,0 +1,228 @@
+package server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Client side of the UDP availability protocol. One long-lived channel is shared by all
+// requests; each request carries an ID ("REQ <id> LIST_AVAILABILITY <type>") that comes
+// back in every binary frame of the reply (see AvailabilityCodec), so frames from several
+// peers can be matched and reassembled as they arrive. Peers are queried concurrently and
+// an incomplete reply is re-requested a bounded number of times before the market is
+// reported as unavailable. Inside a traced request each market's query is a client span,
+// named to the peer by a "TRACE <context>" suffix on every attempt.
+public class UDPPeerClient {
+
+    // Frames received so far for one request ID
+    private static final class Reassembly {
+        final CompletableFuture<List<AvailabilityCodec.Entry>> result;
+        AvailabilityCodec.Frame[] frames;
+        int received;
+
+        Reassembly(CompletableFuture<List<AvailabilityCodec.Entry>> result) {
+            this.result = result;
+        }
+
+        synchronized void accept(AvailabilityCodec.Frame frame) {
+            if (frames == null) {
+                frames = new AvailabilityCodec.Frame[frame.totalFrames];
+            }
+            if (frame.seq >= frames.length || frames[frame.seq] != null) {
+                return; // duplicate or inconsistent frame
+            }
+            frames[frame.seq] = frame;
+            received++;
+            if (received == frames.length) {
+                List<AvailabilityCodec.Entry> entries = new ArrayList<>(frame.totalRecords);
+                for (AvailabilityCodec.Frame part : frames) {
+                    AvailabilityCodec.decodeRecords(part, entries);
+                }
+                result.complete(entries);
+            }
+        }
+    }
+
+    private static final int MAX_DATAGRAM = 65507;
+    private static final long DEFAULT_TIMEOUT_MS = Long.getLong("dsms.udp.timeoutMs", 1000);
+    private static final int DEFAULT_RETRIES = Integer.getInteger("dsms.udp.retries", 2);
+
+    private final long timeoutMillis;
+    private final int retries;
+    private final DatagramChannel channel;
+    private final Map<Long, Reassembly> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLong nextRequestID = new AtomicLong();
+    private final AtomicLong retriesSent = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private volatile Tracer tracer;
+
+    public UDPPeerClient() throws IOException {
+        this(DEFAULT_TIMEOUT_MS, DEFAULT_RETRIES);
+    }
+
+    public UDPPeerClient(long timeoutMillis, int retries) throws IOException {
+        this.timeoutMillis = timeoutMillis;
+        this.retries = retries;
+        this.channel = DatagramChannel.open();
+        this.channel.setOption(StandardSocketOptions.SO_RCVBUF, 8 * 1024 * 1024);
+        this.channel.bind(null);
+
+        Thread receiver = new Thread(this::receiveLoop, "udp-peer-client");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+
+    // Asks every market at once for its availability of shareType and waits up to timeout
+    // per attempt; markets whose listing is still incomplete are asked again under a new ID
+    public PeerMarkets.Gathered<List<AvailabilityCodec.Entry>> listAvailability(Map<String, InetSocketAddress> markets,
+                                                                               String shareType) {
+        Map<String, CompletableFuture<List<AvailabilityCodec.Entry>>> answers = new LinkedHashMap<>();
+        Map<String, Tracer.Span> spans = new LinkedHashMap<>();
+        Tracer spanTracer = tracer;
+        for (String market : markets.keySet()) {
+            answers.put(market, new CompletableFuture<>());
+            Tracer.Span span = spanTracer != null ? spanTracer.clientSpan("LIST_AVAILABILITY", market) : null;
+            if (span != null) {
+                spans.put(market, span);
+            }
+        }
+
+        List<Long> requestIDs = new ArrayList<>();
+        try {
+            for (int attempt = 0; attempt <= retries; attempt++) {
+                for (Map.Entry<String, InetSocketAddress> peer : markets.entrySet()) {
+                    CompletableFuture<List<AvailabilityCodec.Entry>> answer = answers.get(peer.getKey());
+                    if (!answer.isDone()) {
+                        if (attempt > 0) {
+                            retriesSent.incrementAndGet();
+                        }
+                        long requestID = nextRequestID.incrementAndGet();
+                        requestIDs.add(requestID);
+                        inFlight.put(requestID, new Reassembly(answer));
+                        Tracer.Span span = spans.get(peer.getKey());
+                        send(requestID, "LIST_AVAILABILITY " + shareType
+                                + (span != null ? " TRACE " + span.getContext().encode() : ""), peer.getValue());
+                    }
+                }
+
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+                if (awaitAll(answers, deadline)) {
+                    break;
+                }
+            }
+
+            PeerMarkets.Gathered<List<AvailabilityCodec.Entry>> gathered = new PeerMarkets.Gathered<>();
+            for (Map.Entry<String, CompletableFuture<List<AvailabilityCodec.Entry>>> answer : answers.entrySet()) {
+                List<AvailabilityCodec.Entry> entries = answer.getValue().getNow(null);
+                if (entries != null) {
+                    gathered.getResults().put(answer.getKey(), entries);
+                } else {
+                    timeouts.incrementAndGet();
+                    gathered.getUnavailable().add(answer.getKey());
+                    Tracer.Span span = spans.get(answer.getKey());
+                    if (span != null) {
+                        span.fail();
+                    }
+                }
+            }
+            return gathered;
+        } finally {
+            for (Long requestID : requestIDs) {
+                inFlight.remove(requestID);
+            }
+            for (Tracer.Span span : spans.values()) {
+                spanTracer.finish(span);
+            }
+        }
+    }
+
+    private <T> boolean awaitAll(Map<String, CompletableFuture<T>> answers, long deadline) {
+        for (CompletableFuture<T> answer : answers.values()) {
+            long remaining = deadline - System.nanoTime();
+            try {
+                answer.get(Math.max(remaining, 0), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException e) {
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (ExecutionException e) {
+                // Never completed exceptionally
+            }
+        }
+        return true;
+    }
+
+    private void send(long requestID, String message, InetSocketAddress address) {
+        byte[] request = ("REQ " + requestID + " " + message).getBytes(StandardCharsets.UTF_8);
+        try {
+            channel.send(ByteBuffer.wrap(request), address);
+        } catch (IOException e) {
+            // Treated like a lost packet: the attempt times out and is retried
+            System.out.println("UDP send to " + address + " failed: " + e.getMessage());
+        }
+    }
+
+    private void receiveLoop() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+        while (channel.isOpen()) {
+            try {
+                buffer.clear();
+                SocketAddress sender = channel.receive(buffer);
+                if (sender == null) {
+                    continue;
+                }
+                buffer.flip();
+                if (!AvailabilityCodec.isFrame(buffer)) {
+                    continue; // stray packet
+                }
+                byte[] data = new byte[buffer.remaining()];
+                buffer.get(data);
+
+                AvailabilityCodec.Frame frame = AvailabilityCodec.decodeHeader(ByteBuffer.wrap(data));
+                Reassembly reassembly = inFlight.get(frame.requestID);
+                if (reassembly != null) {
+                    reassembly.accept(frame);
+                }
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException | RuntimeException e) {
+                System.out.println("UDP peer client dropped a reply: " + e.getMessage());
+            }
+        }
+    }
+
+    public long getRetriesSent() {
+        return retriesSent.get();
+    }
+
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
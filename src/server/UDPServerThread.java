@@ -1,81 +1,256 @@
-package server;
-
-import java.net.*;
-import java.util.Map;
-
-public class UDPServerThread extends Thread {
-    
-    ////
-
-    private final int udpPort;
-    private final ShareMarketServerImpl serverImpl;
-    private final Map<String, Map<String, Share>> shareDatabase;
-    
-    public UDPServerThread(int udpPort, ShareMarketServerImpl serverImpl, Map<String, Map<String, Share>> shareDatabase) {
-        this.udpPort = udpPort;
-        this.serverImpl = serverImpl;  // Initialize final field
-        this.shareDatabase = shareDatabase;
-    }
-    
-
-
-    public void run() {
-        try (DatagramSocket socket = new DatagramSocket(udpPort)) {
-            byte[] buffer = new byte[1024];
-
-            while (true) {
-                DatagramPacket request = new DatagramPacket(buffer, buffer.length);
-                socket.receive(request);
-
-                String receivedMessage = new String(request.getData(), 0, request.getLength());
-
-                // Process request and generate response
-                String responseMessage = processUDPRequest(receivedMessage);
-
-                byte[] responseBytes = responseMessage.getBytes();
-                DatagramPacket response = new DatagramPacket(responseBytes, responseBytes.length,
-                        request.getAddress(), request.getPort());
-                socket.send(response);
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-    private String processUDPRequest(String request) {
-        if (request.startsWith("LIST_AVAILABILITY")) {
-            String shareType = request.split(" ")[1];
-            return getLocalShareAvailability(shareType);
-        }
-        return "INVALID_REQUEST";
-    }
-    
-    private String getLocalShareAvailability(String shareType) {
-        StringBuilder result = new StringBuilder();
-        synchronized (serverImpl.getShareDatabase()) {
-            for (Map<String, Share> shareMap : shareDatabase.values()) {
-                for (Share share : shareMap.values()) {  // Iterate over the actual Share objects
-                    if (share.getShareType().equalsIgnoreCase(shareType)) {
-                        result.append("Share: ").append(share.getShareID())
-                              .append(", Type: ").append(share.getShareType())
-                              .append(", Available: ").append(share.getAvailableCapacity())
-                              .append("\n");
-                    }
-                }
-            }
-
-        }
-        return result.toString().trim();
-    }
-    
-}
-
-
-
-    //private final ShareMarketServerImpl serverImpl;
-    //private final int port;
-    // public UDPServerThread(int udpPort, ShareMarketServerImpl serverImpl) {
-    //     this.udpPort = udpPort;
-    //     // this.server = server;
-    //     this.serverImpl = serverImpl;
+package server;
+
+import java.io.IOException;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// UDP availability service. One selector thread owns the DatagramChannel: it reads
+// datagrams into a direct buffer, hands each decoded request to a worker pool and sends
+// the replies the workers queue back, so many requests can be in flight per port.
+// Requests waiting for a worker are bounded (dsms.udp.queueCapacity, 1024): past that a
+// request is dropped and counted (udpDropped), as the kernel would drop it on a full
+// socket buffer, and the caller's UDPPeerClient retries it or reports the market as not
+// responding.
+public class UDPServerThread extends Thread {
+
+    // Where the shares of a type come from: a market's own share database, or for a
+    // sharded market's front end, whatever its shards report
+    public interface ShareSource {
+        Iterable<Share> sharesOfType(String shareType);
+    }
+
+    private static final int MAX_DATAGRAM = 65507;
+    private static final int WORKERS = Integer.getInteger("dsms.udp.workers",
+            Runtime.getRuntime().availableProcessors() * 2);
+    private static final int QUEUE_CAPACITY = Integer.getInteger("dsms.udp.queueCapacity", 1024);
+
+    private static final class Reply {
+        final byte[] payload;
+        final SocketAddress target;
+
+        Reply(byte[] payload, SocketAddress target) {
+            this.payload = payload;
+            this.target = target;
+        }
+    }
+
+    private final int udpPort;
+    private final AvailabilityCache availabilityCache;
+    private final ShareSource shareSource;
+    private final ThreadPoolExecutor workers;
+    private final AtomicLong dropped = new AtomicLong();
+    private final ConcurrentLinkedQueue<Reply> replies = new ConcurrentLinkedQueue<>();
+    private volatile Selector selector;
+    private volatile MarketMetrics metrics;
+    private volatile Tracer tracer;
+    
+    public UDPServerThread(int udpPort, ShareMarketServerImpl serverImpl, Map<String, Map<String, Share>> shareDatabase) {
+        // Only the bucket for the requested type is touched; keys are case-normalised
+        this(udpPort, serverImpl.getAvailabilityCache(), shareType -> {
+            Map<String, Share> shares = shareDatabase.get(ShareMarketServerImpl.typeKey(shareType));
+            return shares != null ? shares.values() : List.of();
+        });
+    }
+
+    // Without a cache every request is encoded from a fresh read of the source
+    public UDPServerThread(int udpPort, AvailabilityCache availabilityCache, ShareSource shareSource) {
+        this(udpPort, availabilityCache, shareSource, WORKERS, QUEUE_CAPACITY);
+    }
+
+    UDPServerThread(int udpPort, AvailabilityCache availabilityCache, ShareSource shareSource, int workerCount,
+                    int queueCapacity) {
+        this.udpPort = udpPort;
+        this.availabilityCache = availabilityCache;
+        this.shareSource = shareSource;
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                task -> {
+                    Thread thread = new Thread(task, "udp-" + udpPort + "-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                (task, pool) -> dropped.incrementAndGet());
+    }
+
+    // Times each request from receipt until its reply is queued for sending, and
+    // publishes how many requests are waiting for a worker and how many were dropped
+    public void setMetrics(MarketMetrics metrics) {
+        this.metrics = metrics;
+        metrics.gauge("udpQueueDepth", () -> workers.getQueue().size());
+        metrics.gauge("udpDropped", dropped::get);
+    }
+
+    // Requests dropped because every worker was busy and the queue was full
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // Records a server span for each tagged request, under the span its TRACE token names
+    public void setTracer(Tracer tracer) {
+        this.tracer = tracer;
+    }
+    
+
+
+    public void run() {
+        try (DatagramChannel channel = DatagramChannel.open();
+             Selector selector = Selector.open()) {
+            channel.bind(new InetSocketAddress(udpPort));
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            this.selector = selector;
+
+            ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+            ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                selector.select();
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    selected.next();
+                    selected.remove();
+                }
+
+                if (key.isValid() && key.isReadable()) {
+                    receiveAll(channel, receiveBuffer);
+                }
+
+                // Flush queued replies; if the socket buffer is full, wait for OP_WRITE
+                boolean blocked = !sendQueued(channel, sendBuffer);
+                key.interestOps(blocked ? SelectionKey.OP_READ | SelectionKey.OP_WRITE : SelectionKey.OP_READ);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private void receiveAll(DatagramChannel channel, ByteBuffer receiveBuffer) throws IOException {
+        while (true) {
+            receiveBuffer.clear();
+            SocketAddress sender = channel.receive(receiveBuffer);
+            if (sender == null) {
+                return;
+            }
+            receiveBuffer.flip();
+            byte[] data = new byte[receiveBuffer.remaining()];
+            receiveBuffer.get(data);
+            long received = System.nanoTime();
+
+            workers.execute(() -> {
+                String receivedMessage = new String(data);
+                Tracer spans = tracer;
+                Tracer.Span span = spans != null && receivedMessage.startsWith("REQ ")
+                        ? spans.serverSpan("LIST_AVAILABILITY", traceOf(receivedMessage))
+                        : null;
+                // Current while the shares are read, e.g. for a shard router asking its shards
+                TraceContext previous = TraceContext.enter(span != null ? span.getContext() : null);
+
+                // Process request and generate response frame(s)
+                try {
+                    for (byte[] responseBytes : processUDPRequest(receivedMessage)) {
+                        replies.offer(new Reply(responseBytes, sender));
+                    }
+                } finally {
+                    TraceContext.restore(previous);
+                    if (span != null) {
+                        spans.finish(span);
+                    }
+                }
+                MarketMetrics published = metrics;
+                if (published != null) {
+                    published.getUdpRequest().record(System.nanoTime() - received);
+                }
+                Selector current = selector;
+                if (current != null) {
+                    current.wakeup();
+                }
+            });
+        }
+    }
+
+    // Returns false if the channel could not take every queued reply
+    private boolean sendQueued(DatagramChannel channel, ByteBuffer sendBuffer) throws IOException {
+        Reply reply;
+        while ((reply = replies.peek()) != null) {
+            sendBuffer.clear();
+            sendBuffer.put(reply.payload, 0, Math.min(reply.payload.length, sendBuffer.capacity()));
+            sendBuffer.flip();
+            int length = sendBuffer.remaining();
+            if (channel.send(sendBuffer, reply.target) == 0 && length > 0) {
+                return false;
+            }
+            replies.poll();
+        }
+        return true;
+    }
+
+    // The caller's span from a "... TRACE <context>" suffix, or null
+    private static TraceContext traceOf(String request) {
+        int at = request.lastIndexOf(" TRACE ");
+        return at < 0 ? null : TraceContext.decode(request.substring(at + 7).trim());
+    }
+
+    private List<byte[]> processUDPRequest(String request) {
+        // Tagged request from UDPPeerClient: "REQ <id> LIST_AVAILABILITY <type>", optionally
+        // followed by "TRACE <context>", answered with binary frames that are reassembled on
+        // the client side
+        if (request.startsWith("REQ ")) {
+            String[] parts = request.split(" ");
+            boolean traced = parts.length == 6 && parts[4].equals("TRACE");
+            if ((parts.length == 4 || traced) && parts[2].equals("LIST_AVAILABILITY")) {
+                try {
+                    String shareType = parts[3];
+                    long requestID = Long.parseLong(parts[1]);
+                    if (availabilityCache == null) {
+                        return AvailabilityCodec.encode(requestID, shareSource.sharesOfType(shareType));
+                    }
+                    return availabilityCache.frames(ShareMarketServerImpl.typeKey(shareType),
+                            requestID, () -> shareSource.sharesOfType(shareType));
+                } catch (NumberFormatException e) {
+                    // Falls through to INVALID_REQUEST
+                }
+            }
+        }
+        // Untagged text request, answered with a single text datagram
+        else if (request.startsWith("LIST_AVAILABILITY")) {
+            String shareType = request.split(" ")[1];
+            return List.of(getLocalShareAvailability(shareType).getBytes());
+        }
+        return List.of("INVALID_REQUEST".getBytes());
+    }
+
+    private String getLocalShareAvailability(String shareType) {
+        StringBuilder result = new StringBuilder();
+        for (Share share : shareSource.sharesOfType(shareType)) {
+            result.append("Share: ").append(share.getShareID())
+                  .append(", Type: ").append(share.getShareType())
+                  .append(", Available: ").append(share.getAvailableCapacity())
+                  .append("\n");
+        }
+        return result.toString().trim();
+    }
+    
+}
+
+
+
+    //private final ShareMarketServerImpl serverImpl;
+    //private final int port;
+    // public UDPServerThread(int udpPort, ShareMarketServerImpl serverImpl) {
+    //     this.udpPort = udpPort;
+    //     // this.server = server;
+    //     this.serverImpl = serverImpl;
     // }
\ No newline at end of file